@@ -1,5 +1,11 @@
 package org.iyakupov.downloader.core;
 
+import org.iyakupov.downloader.core.dispatch.EvictionPolicy;
+import org.iyakupov.downloader.core.dispatch.RetryPolicy;
+import org.iyakupov.downloader.core.dispatch.SchedulingPolicy;
+
+import java.io.File;
+
 /**
  * Downloader core configuration parameters holder
  */
@@ -15,8 +21,40 @@ public class AppSettings {
     private static volatile int httpSocketTimeout = 30000;
 
     //Dispatcher
-    private static volatile int dispatchingQueueCapacity = 1000;
+    private static volatile int dispatchingQueueCapacity = 1000; //ignored
     private static volatile boolean overwriteOutputFile = false;
+    private static volatile boolean deduplicateRequests = false; //attach requests of the same content to one download
+    private static volatile int probeThreadPoolSize = 4;
+    private static volatile SchedulingPolicy schedulingPolicy = SchedulingPolicy.PRIORITY;
+    private static volatile long deadlineCheckInterval = 1000; //in ms
+    private static volatile long deadlineRiskThreshold = 10000; //in ms; before a file's download speed is known
+    private static volatile int priorityAgingRate = 10; //priority points per second of waiting in the queue
+    private static volatile int maxSchedulingBypassCount = 16;
+    private static volatile long maxClassWaitTime = 30000; //in ms; then a file is served regardless of its class
+    private static volatile EvictionPolicy evictionPolicy = EvictionPolicy.LEAST_PROGRESS;
+    private static volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    private static volatile long stallCheckInterval = 1000; //in ms
+    private static volatile long stallDetectionWindow = 15000; //in ms
+    private static volatile long minPartDownloadSpeed = 256; //in bytes/s; non-positive values disable stall detection
+    private static volatile long parkedStreamGracePeriod = 5000; //in ms; non-positive values disable stream parking
+    private static volatile int maxParkedStreams = 16;
+    private static volatile long evictionAbortDelay = 200; //in ms; time for an evicted part to finish its read and park
+    private static volatile long timeSliceDuration = 0; //in ms; non-positive values disable time-based rotation
+    private static volatile long timeSliceBytes = 0; //non-positive values disable size-based rotation
+    private static volatile long mirrorFailureCooldown = 30000; //in ms
+    private static volatile File journalFile = null; //null disables the download journal
+    private static volatile long journalCheckpointInterval = 5000; //in ms
+    private static volatile int blockSize = 64 * 1024; //64KBytes; granularity of the completion state of a file
+    private static volatile String digestAlgorithm = "SHA-256"; //used unless a digest is expected; null disables hashing
+    private static volatile int pieceVerificationThreadPoolSize = Runtime.getRuntime().availableProcessors();
+    private static volatile int maxPieceRepairAttempts = 3; //per piece; the download fails afterwards
+    private static volatile int resumeVerificationWindow = 4 * 1024; //4KBytes; re-downloaded on resume, 0 disables
+    private static volatile File cacheDirectory = null; //null disables the download cache
+    private static volatile long maxCacheSize = 1024L * 1024 * 1024; //1GByte; least recently used files are evicted
+    private static volatile boolean deduplicateFiles = false; //replace identical downloaded files with hard links
+
+    //Throttling
+    private static volatile long throttleBurstSize = 64 * 1024; //64KBytes
 
     public static int getDownloadBufferSize() {
         return downloadBufferSize;
@@ -66,10 +104,18 @@ public class AppSettings {
         AppSettings.httpSocketTimeout = httpSocketTimeout;
     }
 
+    /**
+     * @deprecated The task queue of the Dispatcher is unbounded, so the capacity is ignored
+     */
+    @Deprecated
     public static int getDispatchingQueueCapacity() {
         return dispatchingQueueCapacity;
     }
 
+    /**
+     * @deprecated The task queue of the Dispatcher is unbounded, so the capacity is ignored
+     */
+    @Deprecated
     public static void setDispatchingQueueCapacity(int dispatchingQueueCapacity) {
         AppSettings.dispatchingQueueCapacity = dispatchingQueueCapacity;
     }
@@ -81,4 +127,253 @@ public class AppSettings {
     public static void setOverwriteOutputFile(boolean overwriteOutputFile) {
         AppSettings.overwriteOutputFile = overwriteOutputFile;
     }
+
+    public static int getProbeThreadPoolSize() {
+        return probeThreadPoolSize;
+    }
+
+    public static void setProbeThreadPoolSize(int probeThreadPoolSize) {
+        AppSettings.probeThreadPoolSize = probeThreadPoolSize;
+    }
+
+    public static SchedulingPolicy getSchedulingPolicy() {
+        return schedulingPolicy;
+    }
+
+    public static void setSchedulingPolicy(SchedulingPolicy schedulingPolicy) {
+        AppSettings.schedulingPolicy = schedulingPolicy;
+    }
+
+    public static long getDeadlineCheckInterval() {
+        return deadlineCheckInterval;
+    }
+
+    public static void setDeadlineCheckInterval(long deadlineCheckInterval) {
+        AppSettings.deadlineCheckInterval = deadlineCheckInterval;
+    }
+
+    public static long getDeadlineRiskThreshold() {
+        return deadlineRiskThreshold;
+    }
+
+    public static void setDeadlineRiskThreshold(long deadlineRiskThreshold) {
+        AppSettings.deadlineRiskThreshold = deadlineRiskThreshold;
+    }
+
+    public static int getPriorityAgingRate() {
+        return priorityAgingRate;
+    }
+
+    public static void setPriorityAgingRate(int priorityAgingRate) {
+        AppSettings.priorityAgingRate = priorityAgingRate;
+    }
+
+    public static int getMaxSchedulingBypassCount() {
+        return maxSchedulingBypassCount;
+    }
+
+    public static void setMaxSchedulingBypassCount(int maxSchedulingBypassCount) {
+        AppSettings.maxSchedulingBypassCount = maxSchedulingBypassCount;
+    }
+
+    /**
+     * @return Time (in ms) after which a file that has not been served is served regardless of its priority class
+     * and deadline. Non-positive value means that files are never promoted.
+     */
+    public static long getMaxClassWaitTime() {
+        return maxClassWaitTime;
+    }
+
+    public static void setMaxClassWaitTime(long maxClassWaitTime) {
+        AppSettings.maxClassWaitTime = maxClassWaitTime;
+    }
+
+    public static long getThrottleBurstSize() {
+        return throttleBurstSize;
+    }
+
+    public static void setThrottleBurstSize(long throttleBurstSize) {
+        AppSettings.throttleBurstSize = throttleBurstSize;
+    }
+
+    public static RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public static void setRetryPolicy(RetryPolicy retryPolicy) {
+        AppSettings.retryPolicy = retryPolicy;
+    }
+
+    public static long getStallCheckInterval() {
+        return stallCheckInterval;
+    }
+
+    public static void setStallCheckInterval(long stallCheckInterval) {
+        AppSettings.stallCheckInterval = stallCheckInterval;
+    }
+
+    public static long getStallDetectionWindow() {
+        return stallDetectionWindow;
+    }
+
+    /**
+     * @param stallDetectionWindow Time (in ms) over which the speed of a part download is measured. Must be positive.
+     */
+    public static void setStallDetectionWindow(long stallDetectionWindow) {
+        if (stallDetectionWindow <= 0)
+            throw new IllegalArgumentException("Stall detection window must be positive: " + stallDetectionWindow);
+        AppSettings.stallDetectionWindow = stallDetectionWindow;
+    }
+
+    public static long getMinPartDownloadSpeed() {
+        return minPartDownloadSpeed;
+    }
+
+    public static void setMinPartDownloadSpeed(long minPartDownloadSpeed) {
+        AppSettings.minPartDownloadSpeed = minPartDownloadSpeed;
+    }
+
+    public static long getParkedStreamGracePeriod() {
+        return parkedStreamGracePeriod;
+    }
+
+    public static void setParkedStreamGracePeriod(long parkedStreamGracePeriod) {
+        AppSettings.parkedStreamGracePeriod = parkedStreamGracePeriod;
+    }
+
+    public static int getMaxParkedStreams() {
+        return maxParkedStreams;
+    }
+
+    public static void setMaxParkedStreams(int maxParkedStreams) {
+        AppSettings.maxParkedStreams = maxParkedStreams;
+    }
+
+    public static long getEvictionAbortDelay() {
+        return evictionAbortDelay;
+    }
+
+    public static void setEvictionAbortDelay(long evictionAbortDelay) {
+        AppSettings.evictionAbortDelay = evictionAbortDelay;
+    }
+
+    public static EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    public static void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        AppSettings.evictionPolicy = evictionPolicy;
+    }
+
+    public static long getTimeSliceDuration() {
+        return timeSliceDuration;
+    }
+
+    public static void setTimeSliceDuration(long timeSliceDuration) {
+        AppSettings.timeSliceDuration = timeSliceDuration;
+    }
+
+    public static long getTimeSliceBytes() {
+        return timeSliceBytes;
+    }
+
+    public static void setTimeSliceBytes(long timeSliceBytes) {
+        AppSettings.timeSliceBytes = timeSliceBytes;
+    }
+
+    public static long getMirrorFailureCooldown() {
+        return mirrorFailureCooldown;
+    }
+
+    public static void setMirrorFailureCooldown(long mirrorFailureCooldown) {
+        AppSettings.mirrorFailureCooldown = mirrorFailureCooldown;
+    }
+
+    public static File getJournalFile() {
+        return journalFile;
+    }
+
+    public static void setJournalFile(File journalFile) {
+        AppSettings.journalFile = journalFile;
+    }
+
+    public static long getJournalCheckpointInterval() {
+        return journalCheckpointInterval;
+    }
+
+    public static void setJournalCheckpointInterval(long journalCheckpointInterval) {
+        AppSettings.journalCheckpointInterval = journalCheckpointInterval;
+    }
+
+    public static int getBlockSize() {
+        return blockSize;
+    }
+
+    public static void setBlockSize(int blockSize) {
+        AppSettings.blockSize = blockSize;
+    }
+
+    public static String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    public static void setDigestAlgorithm(String digestAlgorithm) {
+        AppSettings.digestAlgorithm = digestAlgorithm;
+    }
+
+    public static int getPieceVerificationThreadPoolSize() {
+        return pieceVerificationThreadPoolSize;
+    }
+
+    public static void setPieceVerificationThreadPoolSize(int pieceVerificationThreadPoolSize) {
+        AppSettings.pieceVerificationThreadPoolSize = pieceVerificationThreadPoolSize;
+    }
+
+    public static int getMaxPieceRepairAttempts() {
+        return maxPieceRepairAttempts;
+    }
+
+    public static void setMaxPieceRepairAttempts(int maxPieceRepairAttempts) {
+        AppSettings.maxPieceRepairAttempts = maxPieceRepairAttempts;
+    }
+
+    public static int getResumeVerificationWindow() {
+        return resumeVerificationWindow;
+    }
+
+    public static void setResumeVerificationWindow(int resumeVerificationWindow) {
+        AppSettings.resumeVerificationWindow = resumeVerificationWindow;
+    }
+
+    public static File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    public static void setCacheDirectory(File cacheDirectory) {
+        AppSettings.cacheDirectory = cacheDirectory;
+    }
+
+    public static long getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    public static void setMaxCacheSize(long maxCacheSize) {
+        AppSettings.maxCacheSize = maxCacheSize;
+    }
+
+    public static boolean deduplicateRequests() {
+        return deduplicateRequests;
+    }
+
+    public static void setDeduplicateRequests(boolean deduplicateRequests) {
+        AppSettings.deduplicateRequests = deduplicateRequests;
+    }
+
+    public static boolean deduplicateFiles() {
+        return deduplicateFiles;
+    }
+
+    public static void setDeduplicateFiles(boolean deduplicateFiles) {
+        AppSettings.deduplicateFiles = deduplicateFiles;
+    }
 }
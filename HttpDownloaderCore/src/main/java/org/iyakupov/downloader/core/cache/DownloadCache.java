@@ -0,0 +1,352 @@
+package org.iyakupov.downloader.core.cache;
+
+import org.iyakupov.downloader.core.AppSettings;
+import org.iyakupov.downloader.core.file.FileDigest;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local cache of downloaded files, which saves the transfers of the files that are downloaded again
+ * while they have not changed on the server.
+ * <p>
+ * An entry is keyed by the locator of a file and the version of the file (its entity tag or modification date),
+ * which has to be revalidated with the server before the entry is used. The data is content-addressed:
+ * it's stored under the SHA-256 digest of the file, which is computed by the cache itself, so the locators
+ * that serve the same content share it.
+ * The least recently used entries are evicted when the size of the data exceeds the limit.
+ * The index of the entries is stored in the cache directory, so the cache survives a restart.
+ */
+public class DownloadCache {
+    private final static Logger logger = LoggerFactory.getLogger(DownloadCache.class);
+
+    private static final int INDEX_VERSION = 2; //1 addressed the data by the digests of the server as well
+    private static final String INDEX_FILE_NAME = "index";
+    private static final String DATA_DIRECTORY_NAME = "data";
+    private static final String DATA_DIGEST_ALGORITHM = "SHA-256";
+
+    @NotNull
+    private final File indexFile;
+
+    @NotNull
+    private final File dataDirectory;
+
+    private final long maxSize;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); //by locator, in LRU order
+    private final Map<String, Integer> dataReferenceCounts = new HashMap<>(); //by data file name
+    private final Map<String, Integer> dataPinCounts = new HashMap<>(); //by data file name; of the files being copied
+    private long size = 0; //of the data files, each counted once
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private final AtomicLong savedBytesCount = new AtomicLong(0);
+
+    /**
+     * Open a cache. The entries that were stored in the directory before are restored.
+     *
+     * @param directory Directory of the cache. It's created, if needed.
+     * @param maxSize   Maximal size of the cached data in bytes
+     * @throws IOException If the directory cannot be created
+     */
+    public DownloadCache(@NotNull File directory, long maxSize) throws IOException {
+        this.indexFile = new File(directory, INDEX_FILE_NAME);
+        this.dataDirectory = new File(directory, DATA_DIRECTORY_NAME);
+        this.maxSize = maxSize;
+        Files.createDirectories(dataDirectory.toPath());
+        synchronized (this) {
+            loadIndex();
+            evict();
+        }
+    }
+
+    /**
+     * @param locator Locator of a file
+     * @return Most recent cached version of the file, or null. It must be revalidated before it's used.
+     */
+    @Nullable
+    public synchronized Entry lookup(@NotNull String locator) {
+        return entries.get(locator);
+    }
+
+    /**
+     * Copy the data of an entry. It counts as a cache hit.
+     *
+     * @param entry       Entry that was found by {@link #lookup(String)} and revalidated
+     * @param destination File to copy the data to. It's overwritten.
+     * @return Whether the data was copied. If the data has been evicted or lost meanwhile, the entry is removed,
+     * and the caller should record a miss.
+     */
+    public boolean retrieve(@NotNull Entry entry, @NotNull File destination) {
+        final File dataFile = new File(dataDirectory, entry.dataFileName);
+        //The data is pinned rather than locked while it's copied, so that a large hit does not delay the lookups
+        synchronized (this) {
+            if (!dataReferenceCounts.containsKey(entry.dataFileName)) {
+                logger.debug("Cached file " + dataFile + " was evicted before it was copied");
+                return false;
+            }
+            dataPinCounts.merge(entry.dataFileName, 1, Integer::sum);
+        }
+        try {
+            Files.copy(dataFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.warn("Failed to copy cached file " + dataFile + " to " + destination, e);
+            synchronized (this) {
+                if (entries.get(entry.locator) == entry)
+                    removeEntry(entry.locator);
+            }
+            return false;
+        } finally {
+            unpin(entry.dataFileName);
+        }
+        hitCount.incrementAndGet();
+        savedBytesCount.addAndGet(entry.length);
+        return true;
+    }
+
+    /**
+     * Register a download that the cache could not satisfy
+     */
+    public void recordMiss() {
+        missCount.incrementAndGet();
+    }
+
+    /**
+     * Store a downloaded file. It replaces the cached version of the same locator, if any.
+     * The file is copied and hashed without holding the lock, so it does not delay the lookups.
+     *
+     * @param locator   Locator of the file
+     * @param validator Version of the file: its entity tag or modification date
+     * @param file      Downloaded file
+     * @throws IOException If the file cannot be copied to the cache, or it's modified while it's copied
+     */
+    public void store(@NotNull String locator, @NotNull String validator, @NotNull File file) throws IOException {
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+        if (length > maxSize) {
+            logger.debug("File " + file + " is larger than the cache, it's not stored");
+            return;
+        }
+        synchronized (this) {
+            final Entry existingEntry = entries.get(locator);
+            if (existingEntry != null && existingEntry.validator.equals(validator) && existingEntry.length == length)
+                return; //Already cached, and marked as used by the lookup
+        }
+
+        final File temporaryFile = File.createTempFile("store", ".tmp", dataDirectory);
+        try {
+            final FileDigest digest = copyAndHash(file, temporaryFile);
+            if (file.length() != length || file.lastModified() != lastModified || temporaryFile.length() != length)
+                throw new IOException("File " + file + " was modified while it was stored in the cache");
+            final String dataFileName = digest.getAlgorithm().toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]", "") +
+                    "-" + digest.getHexValue();
+            synchronized (this) {
+                removeEntry(locator); //Before the data is checked: it may be the only reference to the same data
+                if (!dataReferenceCounts.containsKey(dataFileName)) {
+                    Files.move(temporaryFile.toPath(), new File(dataDirectory, dataFileName).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                addEntry(new Entry(locator, validator, dataFileName, length));
+                evict();
+                saveIndex();
+                logger.debug("Stored file " + file + " in the cache, size = " + size);
+            }
+        } finally {
+            Files.deleteIfExists(temporaryFile.toPath());
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return Number of bytes that were copied from the cache instead of being downloaded
+     */
+    public long getSavedBytesCount() {
+        return savedBytesCount.get();
+    }
+
+    /**
+     * @return Size of the cached data in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @NotNull
+    private static FileDigest copyAndHash(@NotNull File source, @NotNull File destination) throws IOException {
+        final MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance(DATA_DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Algorithm " + DATA_DIGEST_ALGORITHM + " is not supported", e);
+        }
+        final byte[] buffer = new byte[AppSettings.getDownloadBufferSize()];
+        try (InputStream in = new FileInputStream(source); OutputStream out = new FileOutputStream(destination)) {
+            int lastRead;
+            while ((lastRead = in.read(buffer)) > 0) {
+                messageDigest.update(buffer, 0, lastRead);
+                out.write(buffer, 0, lastRead);
+            }
+        }
+        return new FileDigest(DATA_DIGEST_ALGORITHM, messageDigest.digest());
+    }
+
+    private void addEntry(@NotNull Entry entry) {
+        entries.put(entry.locator, entry);
+        if (dataReferenceCounts.merge(entry.dataFileName, 1, Integer::sum) == 1)
+            size += entry.length;
+    }
+
+    private void removeEntry(@NotNull String locator) {
+        final Entry entry = entries.remove(locator);
+        if (entry == null || dataReferenceCounts.merge(entry.dataFileName, -1, Integer::sum) > 0)
+            return;
+        dataReferenceCounts.remove(entry.dataFileName);
+        size -= entry.length;
+        if (!dataPinCounts.containsKey(entry.dataFileName)) //Otherwise, it's deleted when it's unpinned
+            deleteData(entry.dataFileName);
+    }
+
+    /**
+     * Release the data file that was pinned by {@link #retrieve(Entry, File)}. If its entries have been removed
+     * while it was copied, it's deleted now.
+     */
+    private synchronized void unpin(@NotNull String dataFileName) {
+        if (dataPinCounts.merge(dataFileName, -1, Integer::sum) > 0)
+            return;
+        dataPinCounts.remove(dataFileName);
+        if (!dataReferenceCounts.containsKey(dataFileName))
+            deleteData(dataFileName);
+    }
+
+    private void deleteData(@NotNull String dataFileName) {
+        final File dataFile = new File(dataDirectory, dataFileName);
+        if (!dataFile.delete())
+            logger.warn("Failed to delete cached file " + dataFile);
+    }
+
+    /**
+     * Remove the least recently used entries until the data fits the size limit. The data files that are being
+     * copied are deleted after the copy, so the disk usage may exceed the limit meanwhile.
+     */
+    private void evict() {
+        while (size > maxSize && !entries.isEmpty()) {
+            final String eldestLocator = entries.keySet().iterator().next();
+            logger.debug("Evicting file " + eldestLocator + " from the cache");
+            removeEntry(eldestLocator);
+        }
+    }
+
+    private void loadIndex() {
+        if (!indexFile.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_VERSION)
+                throw new IOException("Unsupported version of the cache index");
+            final int entriesCount = in.readInt();
+            for (int i = 0; i < entriesCount; i++) {
+                final Entry entry = new Entry(in.readUTF(), in.readUTF(), in.readUTF(), in.readLong());
+                if (new File(dataDirectory, entry.dataFileName).length() == entry.length)
+                    addEntry(entry);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to read the cache index " + indexFile + ", the cache starts empty", e);
+            entries.clear();
+            dataReferenceCounts.clear();
+            size = 0;
+        }
+
+        //Data that is not referenced by the index (e.g. it was being stored during a crash) is never used
+        final File[] dataFiles = dataDirectory.listFiles();
+        if (dataFiles != null) {
+            for (File dataFile : dataFiles) {
+                if (!dataReferenceCounts.containsKey(dataFile.getName()) && !dataFile.delete())
+                    logger.warn("Failed to delete unreferenced cached file " + dataFile);
+            }
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        final File temporaryIndexFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryIndexFile)))) {
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) { //In LRU order, which is restored by the next load
+                out.writeUTF(entry.locator);
+                out.writeUTF(entry.validator);
+                out.writeUTF(entry.dataFileName);
+                out.writeLong(entry.length);
+            }
+        }
+        Files.move(temporaryIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DownloadCache{" +
+                "entriesCount=" + entries.size() +
+                ", size=" + size +
+                ", maxSize=" + maxSize +
+                ", hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", savedBytesCount=" + savedBytesCount +
+                '}';
+    }
+
+    /**
+     * Cached version of a file
+     */
+    public static class Entry {
+        @NotNull
+        private final String locator;
+
+        @NotNull
+        private final String validator;
+
+        @NotNull
+        private final String dataFileName;
+
+        private final long length;
+
+        private Entry(@NotNull String locator, @NotNull String validator, @NotNull String dataFileName, long length) {
+            this.locator = locator;
+            this.validator = validator;
+            this.dataFileName = dataFileName;
+            this.length = length;
+        }
+
+        /**
+         * @return Version of the file: its entity tag or modification date
+         */
+        @NotNull
+        public String getValidator() {
+            return validator;
+        }
+
+        /**
+         * @return Size of the file in bytes
+         */
+        public long getLength() {
+            return length;
+        }
+    }
+}
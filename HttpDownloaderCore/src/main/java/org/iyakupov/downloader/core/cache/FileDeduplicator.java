@@ -0,0 +1,204 @@
+package org.iyakupov.downloader.core.cache;
+
+import org.iyakupov.downloader.core.AppSettings;
+import org.iyakupov.downloader.core.file.FileDigest;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index of the downloaded files by their content, which replaces a downloaded file with a hard link to
+ * a byte-identical file that was downloaded before, so that the copies share the disk space.
+ * <p>
+ * The files are indexed by a digest of SHA-256 or a stronger algorithm that was computed locally, and their bytes
+ * are compared before they are linked, so a digest collision cannot make a file point to a different content.
+ * <p>
+ * Only the files on the same file store may be linked. Since the linked files are the same file, modifying one
+ * of them modifies all of them. The files that have been modified or deleted since they were indexed are never
+ * linked to. The index is kept in memory, so only the files downloaded since the start are linked.
+ */
+public class FileDeduplicator {
+    private final static Logger logger = LoggerFactory.getLogger(FileDeduplicator.class);
+
+    private static final String FINGERPRINT_ALGORITHM = "SHA-256"; //if the file was not hashed strongly enough
+    private static final Set<String> STRONG_ALGORITHMS = new HashSet<>(Arrays.asList(
+            "SHA-256", "SHA-384", "SHA-512", "SHA-512/256", "SHA3-256", "SHA3-384", "SHA3-512"));
+
+    private final Map<FileDigest, List<IndexedFile>> filesByDigest = new HashMap<>(); //guarded by this
+
+    private final AtomicLong linkedFilesCount = new AtomicLong(0);
+    private final AtomicLong reclaimedBytesCount = new AtomicLong(0);
+
+    /**
+     * Replace a downloaded file with a hard link to an identical file that was indexed before, if there is one
+     * on the same file store. Otherwise, index the file.
+     *
+     * @param file        Downloaded file
+     * @param localDigest Digest of the file that was computed locally during the download, or null. Unless it's
+     *                    computed by SHA-256 or a stronger algorithm, the file is hashed.
+     * @return Number of bytes that were reclaimed: the size of the file, if it was linked, or 0
+     * @throws IOException If the file cannot be read or linked. The file is intact.
+     */
+    public long deduplicate(@NotNull File file, @Nullable FileDigest localDigest) throws IOException {
+        final FileDigest fingerprint = localDigest != null &&
+                STRONG_ALGORITHMS.contains(localDigest.getAlgorithm().toUpperCase(Locale.ROOT))
+                ? localDigest
+                : hash(file);
+        final Path path = file.toPath().toAbsolutePath();
+        final FileStore fileStore = Files.getFileStore(path);
+        final IndexedFile indexedFile = new IndexedFile(path);
+        synchronized (this) {
+            final List<IndexedFile> candidates = filesByDigest.computeIfAbsent(fingerprint, d -> new ArrayList<>(1));
+            candidates.removeIf(c -> c.path.equals(path) || !c.isUnchanged());
+            for (IndexedFile candidate : candidates) {
+                if (candidate.length != indexedFile.length || !fileStore.equals(Files.getFileStore(candidate.path)))
+                    continue;
+                if (!Files.isSameFile(candidate.path, path)) {
+                    if (!contentEquals(path, candidate.path)) {
+                        logger.warn("Files " + path + " and " + candidate.path + " have the same digest, " +
+                                "but different content");
+                        continue;
+                    }
+                    link(path, candidate.path);
+                }
+                linkedFilesCount.incrementAndGet();
+                reclaimedBytesCount.addAndGet(indexedFile.length);
+                logger.info("File " + path + " is identical to " + candidate.path + ", replaced it with a hard link");
+                return indexedFile.length;
+            }
+            candidates.add(indexedFile);
+            return 0;
+        }
+    }
+
+    /**
+     * @return Number of downloaded files that were replaced with hard links
+     */
+    public long getLinkedFilesCount() {
+        return linkedFilesCount.get();
+    }
+
+    /**
+     * @return Disk space (in bytes) that was reclaimed by the hard links
+     */
+    public long getReclaimedBytesCount() {
+        return reclaimedBytesCount.get();
+    }
+
+    /**
+     * Atomically replace a file with a hard link to another one. The link is created next to the file,
+     * and then it's moved over the file.
+     */
+    private static void link(@NotNull Path path, @NotNull Path target) throws IOException {
+        final Path temporaryLink = path.resolveSibling("." + path.getFileName() + ".link");
+        Files.deleteIfExists(temporaryLink);
+        try {
+            Files.createLink(temporaryLink, target);
+            Files.move(temporaryLink, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.deleteIfExists(temporaryLink);
+            throw e instanceof IOException ? (IOException) e : new IOException("Hard links are not supported", e);
+        }
+    }
+
+    private static boolean contentEquals(@NotNull Path first, @NotNull Path second) throws IOException {
+        final byte[] firstBuffer = new byte[AppSettings.getDownloadBufferSize()];
+        final byte[] secondBuffer = new byte[firstBuffer.length];
+        try (InputStream firstData = Files.newInputStream(first); InputStream secondData = Files.newInputStream(second)) {
+            int firstRead;
+            while ((firstRead = readFully(firstData, firstBuffer)) > 0) {
+                if (readFully(secondData, secondBuffer) != firstRead)
+                    return false;
+                for (int i = 0; i < firstRead; i++) {
+                    if (firstBuffer[i] != secondBuffer[i])
+                        return false;
+                }
+            }
+            return secondData.read() < 0;
+        }
+    }
+
+    /**
+     * @return Number of bytes read: less than the size of the buffer only at the end of the stream
+     */
+    private static int readFully(@NotNull InputStream in, @NotNull byte[] buffer) throws IOException {
+        int readCount = 0;
+        int lastRead;
+        while (readCount < buffer.length && (lastRead = in.read(buffer, readCount, buffer.length - readCount)) > 0)
+            readCount += lastRead;
+        return readCount;
+    }
+
+    @NotNull
+    private static FileDigest hash(@NotNull File file) throws IOException {
+        final MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Algorithm " + FINGERPRINT_ALGORITHM + " is not supported", e);
+        }
+        final byte[] buffer = new byte[AppSettings.getDownloadBufferSize()];
+        try (InputStream in = new FileInputStream(file)) {
+            int lastRead;
+            while ((lastRead = in.read(buffer)) > 0)
+                messageDigest.update(buffer, 0, lastRead);
+        }
+        return new FileDigest(FINGERPRINT_ALGORITHM, messageDigest.digest());
+    }
+
+    @Override
+    public String toString() {
+        return "FileDeduplicator{" +
+                "linkedFilesCount=" + linkedFilesCount +
+                ", reclaimedBytesCount=" + reclaimedBytesCount +
+                '}';
+    }
+
+    /**
+     * Downloaded file, as it was when it was indexed
+     */
+    private static class IndexedFile {
+        @NotNull
+        final Path path;
+
+        final long length;
+
+        final long lastModified;
+
+        IndexedFile(@NotNull Path path) {
+            this.path = path;
+            final File file = path.toFile();
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        /**
+         * @return Whether the file still exists and has not been modified since it was indexed
+         */
+        boolean isUnchanged() {
+            final File file = path.toFile();
+            return file.isFile() && file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+}
@@ -9,5 +9,8 @@ public enum CommunicationStatus {
     PARTIAL_CONTENT_NOK,
     OK,
     UNAVAILABLE,
+    SERVER_ERROR, //5xx
+    CONTENT_CHANGED, //the remote file is not the version that was partially downloaded
+    NOT_MODIFIED, //304: the remote file is still the version that was downloaded before
     ERROR
 }
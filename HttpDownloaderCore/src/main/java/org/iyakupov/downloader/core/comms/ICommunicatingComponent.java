@@ -17,6 +17,18 @@ public interface ICommunicatingComponent extends Closeable {
      */
     ICommunicationResult checkRemoteFile(String locator) throws BadLocatorException;
 
+    /**
+     * Check whether an external resource has changed since a version of it was downloaded, without downloading it
+     *
+     * @param locator   Locator (identifier) of the requested resource.
+     * @param validator Version of the resource that was downloaded: an entity tag or a modification date,
+     *                  see {@link ICommunicationResult#getEntityTag()}.
+     * @return Result of this request: {@link CommunicationStatus#NOT_MODIFIED} if the resource has not changed,
+     * or the same result as {@link #checkRemoteFile(String)} otherwise
+     * @throws BadLocatorException If failed to parse the locator.
+     */
+    ICommunicationResult checkRemoteFile(String locator, String validator) throws BadLocatorException;
+
     /**
      * Try to connect to external resource and start downloading it.
      *
@@ -36,4 +48,18 @@ public interface ICommunicatingComponent extends Closeable {
      * @throws BadLocatorException If failed to parse the locator.
      */
     ICommunicationResult downloadRemoteFile(String locator, long start, long size) throws BadLocatorException;
+
+    /**
+     * Try to connect to external resource and start downloading a part of it, if it has not changed.
+     *
+     * @param locator   Locator (identifier) of the requested resource.
+     * @param start     Number of the first byte of the file to download.
+     * @param size      Length of the downloadable chunk.
+     * @param validator Version of the resource that the previous parts were downloaded from: an entity tag
+     *                  or a modification date, see {@link ICommunicationResult#getEntityTag()}. If the resource
+     *                  has changed since, {@link CommunicationStatus#CONTENT_CHANGED} is returned.
+     * @return Result of this request
+     * @throws BadLocatorException If failed to parse the locator.
+     */
+    ICommunicationResult downloadRemoteFile(String locator, long start, long size, String validator) throws BadLocatorException;
 }
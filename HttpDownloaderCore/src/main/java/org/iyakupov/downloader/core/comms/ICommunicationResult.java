@@ -1,5 +1,6 @@
 package org.iyakupov.downloader.core.comms;
 
+import org.iyakupov.downloader.core.file.FileDigest;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -46,4 +47,28 @@ public interface ICommunicationResult extends Closeable {
      * Negative value means that that it's not possible to obtain the length.
      */
     long getSize();
+
+    /**
+     * @return Entity tag (version identifier) of the remote resource, or null if the server has not sent it
+     */
+    @Nullable
+    String getEntityTag();
+
+    /**
+     * @return Modification date of the remote resource (as sent by the server), or null if the server has not sent it
+     */
+    @Nullable
+    String getLastModified();
+
+    /**
+     * @return Digest of the whole remote resource (as declared by the server), or null if the server has not sent it
+     */
+    @Nullable
+    FileDigest getDigest();
+
+    /**
+     * Abort the underlying request, if it is still in progress. Reads of the response data stream that are
+     * blocked (or started afterwards) fail with an {@link IOException}. May be called from any thread.
+     */
+    void abort();
 }
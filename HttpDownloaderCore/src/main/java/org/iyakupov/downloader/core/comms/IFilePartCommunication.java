@@ -0,0 +1,22 @@
+package org.iyakupov.downloader.core.comms;
+
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFile;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFilePart;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A communication that transfers data of one part of a file
+ */
+public interface IFilePartCommunication extends ICommunication {
+    /**
+     * @return File download request that this communication works for
+     */
+    @NotNull
+    IManagedDownloadableFile getFile();
+
+    /**
+     * @return Part of the file that is transferred by this communication
+     */
+    @NotNull
+    IManagedDownloadableFilePart getFilePart();
+}
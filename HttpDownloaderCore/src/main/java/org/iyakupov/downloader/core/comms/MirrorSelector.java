@@ -0,0 +1,170 @@
+package org.iyakupov.downloader.core.comms;
+
+import org.iyakupov.downloader.core.AppSettings;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Equivalent sources (mirrors) of a file.
+ * <p>
+ * Each part download attempt asks for a source, and the attempts are spread in proportion to the measured
+ * throughput of the sources: the next attempt goes to the source with the lowest number of running attempts
+ * per byte/s. Sources that were not measured yet are considered as fast as the fastest one, so that
+ * each of them gets a chance. A source that has failed is avoided for {@link AppSettings#getMirrorFailureCooldown()},
+ * unless all the sources have failed.
+ */
+public class MirrorSelector {
+    private static final double THROUGHPUT_SMOOTHING = 0.3; //weight of the latest measurement
+    private static final long MIN_MEASURED_TIME = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Logger logger = LoggerFactory.getLogger(MirrorSelector.class);
+
+    //In the order of preference, the primary locator first
+    private final Map<String, Source> sources = new LinkedHashMap<>();
+
+    /**
+     * @param locators Equivalent locators of the file. Must not be empty.
+     */
+    public MirrorSelector(@NotNull Collection<String> locators) {
+        if (locators.isEmpty())
+            throw new IllegalArgumentException("At least one locator is required");
+        for (String locator : locators)
+            sources.put(locator, new Source());
+    }
+
+    /**
+     * @return Locators of the sources that may be used
+     */
+    @NotNull
+    public synchronized List<String> getLocators() {
+        return new ArrayList<>(sources.keySet());
+    }
+
+    /**
+     * Stop using a source, e.g. because it serves a different version of the file. The last source is never removed.
+     *
+     * @param locator Locator of the source
+     * @return Whether the source was removed
+     */
+    public synchronized boolean removeLocator(@NotNull String locator) {
+        if (sources.size() <= 1 || sources.remove(locator) == null)
+            return false;
+        logger.warn("Source is removed from the mirror list: " + locator);
+        return true;
+    }
+
+    /**
+     * Choose the source for a new download attempt. Must be followed by {@link #release(String, long, long)}.
+     *
+     * @return Locator of the source
+     */
+    @NotNull
+    public synchronized String acquire() {
+        final long now = System.nanoTime();
+        final boolean allFailed = sources.values().stream().allMatch(s -> s.isFailed(now));
+        final double maxThroughput = Math.max(1, sources.values().stream()
+                .filter(s -> s.measured)
+                .mapToDouble(s -> s.throughput)
+                .max()
+                .orElse(1));
+
+        String bestLocator = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (Map.Entry<String, Source> entry : sources.entrySet()) {
+            final Source source = entry.getValue();
+            if (source.isFailed(now) && !allFailed)
+                continue;
+            final double throughput = source.measured ? Math.max(1, source.throughput) : maxThroughput;
+            final double load = (source.activeAttemptsCount + 1) / throughput;
+            if (load < bestLoad) {
+                bestLoad = load;
+                bestLocator = entry.getKey();
+            }
+        }
+
+        assert bestLocator != null;
+        sources.get(bestLocator).activeAttemptsCount++;
+        return bestLocator;
+    }
+
+    /**
+     * Register a download attempt that continues to read from a source chosen before, e.g. from a stream
+     * that a previous attempt has opened. Must be followed by {@link #release(String, long, long)}.
+     *
+     * @param locator Locator of the source
+     */
+    public synchronized void reacquire(@NotNull String locator) {
+        final Source source = sources.get(locator);
+        if (source != null)
+            source.activeAttemptsCount++;
+    }
+
+    /**
+     * Finish a download attempt and take its throughput into account
+     *
+     * @param locator         Locator returned by {@link #acquire()} or passed to {@link #reacquire(String)}
+     * @param downloadedBytes Number of bytes that the attempt has downloaded
+     * @param elapsedTime     Duration of the attempt (not counting the time it was throttled), in ns
+     */
+    public synchronized void release(@NotNull String locator, long downloadedBytes, long elapsedTime) {
+        final Source source = sources.get(locator);
+        if (source == null)
+            return; //Removed in the meantime
+        source.activeAttemptsCount--;
+        if (elapsedTime < MIN_MEASURED_TIME)
+            return; //Too short to tell anything
+        final double throughput = (double) downloadedBytes * TimeUnit.SECONDS.toNanos(1) / elapsedTime;
+        source.throughput = source.measured
+                ? (1 - THROUGHPUT_SMOOTHING) * source.throughput + THROUGHPUT_SMOOTHING * throughput
+                : throughput;
+        source.measured = true;
+    }
+
+    /**
+     * Register a failure of a source, so that the next attempts go to the other ones
+     *
+     * @param locator Locator of the failed source
+     */
+    public synchronized void reportFailure(@NotNull String locator) {
+        final Source source = sources.get(locator);
+        if (source != null && sources.size() > 1) {
+            logger.warn("Source has failed, switching to other mirrors: " + locator);
+            source.failedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(AppSettings.getMirrorFailureCooldown());
+        }
+    }
+
+    /**
+     * @param locator Locator of a source
+     * @return Smoothed throughput of the source in bytes/s, or -1 if it's unknown
+     */
+    public synchronized double getThroughput(@NotNull String locator) {
+        final Source source = sources.get(locator);
+        return source == null || !source.measured ? -1 : source.throughput;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MirrorSelector{" +
+                "sources=" + sources.keySet() +
+                '}';
+    }
+
+    private static class Source {
+        int activeAttemptsCount = 0;
+        double throughput = 0; //in bytes/s
+        boolean measured = false;
+        long failedUntil = Long.MIN_VALUE; //in ns
+
+        boolean isFailed(long now) {
+            return failedUntil != Long.MIN_VALUE && now - failedUntil < 0;
+        }
+    }
+}
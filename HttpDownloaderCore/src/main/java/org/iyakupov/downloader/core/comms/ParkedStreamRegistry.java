@@ -0,0 +1,202 @@
+package org.iyakupov.downloader.core.comms;
+
+import org.iyakupov.downloader.core.AppSettings;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFilePart;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Open response streams of evicted part downloads.
+ * <p>
+ * When a part is evicted, its worker may park the stream here instead of closing it. The task that resumes
+ * the part continues to read from the same connection, so it does not pay for a new request and a new TCP
+ * slow start. A stream is closed if it is not claimed within {@link AppSettings#getParkedStreamGracePeriod()},
+ * or if room is needed for a newer one: at most {@link AppSettings#getMaxParkedStreams()} streams are kept open
+ * (each of them holds a connection and its socket buffers).
+ */
+public class ParkedStreamRegistry {
+    private final Logger logger = LoggerFactory.getLogger(ParkedStreamRegistry.class);
+
+    //Oldest first
+    private final Map<IManagedDownloadableFilePart, ParkedStream> parkedStreams = new LinkedHashMap<>();
+    private final AtomicLong reusedStreamsCount = new AtomicLong(0);
+    private final AtomicLong closedStreamsCount = new AtomicLong(0);
+
+    /**
+     * Park the stream of an evicted part
+     *
+     * @param part                Evicted part
+     * @param source              Locator of the mirror that the stream is connected to
+     * @param communicationResult Response that the stream belongs to
+     * @param stream              Response data stream, positioned at {@link IManagedDownloadableFilePart#getCurrentStartPosition()}
+     * @return Whether the stream was parked. If not, the caller remains responsible for closing it.
+     */
+    public boolean park(@NotNull IManagedDownloadableFilePart part, @NotNull String source,
+                        @NotNull ICommunicationResult communicationResult, @NotNull InputStream stream) {
+        final int maxParkedStreams = AppSettings.getMaxParkedStreams();
+        if (AppSettings.getParkedStreamGracePeriod() <= 0 || maxParkedStreams <= 0)
+            return false;
+
+        final List<ParkedStream> displacedStreams = new ArrayList<>();
+        synchronized (this) {
+            displacedStreams.add(parkedStreams.remove(part));
+            for (Iterator<ParkedStream> iterator = parkedStreams.values().iterator();
+                 iterator.hasNext() && parkedStreams.size() >= maxParkedStreams; ) {
+                displacedStreams.add(iterator.next());
+                iterator.remove();
+            }
+            parkedStreams.put(part, new ParkedStream(source, communicationResult, stream, part.getCurrentStartPosition()));
+        }
+        for (ParkedStream parkedStream : displacedStreams)
+            close(parkedStream);
+        logger.debug("Parked the stream of part " + part);
+        return true;
+    }
+
+    /**
+     * Claim the parked stream of a part
+     *
+     * @param part Part to resume
+     * @return Parked stream, or null if there is no valid stream for the part
+     */
+    @Nullable
+    public ParkedStream unpark(@NotNull IManagedDownloadableFilePart part) {
+        final ParkedStream parkedStream;
+        synchronized (this) {
+            if (parkedStreams.isEmpty())
+                return null;
+            parkedStream = parkedStreams.remove(part);
+        }
+        if (parkedStream == null)
+            return null;
+
+        if (parkedStream.position != part.getCurrentStartPosition() || parkedStream.isExpired(System.nanoTime())) {
+            close(parkedStream);
+            return null;
+        }
+        reusedStreamsCount.incrementAndGet();
+        logger.debug("Re-using the parked stream of part " + part);
+        return parkedStream;
+    }
+
+    /**
+     * Close the streams whose grace period is over
+     */
+    public void closeExpired() {
+        final long now = System.nanoTime();
+        final List<ParkedStream> expiredStreams = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<ParkedStream> iterator = parkedStreams.values().iterator(); iterator.hasNext(); ) {
+                final ParkedStream parkedStream = iterator.next();
+                if (parkedStream.isExpired(now)) {
+                    expiredStreams.add(parkedStream);
+                    iterator.remove();
+                }
+            }
+        }
+        for (ParkedStream parkedStream : expiredStreams)
+            close(parkedStream);
+    }
+
+    /**
+     * Close all the parked streams
+     */
+    public void closeAll() {
+        final List<ParkedStream> streams;
+        synchronized (this) {
+            streams = new ArrayList<>(parkedStreams.values());
+            parkedStreams.clear();
+        }
+        for (ParkedStream parkedStream : streams)
+            close(parkedStream);
+    }
+
+    public synchronized int getParkedStreamsCount() {
+        return parkedStreams.size();
+    }
+
+    /**
+     * @return Number of parked streams that were claimed by resumed parts
+     */
+    public long getReusedStreamsCount() {
+        return reusedStreamsCount.get();
+    }
+
+    /**
+     * @return Number of parked streams that were closed without being claimed
+     */
+    public long getClosedStreamsCount() {
+        return closedStreamsCount.get();
+    }
+
+    private void close(@Nullable ParkedStream parkedStream) {
+        if (parkedStream == null)
+            return;
+        closedStreamsCount.incrementAndGet();
+        try {
+            parkedStream.communicationResult.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close a parked stream", e);
+        }
+    }
+
+    /**
+     * Open response stream of an evicted part
+     */
+    public static class ParkedStream {
+        @NotNull
+        private final String source;
+
+        @NotNull
+        private final ICommunicationResult communicationResult;
+
+        @NotNull
+        private final InputStream stream;
+
+        private final long position;
+        private final long parkTime; //in ns
+
+        private ParkedStream(@NotNull String source, @NotNull ICommunicationResult communicationResult,
+                             @NotNull InputStream stream, long position) {
+            this.source = source;
+            this.communicationResult = communicationResult;
+            this.stream = stream;
+            this.position = position;
+            this.parkTime = System.nanoTime();
+        }
+
+        /**
+         * @return Locator of the mirror that the stream is connected to
+         */
+        @NotNull
+        public String getSource() {
+            return source;
+        }
+
+        @NotNull
+        public ICommunicationResult getCommunicationResult() {
+            return communicationResult;
+        }
+
+        @NotNull
+        public InputStream getStream() {
+            return stream;
+        }
+
+        private boolean isExpired(long now) {
+            return now - parkTime > TimeUnit.MILLISECONDS.toNanos(AppSettings.getParkedStreamGracePeriod());
+        }
+    }
+}
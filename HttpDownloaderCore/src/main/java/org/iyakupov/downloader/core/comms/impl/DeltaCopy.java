@@ -0,0 +1,202 @@
+package org.iyakupov.downloader.core.comms.impl;
+
+import org.iyakupov.downloader.core.AppSettings;
+import org.iyakupov.downloader.core.dispatch.IDispatchingQueue;
+import org.iyakupov.downloader.core.file.BlockChecksumMap;
+import org.iyakupov.downloader.core.file.internal.BlockBitmap;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFile;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFilePart;
+import org.iyakupov.downloader.core.file.internal.RollingChecksum;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.iyakupov.downloader.core.file.state.FilePartDownloadState.*;
+
+/**
+ * Algorithm that builds a file from the blocks of its previous version (as rsync and zsync do). The previous
+ * version is scanned with a rolling checksum, so a block is found even if it has moved. The blocks whose weak
+ * checksum and digest match the block checksum map of the remote file are copied to the output file and marked
+ * as completed in the block bitmap; the other ranges are gaps, which are downloaded by gap-filling parts.
+ */
+public class DeltaCopy implements Runnable {
+    private final static Logger logger = LoggerFactory.getLogger(DeltaCopy.class);
+
+    @NotNull
+    private final IDispatchingQueue dispatcher;
+
+    @NotNull
+    private final IManagedDownloadableFile file;
+
+    @NotNull
+    private final IManagedDownloadableFilePart part;
+
+    /**
+     * @param dispatcher Dispatcher that downloads the ranges which are not copied
+     * @param file       File download request with a previous version and a block checksum map
+     * @param part       The only part of the file, which covers all of it and writes into the output file
+     */
+    public DeltaCopy(@NotNull IDispatchingQueue dispatcher, @NotNull IManagedDownloadableFile file,
+                     @NotNull IManagedDownloadableFilePart part) {
+        this.dispatcher = dispatcher;
+        this.file = file;
+        this.part = part;
+    }
+
+    @Override
+    public void run() {
+        //A paused part is resumed as a regular download
+        if (part.getStatus() == PAUSED) {
+            return;
+        } else if (part.getStatus() != PENDING || !part.start()) {
+            logger.error("Failed to start delta copy because of incorrect status " + part);
+            return;
+        }
+
+        final File previousVersion = file.getDownloadOptions().getPreviousVersion();
+        final BlockChecksumMap blockChecksumMap = file.getDownloadOptions().getBlockChecksumMap();
+        final BlockBitmap bitmap = file.getBlockBitmap();
+        if (previousVersion != null && blockChecksumMap != null && bitmap != null) {
+            try {
+                final long copiedBytesCount = copyMatchingBlocks(previousVersion, blockChecksumMap, bitmap);
+                logger.info("Copied " + copiedBytesCount + " of " + blockChecksumMap.getTotalLength() +
+                        " bytes from the previous version " + previousVersion + " of file " + file.getOutputFile());
+            } catch (IOException | NoSuchAlgorithmException e) {
+                //The blocks that are already copied are valid. The rest of the file is downloaded.
+                logger.warn("Failed to copy blocks from the previous version " + previousVersion +
+                        " of file " + file.getOutputFile(), e);
+            }
+        }
+
+        if (part.getStatus() == CANCELLED) {
+            logger.debug("Task " + part + " cancelled, exiting delta copy");
+            return;
+        } else if (part.getStatus() == PAUSE_REQUESTED) {
+            logger.debug("Task " + part + " paused, exiting delta copy");
+            part.confirmPause();
+            return;
+        }
+
+        //The ranges that were not copied are gaps now
+        part.incrementDownloadedBytesCount(part.getRemainingLength());
+        final int gapsCount = dispatcher.fillGaps(file);
+        logger.debug("Submitted " + gapsCount + " downloads of the ranges that were not copied. File: " + file);
+        if (file.completePart(part) == 0) {
+            try {
+                HttpPartDownloadCommunication.combineTemporaryFiles(dispatcher, file);
+            } catch (IOException e) {
+                logger.error("Failed to save file " + file, e);
+                part.completeWithError("Failed to save the file; Exception text: " + e);
+            }
+        }
+    }
+
+    /**
+     * Scan the previous version and copy its blocks that the remote file has to the output file
+     *
+     * @return Number of copied bytes
+     */
+    private long copyMatchingBlocks(@NotNull File previousVersion, @NotNull BlockChecksumMap blockChecksumMap,
+                                    @NotNull BlockBitmap bitmap) throws IOException, NoSuchAlgorithmException {
+        final MessageDigest messageDigest = MessageDigest.getInstance(blockChecksumMap.getAlgorithm());
+        final int blockSize = blockChecksumMap.getBlockSize();
+        final int blocksCount = blockChecksumMap.getBlocksCount();
+        //The last block is found only at the end of the previous version, if it's shorter than the others
+        final int lastBlockLength = blockChecksumMap.getBlockLength(blocksCount - 1);
+        final int fullBlocksCount = lastBlockLength == blockSize ? blocksCount : blocksCount - 1;
+        final Map<Integer, List<Integer>> blocksByWeakChecksum = new HashMap<>();
+        for (int block = 0; block < fullBlocksCount; block++) {
+            blocksByWeakChecksum.computeIfAbsent(blockChecksumMap.getWeakChecksum(block), c -> new ArrayList<>(1))
+                    .add(block);
+        }
+
+        final BitSet copiedBlocks = new BitSet(blocksCount);
+        final byte[] window = new byte[blockSize];
+        final byte[] buffer = new byte[AppSettings.getDownloadBufferSize()];
+        final RollingChecksum rollingChecksum = new RollingChecksum(blockSize);
+        long copiedBytesCount = 0;
+        try (InputStream previousData = new FileInputStream(previousVersion);
+             RandomAccessFile outputFileData = new RandomAccessFile(part.getOutputFile(), "rw")) {
+            int lastRead;
+            while ((lastRead = previousData.read(buffer)) > 0) {
+                for (int i = 0; i < lastRead; i++) {
+                    rollingChecksum.update(buffer[i]);
+                    if (!rollingChecksum.isFull())
+                        continue;
+                    final List<Integer> candidates = blocksByWeakChecksum.get(rollingChecksum.getValue());
+                    if (candidates == null)
+                        continue;
+                    rollingChecksum.copyWindow(window);
+                    final long copiedLength = copyBlock(window, blockSize, candidates, blockChecksumMap, messageDigest,
+                            copiedBlocks, outputFileData, bitmap);
+                    if (copiedLength > 0) { //The next block starts after the matched one
+                        copiedBytesCount += copiedLength;
+                        rollingChecksum.clear();
+                    }
+                }
+                if (part.getStatus() != DOWNLOADING)
+                    return copiedBytesCount;
+            }
+
+            if (lastBlockLength < blockSize && previousVersion.length() >= lastBlockLength) {
+                try (RandomAccessFile previousTail = new RandomAccessFile(previousVersion, "r")) {
+                    previousTail.seek(previousVersion.length() - lastBlockLength);
+                    previousTail.readFully(window, 0, lastBlockLength);
+                }
+                final int lastBlock = blocksCount - 1;
+                if (RollingChecksum.checksum(window, 0, lastBlockLength) == blockChecksumMap.getWeakChecksum(lastBlock)) {
+                    copiedBytesCount += copyBlock(window, lastBlockLength, Collections.singletonList(lastBlock),
+                            blockChecksumMap, messageDigest, copiedBlocks, outputFileData, bitmap);
+                }
+            }
+        }
+        return copiedBytesCount;
+    }
+
+    /**
+     * Copy a block of the previous version to all the positions of the remote file where it belongs
+     *
+     * @param data       Data of the block
+     * @param length     Length of the block
+     * @param candidates Blocks of the remote file with the same weak checksum
+     * @return Number of copied bytes
+     */
+    private static long copyBlock(@NotNull byte[] data, int length, @NotNull List<Integer> candidates,
+                                  @NotNull BlockChecksumMap blockChecksumMap, @NotNull MessageDigest messageDigest,
+                                  @NotNull BitSet copiedBlocks, @NotNull RandomAccessFile outputFileData,
+                                  @NotNull BlockBitmap bitmap) throws IOException {
+        byte[] strongChecksum = null;
+        long copiedLength = 0;
+        for (int block : candidates) {
+            if (copiedBlocks.get(block))
+                continue;
+            if (strongChecksum == null) {
+                messageDigest.update(data, 0, length);
+                strongChecksum = messageDigest.digest();
+            }
+            if (!MessageDigest.isEqual(strongChecksum, blockChecksumMap.getStrongChecksum(block).getValue()))
+                continue;
+            final long start = (long) block * blockChecksumMap.getBlockSize();
+            outputFileData.seek(start);
+            outputFileData.write(data, 0, length);
+            bitmap.markCompleted(start, start + length);
+            copiedBlocks.set(block);
+            copiedLength += length;
+        }
+        return copiedLength;
+    }
+}
@@ -15,6 +15,7 @@ import org.iyakupov.downloader.core.comms.CommunicationStatus;
 import org.iyakupov.downloader.core.comms.ICommunicatingComponent;
 import org.iyakupov.downloader.core.comms.ICommunicationResult;
 import org.iyakupov.downloader.core.exceptions.BadLocatorException;
+import org.iyakupov.downloader.core.file.FileDigest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,11 +23,33 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 
 /**
  * Downloads files via HTTP
  */
 public class HttpCommunicatingComponent implements ICommunicatingComponent {
+    //Names of the algorithms in the Digest header (see the IANA registry), and in MessageDigest
+    private static final Map<String, String> DIGEST_ALGORITHMS = new HashMap<>();
+    private static final Map<String, String> CHECKSUM_HEADERS = new LinkedHashMap<>();
+    private static final List<String> PREFERRED_DIGEST_ALGORITHMS = Arrays.asList("SHA-512", "SHA-256", "SHA-1", "MD5");
+
+    static {
+        DIGEST_ALGORITHMS.put("sha-512", "SHA-512");
+        DIGEST_ALGORITHMS.put("sha-256", "SHA-256");
+        DIGEST_ALGORITHMS.put("sha", "SHA-1");
+        DIGEST_ALGORITHMS.put("md5", "MD5");
+        CHECKSUM_HEADERS.put("x-checksum-sha256", "SHA-256");
+        CHECKSUM_HEADERS.put("x-checksum-sha1", "SHA-1");
+        CHECKSUM_HEADERS.put("x-checksum-md5", "MD5");
+    }
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private final CloseableHttpClient httpClient;
@@ -57,10 +80,28 @@ public class HttpCommunicatingComponent implements ICommunicatingComponent {
      */
     @Override
     public ICommunicationResult checkRemoteFile(String locator) throws BadLocatorException {
+        return checkRemoteFile(locator, null);
+    }
+
+    /**
+     * Send conditional HTTP HEAD request to an external server: with If-None-Match, if the validator is an entity
+     * tag, or with If-Modified-Since, if it's a date.
+     *
+     * @param locator   URL of the requested resource.
+     * @param validator Entity tag or HTTP date of the version of the file that was downloaded. Null disables the check.
+     * @return Result of this request
+     * @throws BadLocatorException wraps {@link URISyntaxException}
+     */
+    @Override
+    public ICommunicationResult checkRemoteFile(String locator, String validator) throws BadLocatorException {
         final HttpCommunicationResult.Builder resultBuilder = HttpCommunicationResult.builder();
         try {
             final HttpHead httpRequest = new HttpHead(new URL(locator).toURI());
             httpRequest.addHeader(new BasicHeader("Range", "bytes=0-"));
+            if (validator != null && (validator.startsWith("\"") || validator.startsWith("W/")))
+                httpRequest.addHeader(new BasicHeader("If-None-Match", validator));
+            else if (validator != null)
+                httpRequest.addHeader(new BasicHeader("If-Modified-Since", validator));
             httpRequest.setConfig(httpRequestConfig);
 
             logger.debug("Executing request " + httpRequest.getURI());
@@ -70,7 +111,11 @@ public class HttpCommunicatingComponent implements ICommunicatingComponent {
                     response.getStatusLine().getReasonPhrase());
             resultBuilder.setMessage(response.getStatusLine().getReasonPhrase());
 
-            if (statusCode >= 200 && statusCode < 300) { //Success
+            if (statusCode == 304) {
+                resultBuilder.setEntityTag(getEntityTag(response));
+                resultBuilder.setLastModified(getLastModified(response));
+                resultBuilder.setCommunicationStatus(CommunicationStatus.NOT_MODIFIED);
+            } else if (statusCode >= 200 && statusCode < 300) { //Success
                 final Header contentLengthHeader = response.getFirstHeader("content-length");
                 final long contentLength;
                 if (contentLengthHeader != null && contentLengthHeader.getValue() != null &&
@@ -84,6 +129,9 @@ public class HttpCommunicatingComponent implements ICommunicatingComponent {
                 }
 
                 resultBuilder.setSize(contentLength);
+                resultBuilder.setEntityTag(getEntityTag(response));
+                resultBuilder.setLastModified(getLastModified(response));
+                resultBuilder.setDigest(getDigest(response));
                 if (contentLength > 0 && statusCode == 206) {
                     resultBuilder.setCommunicationStatus(CommunicationStatus.PARTIAL_CONTENT_OK);
                 } else {
@@ -91,7 +139,9 @@ public class HttpCommunicatingComponent implements ICommunicatingComponent {
                 }
             } else {
                 logger.error("Download failed - bad HTTP status code: " + statusCode);
-                resultBuilder.setCommunicationStatus(CommunicationStatus.ERROR);
+                resultBuilder.setCommunicationStatus(statusCode >= 500
+                        ? CommunicationStatus.SERVER_ERROR
+                        : CommunicationStatus.ERROR);
             }
         } catch (IOException e) {
             logger.error("Connection to the remote server has failed", e);
@@ -126,6 +176,24 @@ public class HttpCommunicatingComponent implements ICommunicatingComponent {
      */
     @Override
     public ICommunicationResult downloadRemoteFile(String locator, long start, long length) throws BadLocatorException {
+        return downloadRemoteFile(locator, start, length, null);
+    }
+
+    /**
+     * Download a chunk of the given file using HTTP get with If-Range: if the file has changed, the server
+     * sends the whole new version with 200 instead of the chunk, and the response is reported as
+     * {@link CommunicationStatus#CONTENT_CHANGED}.
+     *
+     * @param locator   URL of the requested resource.
+     * @param start     Number of the first byte of the downloadable chunk. Set to zero for full download.
+     * @param length    Length of the downloadable chunk. Set to negative for full download.
+     * @param validator Strong entity tag or HTTP date of the expected version of the file. Null disables the check.
+     * @return Result of this request
+     * @throws BadLocatorException wraps {@link URISyntaxException} and {@link MalformedURLException}
+     */
+    @Override
+    public ICommunicationResult downloadRemoteFile(String locator, long start, long length, String validator)
+            throws BadLocatorException {
         final HttpCommunicationResult.Builder resultBuilder = HttpCommunicationResult.builder();
         try {
             final HttpGet httpRequest = new HttpGet(new URL(locator).toURI());
@@ -136,6 +204,8 @@ public class HttpCommunicatingComponent implements ICommunicatingComponent {
                 end = "";
             }
             httpRequest.addHeader(new BasicHeader("Range", "bytes=" + start + "-" + end));
+            if (validator != null)
+                httpRequest.addHeader(new BasicHeader("If-Range", validator));
             httpRequest.setConfig(httpRequestConfig);
 
             logger.debug("Executing request " + httpRequest.getURI());
@@ -147,7 +217,11 @@ public class HttpCommunicatingComponent implements ICommunicatingComponent {
 
             if (statusCode >= 200 && statusCode < 300) {
                 if (response.getEntity() != null) {
-                    if (statusCode != 206 && (start != 0 || length > 0)) {
+                    if (statusCode != 206 && (start != 0 || length > 0) && validator != null &&
+                            !validator.equals(getEntityTag(response)) && !validator.equals(getLastModified(response))) {
+                        logger.warn("Remote file has changed since the download has started (If-Range failed)");
+                        resultBuilder.setCommunicationStatus(CommunicationStatus.CONTENT_CHANGED);
+                    } else if (statusCode != 206 && (start != 0 || length > 0)) {
                         logger.error("Successful RC partial content not supported (although requested)");
                         resultBuilder.setCommunicationStatus(CommunicationStatus.PARTIAL_CONTENT_NOK);
                     } else if (statusCode == 206) {
@@ -156,14 +230,19 @@ public class HttpCommunicatingComponent implements ICommunicatingComponent {
                         resultBuilder.setCommunicationStatus(CommunicationStatus.OK);
                     }
                     resultBuilder.setSize(response.getEntity().getContentLength());
+                    resultBuilder.setEntityTag(getEntityTag(response));
+                    resultBuilder.setLastModified(getLastModified(response));
                     resultBuilder.setHttpResponse(response);
+                    resultBuilder.setHttpRequest(httpRequest);
                 } else {
                     logger.error("Successful RC but no HTTP response entity");
                     resultBuilder.setCommunicationStatus(CommunicationStatus.ERROR);
                 }
             } else {
                 logger.error("Download failed - bad HTTP status code: " + statusCode);
-                resultBuilder.setCommunicationStatus(CommunicationStatus.ERROR);
+                resultBuilder.setCommunicationStatus(statusCode >= 500
+                        ? CommunicationStatus.SERVER_ERROR
+                        : CommunicationStatus.ERROR);
             }
         } catch (URISyntaxException | MalformedURLException e) {
             throw new BadLocatorException("Incorrect URL", e);
@@ -178,6 +257,64 @@ public class HttpCommunicatingComponent implements ICommunicatingComponent {
         return resultBuilder.createHttpCommunicationResult();
     }
 
+    /**
+     * @param response HTTP response
+     * @return Value of the ETag header, or null if there is none
+     */
+    private static String getEntityTag(HttpResponse response) {
+        final Header entityTagHeader = response.getFirstHeader("etag");
+        return entityTagHeader == null ? null : entityTagHeader.getValue();
+    }
+
+    /**
+     * @param response HTTP response
+     * @return Value of the Last-Modified header, or null if there is none
+     */
+    private static String getLastModified(HttpResponse response) {
+        final Header lastModifiedHeader = response.getFirstHeader("last-modified");
+        return lastModifiedHeader == null ? null : lastModifiedHeader.getValue();
+    }
+
+    /**
+     * Digest of the whole file, as declared by the server. The strongest of the supported ones is chosen.
+     * Supported headers are Digest (RFC 3230, Base64 values), Content-MD5 (Base64) and the X-Checksum-Sha256,
+     * X-Checksum-Sha1 and X-Checksum-Md5 ones (hexadecimal values). The response must cover the whole file.
+     *
+     * @param response HTTP response
+     * @return Digest, or null if there is no supported (and valid) one
+     */
+    private FileDigest getDigest(HttpResponse response) {
+        final Map<String, FileDigest> digests = new HashMap<>(); //by algorithm
+        try {
+            final Header digestHeader = response.getFirstHeader("digest");
+            if (digestHeader != null && digestHeader.getValue() != null) {
+                for (String instanceDigest : digestHeader.getValue().split(",")) {
+                    final int separatorIndex = instanceDigest.indexOf('=');
+                    if (separatorIndex <= 0)
+                        continue;
+                    final String algorithm = DIGEST_ALGORITHMS.get(
+                            instanceDigest.substring(0, separatorIndex).trim().toLowerCase(Locale.ROOT));
+                    if (algorithm != null)
+                        digests.put(algorithm,
+                                FileDigest.fromBase64(algorithm, instanceDigest.substring(separatorIndex + 1).trim()));
+                }
+            }
+            final Header contentMd5Header = response.getFirstHeader("content-md5");
+            if (contentMd5Header != null && contentMd5Header.getValue() != null)
+                digests.putIfAbsent("MD5", FileDigest.fromBase64("MD5", contentMd5Header.getValue().trim()));
+            for (Map.Entry<String, String> checksumHeader : CHECKSUM_HEADERS.entrySet()) {
+                final Header header = response.getFirstHeader(checksumHeader.getKey());
+                if (header != null && header.getValue() != null)
+                    digests.putIfAbsent(checksumHeader.getValue(),
+                            FileDigest.fromHex(checksumHeader.getValue(), header.getValue().trim()));
+            }
+        } catch (IllegalArgumentException e) {
+            logger.warn("Invalid digest header, the digests are ignored", e);
+            return null;
+        }
+        return PREFERRED_DIGEST_ALGORITHMS.stream().map(digests::get).filter(Objects::nonNull).findFirst().orElse(null);
+    }
+
     @Override
     public void close() throws IOException {
         httpClient.close();
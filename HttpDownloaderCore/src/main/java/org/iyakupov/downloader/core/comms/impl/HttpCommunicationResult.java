@@ -1,8 +1,10 @@
 package org.iyakupov.downloader.core.comms.impl;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.iyakupov.downloader.core.comms.CommunicationStatus;
 import org.iyakupov.downloader.core.comms.ICommunicationResult;
+import org.iyakupov.downloader.core.file.FileDigest;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -18,6 +20,10 @@ public class HttpCommunicationResult implements ICommunicationResult {
     private String message = null;
     private CloseableHttpResponse httpResponse = null;
     private long size = -1;
+    private HttpRequestBase httpRequest = null;
+    private String entityTag = null;
+    private String lastModified = null;
+    private FileDigest digest = null;
 
     public HttpCommunicationResult(CommunicationStatus communicationStatus, String message, CloseableHttpResponse httpResponse, long size) {
         this.communicationStatus = communicationStatus;
@@ -26,6 +32,14 @@ public class HttpCommunicationResult implements ICommunicationResult {
         this.size = size;
     }
 
+    private HttpCommunicationResult(Builder builder) {
+        this(builder.communicationStatus, builder.message, builder.httpResponse, builder.size);
+        this.httpRequest = builder.httpRequest;
+        this.entityTag = builder.entityTag;
+        this.lastModified = builder.lastModified;
+        this.digest = builder.digest;
+    }
+
     @NotNull
     @Override
     public CommunicationStatus getResponseCode() {
@@ -68,7 +82,25 @@ public class HttpCommunicationResult implements ICommunicationResult {
         return size;
     }
 
-    static Builder builder() {
+    @Nullable
+    @Override
+    public String getEntityTag() {
+        return entityTag;
+    }
+
+    @Nullable
+    @Override
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    @Nullable
+    @Override
+    public FileDigest getDigest() {
+        return digest;
+    }
+
+    public static Builder builder() {
         return new Builder();
     }
 
@@ -78,34 +110,75 @@ public class HttpCommunicationResult implements ICommunicationResult {
             httpResponse.close();
     }
 
-    static class Builder {
+    /**
+     * Abort the HTTP request, which shuts the connection down. If the request is unknown, the response is closed
+     * instead (for a response that has not been consumed, this shuts the connection down as well).
+     */
+    @Override
+    public void abort() {
+        if (httpRequest != null) {
+            httpRequest.abort();
+        } else if (httpResponse != null) {
+            try {
+                httpResponse.close();
+            } catch (IOException ignored) {
+                //The connection is being torn down anyway
+            }
+        }
+    }
+
+    public static class Builder {
         private CommunicationStatus communicationStatus;
         private String message;
         private CloseableHttpResponse httpResponse;
         private long size;
+        private HttpRequestBase httpRequest;
+        private String entityTag;
+        private String lastModified;
+        private FileDigest digest;
 
-        Builder setCommunicationStatus(CommunicationStatus communicationStatus) {
+        public Builder setCommunicationStatus(CommunicationStatus communicationStatus) {
             this.communicationStatus = communicationStatus;
             return this;
         }
 
-        Builder setMessage(String message) {
+        public Builder setMessage(String message) {
             this.message = message;
             return this;
         }
 
-        Builder setHttpResponse(CloseableHttpResponse httpResponse) {
+        public Builder setHttpResponse(CloseableHttpResponse httpResponse) {
             this.httpResponse = httpResponse;
             return this;
         }
 
-        Builder setSize(long size) {
+        public Builder setSize(long size) {
             this.size = size;
             return this;
         }
 
-        HttpCommunicationResult createHttpCommunicationResult() {
-            return new HttpCommunicationResult(communicationStatus, message, httpResponse, size);
+        public Builder setHttpRequest(HttpRequestBase httpRequest) {
+            this.httpRequest = httpRequest;
+            return this;
+        }
+
+        public Builder setEntityTag(String entityTag) {
+            this.entityTag = entityTag;
+            return this;
+        }
+
+        public Builder setLastModified(String lastModified) {
+            this.lastModified = lastModified;
+            return this;
+        }
+
+        public Builder setDigest(FileDigest digest) {
+            this.digest = digest;
+            return this;
+        }
+
+        public HttpCommunicationResult createHttpCommunicationResult() {
+            return new HttpCommunicationResult(this);
         }
     }
 }
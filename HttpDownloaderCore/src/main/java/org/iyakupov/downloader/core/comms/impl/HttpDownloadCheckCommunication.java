@@ -1,21 +1,30 @@
 package org.iyakupov.downloader.core.comms.impl;
 
+import org.iyakupov.downloader.core.cache.DownloadCache;
 import org.iyakupov.downloader.core.comms.CommunicationStatus;
 import org.iyakupov.downloader.core.comms.ICommunication;
 import org.iyakupov.downloader.core.comms.ICommunicatingComponent;
 import org.iyakupov.downloader.core.comms.ICommunicationResult;
+import org.iyakupov.downloader.core.comms.MirrorSelector;
 import org.iyakupov.downloader.core.dispatch.IDispatchingQueue;
 import org.iyakupov.downloader.core.dispatch.TaskPriority;
+import org.iyakupov.downloader.core.exceptions.BadLocatorException;
+import org.iyakupov.downloader.core.file.BlockChecksumMap;
+import org.iyakupov.downloader.core.file.PieceManifest;
 import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFile;
 import org.iyakupov.downloader.core.file.internal.impl.DownloadableFilePart;
 import org.iyakupov.downloader.core.file.state.FileDownloadState;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Algorithm that sends HTTP HEAD to server, obtains file size and checks, whether partial download is possible.
@@ -48,10 +57,34 @@ public class HttpDownloadCheckCommunication implements ICommunication {
     @Override
     public void run() {
         logger.debug("Started " + getClass().getSimpleName() + " for task " + file.getLocator());
+        if (copyFromCache())
+            return;
 
-        try(final ICommunicationResult communicationResult = comm.checkRemoteFile(file.getLocator())) {
+        try(final ICommunicationResult communicationResult = checkSources()) {
+            final PieceManifest pieceManifest = file.getDownloadOptions().getPieceManifest();
+            if (pieceManifest != null && isAvailable(communicationResult) &&
+                    !pieceManifest.matches(communicationResult.getSize())) {
+                logger.error("Piece manifest " + pieceManifest + " does not match the size of the file (" +
+                        communicationResult.getSize() + "). File: " + file);
+                file.errorHappened();
+                return;
+            }
+            if (isAvailable(communicationResult) && dispatcher.attachToIdenticalDownload(file,
+                    communicationResult.getEntityTag(), communicationResult.getSize())) {
+                logger.debug("Another download fetches the same content, the file will be copied from it. File: " + file);
+                return;
+            }
+            file.setTotalLength(communicationResult.getSize());
+            file.setRemoteDigest(communicationResult.getDigest());
+            dispatcher.startPieceVerification(file);
             final int maxThreadCount = file.getMaxThreadCount();
-            if (maxThreadCount > 1 && communicationResult.getResponseCode() == CommunicationStatus.PARTIAL_CONTENT_OK) {
+            if (isDeltaApplicable(communicationResult)) { //Single part, which will have gaps
+                Files.deleteIfExists(file.getOutputFile().toPath());
+                final DownloadableFilePart part = new DownloadableFilePart(file.getOutputFile(), file.getLocator(), 0,
+                        communicationResult.getSize());
+                file.addPart(part);
+                dispatcher.submitDeltaTask(file, part);
+            } else if (maxThreadCount > 1 && communicationResult.getResponseCode() == CommunicationStatus.PARTIAL_CONTENT_OK) {
                 final long chunkSize = communicationResult.getSize() / maxThreadCount;
                 if (chunkSize == 0) {
                     logger.error("Number of bytes in the file is less than desired number of chunks. File: " + file);
@@ -92,4 +125,148 @@ public class HttpDownloadCheckCommunication implements ICommunication {
                 file.cancel();
         }
     }
+
+    /**
+     * Serve the file from the download cache, if the cached version has not changed on the server
+     * (the server answers a conditional request with 304 Not Modified). The copy is saved as a {@link LocalCopy}.
+     *
+     * @return Whether the file was copied from the cache. If not, it has to be downloaded.
+     */
+    private boolean copyFromCache() {
+        final DownloadCache cache = dispatcher.getDownloadCache();
+        if (cache == null)
+            return false;
+        final DownloadCache.Entry entry = cache.lookup(file.getLocator());
+        if (entry == null || !isNotModified(entry)) {
+            cache.recordMiss();
+            return false;
+        }
+        if (!cache.retrieve(entry, file.getOutputFile())) {
+            logger.info("Cached version of file " + file.getLocator() + " was lost, downloading it");
+            cache.recordMiss();
+            return false;
+        }
+
+        logger.info("File " + file.getOutputFile() + " has not changed since it was cached, copied it from the cache");
+        LocalCopy.completeCopiedFile(dispatcher, file, entry.getLength(), entry.getValidator());
+        return true;
+    }
+
+    /**
+     * @return Whether the server confirms that the cached version of the file is still the current one
+     */
+    private boolean isNotModified(@NotNull DownloadCache.Entry entry) {
+        try (final ICommunicationResult result = comm.checkRemoteFile(file.getLocator(), entry.getValidator())) {
+            return result.getResponseCode() == CommunicationStatus.NOT_MODIFIED;
+        } catch (BadLocatorException | IOException e) {
+            logger.warn("Failed to revalidate the cached version of file " + file.getLocator(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Check all the sources of the file. The sources that are not available, or that serve different content
+     * than the first available one, are removed from the file's mirrors. The version of the file that each
+     * remaining source serves is stored, so that the parts are never resumed from another version.
+     *
+     * @return Check result of the first available source (or of the primary one, if none is available)
+     */
+    @NotNull
+    private ICommunicationResult checkSources() throws IOException {
+        final MirrorSelector mirrors = file.getMirrorSelector();
+        final List<String> locators = mirrors.getLocators();
+        if (locators.size() <= 1) {
+            final ICommunicationResult result = comm.checkRemoteFile(file.getLocator());
+            file.setResumeValidator(file.getLocator(), getResumeValidator(result));
+            return result;
+        }
+
+        final Map<String, ICommunicationResult> results = new LinkedHashMap<>();
+        try {
+            for (String locator : locators) {
+                try {
+                    results.put(locator, comm.checkRemoteFile(locator));
+                } catch (BadLocatorException e) {
+                    logger.error("Bad locator of a mirror: " + locator, e);
+                }
+            }
+            if (results.isEmpty())
+                return comm.checkRemoteFile(file.getLocator()); //Fails the same way as without mirrors
+
+            final ICommunicationResult reference = results.values().stream()
+                    .filter(HttpDownloadCheckCommunication::isAvailable)
+                    .findFirst()
+                    .orElse(results.getOrDefault(file.getLocator(), results.values().iterator().next()));
+            for (String locator : locators) {
+                final ICommunicationResult result = results.get(locator);
+                if (result == null || isAvailable(reference) && !isSameContent(reference, result)) {
+                    logger.warn("Source " + locator + " is unavailable or its content differs from the other ones");
+                    mirrors.removeLocator(locator);
+                } else {
+                    file.setResumeValidator(locator, getResumeValidator(result));
+                }
+            }
+            results.values().remove(reference);
+            return reference;
+        } finally {
+            for (ICommunicationResult result : results.values())
+                result.close();
+        }
+    }
+
+    /**
+     * @return Whether the file may be built from the blocks of its previous version. The ranges that the previous
+     * version does not have are downloaded separately.
+     */
+    private boolean isDeltaApplicable(@NotNull ICommunicationResult result) {
+        final File previousVersion = file.getDownloadOptions().getPreviousVersion();
+        final BlockChecksumMap blockChecksumMap = file.getDownloadOptions().getBlockChecksumMap();
+        if (previousVersion == null || blockChecksumMap == null) {
+            return false;
+        } else if (result.getResponseCode() != CommunicationStatus.PARTIAL_CONTENT_OK ||
+                blockChecksumMap.getTotalLength() != result.getSize()) {
+            logger.warn("Block checksum map " + blockChecksumMap + " does not match the remote file, or the server " +
+                    "does not support partial download. The whole file is downloaded. File: " + file);
+            return false;
+        } else if (!previousVersion.isFile() ||
+                previousVersion.getAbsoluteFile().equals(file.getOutputFile().getAbsoluteFile())) {
+            logger.warn("Previous version " + previousVersion + " does not exist, or it's the output file. " +
+                    "The whole file is downloaded. File: " + file);
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isAvailable(@NotNull ICommunicationResult result) {
+        return result.getResponseCode() == CommunicationStatus.PARTIAL_CONTENT_OK ||
+                result.getResponseCode() == CommunicationStatus.OK;
+    }
+
+    /**
+     * @return Whether two sources serve the same version of the file, with the same support of partial download
+     */
+    private static boolean isSameContent(@NotNull ICommunicationResult reference, @NotNull ICommunicationResult mirror) {
+        if (mirror.getResponseCode() != reference.getResponseCode() || mirror.getSize() != reference.getSize())
+            return false;
+        final String referenceTag = reference.getEntityTag();
+        final String mirrorTag = mirror.getEntityTag();
+        return referenceTag == null || mirrorTag == null || stripWeakness(referenceTag).equals(stripWeakness(mirrorTag));
+    }
+
+    /**
+     * @return Validator for If-Range: the entity tag, if it's strong (weak ones may not be used with ranges),
+     * or the modification date otherwise. Null if the source has sent neither.
+     */
+    @Nullable
+    private static String getResumeValidator(@NotNull ICommunicationResult result) {
+        final String entityTag = result.getEntityTag();
+        if (entityTag != null && !entityTag.startsWith("W/"))
+            return entityTag;
+        return result.getLastModified();
+    }
+
+    @NotNull
+    private static String stripWeakness(@NotNull String entityTag) {
+        return entityTag.startsWith("W/") ? entityTag.substring(2) : entityTag;
+    }
 }
@@ -1,30 +1,45 @@
 package org.iyakupov.downloader.core.comms.impl;
 
+import org.apache.http.ConnectionClosedException;
 import org.iyakupov.downloader.core.AppSettings;
 import org.iyakupov.downloader.core.comms.CommunicationStatus;
-import org.iyakupov.downloader.core.comms.ICommunication;
 import org.iyakupov.downloader.core.comms.ICommunicatingComponent;
 import org.iyakupov.downloader.core.comms.ICommunicationResult;
+import org.iyakupov.downloader.core.comms.IFilePartCommunication;
+import org.iyakupov.downloader.core.comms.MirrorSelector;
+import org.iyakupov.downloader.core.comms.ParkedStreamRegistry;
+import org.iyakupov.downloader.core.comms.ParkedStreamRegistry.ParkedStream;
 import org.iyakupov.downloader.core.dispatch.IDispatchingQueue;
+import org.iyakupov.downloader.core.dispatch.RetryableError;
 import org.iyakupov.downloader.core.dispatch.TaskPriority;
+import org.iyakupov.downloader.core.file.FileDigest;
+import org.iyakupov.downloader.core.file.internal.BlockBitmap;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadGroup;
 import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFile;
-import org.iyakupov.downloader.core.file.IDownloadableFilePart;
 import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFilePart;
+import org.iyakupov.downloader.core.file.internal.StreamingDigest;
 import org.iyakupov.downloader.core.file.state.FilePartLengthState;
+import org.iyakupov.downloader.core.throttle.BandwidthThrottle;
+import org.iyakupov.downloader.core.throttle.TokenBucket;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.file.Files;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import static org.iyakupov.downloader.core.file.state.FilePartDownloadState.*;
 
 /**
  * This algorithm downloads data from HTTP stream to a temporary file
  */
-public class HttpPartDownloadCommunication implements ICommunication {
-    private final Logger logger = LoggerFactory.getLogger(HttpPartDownloadCommunication.class);
+public class HttpPartDownloadCommunication implements IFilePartCommunication {
+    private final static Logger logger = LoggerFactory.getLogger(HttpPartDownloadCommunication.class);
 
     @NotNull
     private final TaskPriority priority;
@@ -41,6 +56,10 @@ public class HttpPartDownloadCommunication implements ICommunication {
     @NotNull
     private final IManagedDownloadableFilePart filePart;
 
+    //Mirror that the data is read from (directly, or via a parked stream), or null until the data is requested
+    @Nullable
+    private String source = null;
+
     public HttpPartDownloadCommunication(@NotNull TaskPriority priority,
                                          @NotNull IDispatchingQueue dispatcher,
                                          @NotNull ICommunicatingComponent comm,
@@ -58,6 +77,18 @@ public class HttpPartDownloadCommunication implements ICommunication {
         return priority.getNumericValue();
     }
 
+    @NotNull
+    @Override
+    public IManagedDownloadableFile getFile() {
+        return file;
+    }
+
+    @NotNull
+    @Override
+    public IManagedDownloadableFilePart getFilePart() {
+        return filePart;
+    }
+
     @Override
     public void run() {
         try {
@@ -73,9 +104,14 @@ public class HttpPartDownloadCommunication implements ICommunication {
 
             //Unsaved file
             if (filePart.getRemainingLength() <= 0 && filePart.getLengthState() != FilePartLengthState.YET_UNKNOWN) {
-                if (file.getNonSuccessfullyDownloadedPartsCount() == 0) {
+                //A part that was completed before a restart (see the download journal) only has to be accounted for
+                final int remainingPartsCount = file.getNonSuccessfullyDownloadedPartsCount() > 0 &&
+                        filePart.getLengthState() == FilePartLengthState.KNOWN ? file.completePart(filePart) : 0;
+                if (remainingPartsCount != 0) {
+                    logger.debug("Part was already downloaded (or dropped): " + filePart);
+                } else if (file.getNonSuccessfullyDownloadedPartsCount() == 0) {
                     try {
-                        combineTemporaryFiles(file);
+                        combineTemporaryFiles(dispatcher, file);
                     } catch (IOException e) {
                         error("Failed to copy data from temporary file to final one", e);
                     }
@@ -86,21 +122,57 @@ public class HttpPartDownloadCommunication implements ICommunication {
                 return;
             }
 
-            //Need to download the data
-            try (final ICommunicationResult communicationResult = comm.downloadRemoteFile(
-                    filePart.getLocator(), filePart.getCurrentStartPosition(), filePart.getRemainingLength())) {
+            //Need to download the data. An evicted part may continue to read from its parked stream.
+            final ParkedStreamRegistry parkedStreams = dispatcher.getParkedStreamRegistry();
+            final ParkedStream parkedStream = parkedStreams == null ? null : parkedStreams.unpark(filePart);
+            final MirrorSelector mirrors = file.getMirrorSelector();
+            if (parkedStream == null) {
+                source = mirrors.acquire();
+            } else {
+                source = parkedStream.getSource(); //The stream is still connected to the mirror it was opened on
+                mirrors.reacquire(source);
+            }
+            final long attemptStartTime = System.nanoTime();
+            final long attemptStartThrottledTime = filePart.getThrottledTime();
+            final long attemptStartBytesCount = filePart.getDownloadedBytesCount();
+            final ICommunicationResult communicationResult;
+            try {
+                communicationResult = parkedStream != null
+                        ? parkedStream.getCommunicationResult()
+                        : requestData(source);
+            } catch (RuntimeException e) {
+                releaseSource(mirrors, attemptStartTime, attemptStartThrottledTime, attemptStartBytesCount);
+                throw e;
+            }
+            final Runnable abortHook = communicationResult::abort;
+            boolean streamParked = false;
+            try {
+                filePart.setAbortHook(abortHook);
+                if (filePart.getStatus() != DOWNLOADING) //Paused or cancelled while we were connecting
+                    communicationResult.abort();
+
+                final boolean statusOk = communicationResult.getResponseCode() == CommunicationStatus.PARTIAL_CONTENT_OK ||
+                        !filePart.isDownloadResumeSupported() && communicationResult.getResponseCode() == CommunicationStatus.OK;
 
-                if (filePart.getLengthState() == FilePartLengthState.YET_UNKNOWN) {
+                //The size of a failed response says nothing about the part, and the part may be retried
+                if (statusOk && filePart.getLengthState() == FilePartLengthState.YET_UNKNOWN) {
                     logger.debug("Updating total length of chunk " + filePart + ". Now it's " + communicationResult.getSize());
                     if (!filePart.updateTotalLength(communicationResult.getSize()))
                         logger.error("Failed to update the length of part " + filePart);
                 }
-
-                final boolean statusOk = communicationResult.getResponseCode() == CommunicationStatus.PARTIAL_CONTENT_OK ||
-                        !filePart.isDownloadResumeSupported() && communicationResult.getResponseCode() == CommunicationStatus.OK;
-                final InputStream responseDataStream = communicationResult.getResponseDataStream();
+                final InputStream responseDataStream = parkedStream != null
+                        ? parkedStream.getStream()
+                        : communicationResult.getResponseDataStream();
                 if (responseDataStream != null && statusOk) {
-                    try (OutputStream outputFileStream = new FileOutputStream(filePart.getOutputFile(), true)) {
+                    final BandwidthThrottle bandwidthThrottle = dispatcher.getBandwidthThrottle();
+                    final TokenBucket globalBucket = bandwidthThrottle == null ? null : bandwidthThrottle.getGlobalBucket();
+                    final TokenBucket hostBucket = bandwidthThrottle == null ? null :
+                            bandwidthThrottle.getHostBucket(BandwidthThrottle.getHost(source));
+                    //Positional write: a gap-filling part writes in the middle of the file of another part
+                    try (RandomAccessFile outputFileData = new RandomAccessFile(filePart.getOutputFile(), "rw")) {
+                        outputFileData.seek(filePart.getCurrentStartPosition() - filePart.getOutputFileStart());
+                        final BlockBitmap blockBitmap = file.getBlockBitmap();
+                        final StreamingDigest digest = file.getStreamingDigest();
                         long bytesSinceLastMeasure = 0;
                         long lastMeasureTimestamp = System.nanoTime();
                         final byte[] buffer = new byte[AppSettings.getDownloadBufferSize()];
@@ -113,10 +185,15 @@ public class HttpPartDownloadCommunication implements ICommunication {
 
                             //Copy
                             logger.trace("Wrote " + lastRead + " bytes to " + filePart.getOutputFile());
-                            outputFileStream.write(buffer, 0, lastRead);
-                            outputFileStream.flush();
+                            outputFileData.write(buffer, 0, lastRead);
 
-                            //Increment counters
+                            //Increment counters. The bitmap goes first: the bytes before the current position of
+                            //a part must never look like an unplanned gap
+                            final long writePosition = filePart.getCurrentStartPosition();
+                            if (digest != null)
+                                digest.update(writePosition, buffer, 0, lastRead);
+                            if (blockBitmap != null)
+                                blockBitmap.markCompleted(writePosition, writePosition + lastRead);
                             filePart.incrementDownloadedBytesCount(lastRead);
                             bytesSinceLastMeasure += lastRead;
                             final long currentTime = System.nanoTime();
@@ -127,6 +204,13 @@ public class HttpPartDownloadCommunication implements ICommunication {
                                 lastMeasureTimestamp = System.nanoTime();
                             }
 
+                            //Throttle
+                            throttle(lastRead, globalBucket, hostBucket);
+
+                            //Give the thread back, if the pool is shrinking gracefully
+                            if (filePart.yieldIfDue())
+                                logger.debug("Task " + filePart + " has exhausted its quota, yielding");
+
                             //Check status
                             if (filePart.getStatus() == CANCELLED) {
                                 logger.debug("Task " + filePart + " cancelled, exiting worker");
@@ -138,6 +222,8 @@ public class HttpPartDownloadCommunication implements ICommunication {
                                     return;
                                 } else if (filePart.getStatus() == SUSPEND_REQUESTED) {
                                     logger.info("Task " + filePart + " evicted, re-submitting");
+                                    streamParked = parkedStreams != null &&
+                                            parkedStreams.park(filePart, source, communicationResult, responseDataStream);
                                     dispatcher.reSubmitEvictedTask(file, filePart);
                                     return;
                                 } else if (filePart.getStatus() != DOWNLOADING) {
@@ -154,32 +240,122 @@ public class HttpPartDownloadCommunication implements ICommunication {
                     if (filePart.getLengthState() == FilePartLengthState.UNKNOWN ||
                             filePart.getRemainingLength() <= 0 && filePart.getLengthState() == FilePartLengthState.KNOWN) {
                         logger.debug("Finished downloading part  " + filePart);
-                        filePart.completeSuccessfully();
-                        if (file.decrementAndGetNonSuccessfullyDownloadedPartsCount() == 0) {
-                            combineTemporaryFiles(file);
+                        if (file.completePart(filePart) == 0) {
+                            combineTemporaryFiles(dispatcher, file);
                         }
                     } else {
-                        error("Stream has ended, but remaining length is greater than zero", null);
+                        error("Stream has ended, but remaining length is greater than zero", null,
+                                RetryableError.CONNECTION_FAILURE);
                     }
+                } else if (communicationResult.getResponseCode() == CommunicationStatus.CONTENT_CHANGED) {
+                    //Not an error of this part: the parts of the old version are useless
+                    if (!dispatcher.replanChangedFile(file, filePart))
+                        logger.debug("Remote file has changed, the download is already re-planned: " + filePart);
                 } else if (communicationResult.getResponseCode() == CommunicationStatus.OK) {
                     error("Expected to be able to perform partial download of this file part, " +
                             "but the server has returned unsuitable response code", null);
                 } else {
-                    error("Bad response code: " + communicationResult.getResponseCode(), null);
+                    error("Bad response code: " + communicationResult.getResponseCode(), null,
+                            toRetryableError(communicationResult.getResponseCode()));
                 }
+            } finally {
+                filePart.clearAbortHook(abortHook); //The part might be already running in another worker
+                if (!streamParked)
+                    communicationResult.close();
+                releaseSource(mirrors, attemptStartTime, attemptStartThrottledTime, attemptStartBytesCount);
             }
         } catch (FileNotFoundException e) {
             error("Failed to write to a temporary file. File not found", e);
         } catch (IOException | IllegalStateException e) {
-            if (filePart.getStatus() != CANCELLED) {
-                error("Failed to read from HTTP stream or to write to the output file stream", e);
+            //The transfer might have been aborted on purpose
+            if (filePart.getStatus() == CANCELLED) {
+                logger.debug("Task " + filePart + " cancelled, exiting worker");
+            } else if (filePart.getStatus() == PAUSE_REQUESTED) {
+                logger.debug("Task " + filePart + " paused, exiting worker");
+                filePart.confirmPause();
+            } else if (filePart.getStatus() == SUSPEND_REQUESTED) {
+                logger.info("Task " + filePart + " evicted, re-submitting");
+                dispatcher.reSubmitEvictedTask(file, filePart);
+            } else {
+                error("Failed to read from HTTP stream or to write to the output file stream", e, toRetryableError(e));
             }
         } finally {
             filePart.setDownloadSpeed(0);
         }
     }
 
+    /**
+     * Request the remaining data of the part. If the version of the file that the source has served
+     * during the check is known, the request succeeds only if the file has not changed since.
+     *
+     * @param source Locator of the source
+     * @return Result of the request
+     */
+    @NotNull
+    private ICommunicationResult requestData(@NotNull String source) {
+        final String validator = file.getResumeValidator(source);
+        if (validator == null)
+            return comm.downloadRemoteFile(source, filePart.getCurrentStartPosition(), filePart.getRemainingLength());
+        return comm.downloadRemoteFile(source, filePart.getCurrentStartPosition(), filePart.getRemainingLength(),
+                validator);
+    }
+
+    /**
+     * Let the mirror selector know the throughput of the source that this attempt has used
+     */
+    private void releaseSource(@NotNull MirrorSelector mirrors, long startTime, long startThrottledTime,
+                               long startBytesCount) {
+        if (source == null)
+            return;
+        final long elapsedTime = System.nanoTime() - startTime - (filePart.getThrottledTime() - startThrottledTime);
+        mirrors.release(source, filePart.getDownloadedBytesCount() - startBytesCount, elapsedTime);
+    }
+
+    /**
+     * Charge the transferred bytes to all the rate limiters that apply to this part, and wait as long
+     * as the most restrictive of them requires
+     *
+     * @param bytes        Number of bytes that were read
+     * @param globalBucket Dispatcher-wide limiter, or null
+     * @param hostBucket   Limiter of the remote host, or null
+     */
+    private void throttle(long bytes, TokenBucket globalBucket, TokenBucket hostBucket) {
+        long delay = file.getTokenBucket().reserve(bytes);
+        if (globalBucket != null)
+            delay = Math.max(delay, globalBucket.reserve(bytes));
+        if (hostBucket != null)
+            delay = Math.max(delay, hostBucket.reserve(bytes));
+        for (IManagedDownloadGroup group = file.getGroup(); group != null; group = group.getParent())
+            delay = Math.max(delay, group.getTokenBucket().reserve(bytes));
+        if (delay > 0) {
+            filePart.addThrottledTime(delay);
+            TokenBucket.parkNanos(delay);
+        }
+    }
+
     private void error(String errorMessage, Exception e) {
+        error(errorMessage, e, null);
+    }
+
+    /**
+     * Ask the Dispatcher to retry the download if the error is transient, or mark the part as FAILED otherwise
+     *
+     * @param errorMessage   Error message
+     * @param e              Exception, if any
+     * @param retryableError Class of the error, or null if another attempt would not help
+     */
+    private void error(String errorMessage, Exception e, @Nullable RetryableError retryableError) {
+        //Without range support, the part would be re-downloaded from the start and appended to the data we already have
+        final boolean canResume = filePart.isDownloadResumeSupported() || filePart.getDownloadedBytesCount() == 0;
+        if (retryableError != null && source != null)
+            file.getMirrorSelector().reportFailure(source); //The next attempt fails over to another mirror
+        if (retryableError != null && canResume && filePart.getStatus() == DOWNLOADING &&
+                dispatcher.retryFailedTask(file, filePart, retryableError)) {
+            logger.warn(errorMessage + "; download will be retried. Part: " + filePart +
+                    (e == null ? "" : "; Exception text: " + e));
+            return;
+        }
+
         if (e == null) {
             logger.error(errorMessage);
             filePart.completeWithError(errorMessage);
@@ -189,25 +365,106 @@ public class HttpPartDownloadCommunication implements ICommunication {
         }
     }
 
+    @Nullable
+    private static RetryableError toRetryableError(@NotNull CommunicationStatus responseCode) {
+        switch (responseCode) {
+            case UNAVAILABLE:
+                return RetryableError.CONNECTION_FAILURE;
+            case SERVER_ERROR:
+                return RetryableError.SERVER_ERROR;
+            case PARTIAL_CONTENT_NOK:
+                return RetryableError.PARTIAL_CONTENT_NOK;
+            default:
+                return null;
+        }
+    }
+
+    @Nullable
+    private static RetryableError toRetryableError(@NotNull Exception e) {
+        if (e instanceof SocketTimeoutException)
+            return RetryableError.READ_TIMEOUT;
+        if (e instanceof SocketException || e instanceof ConnectionClosedException || e instanceof EOFException)
+            return RetryableError.CONNECTION_FAILURE;
+        return null;
+    }
+
     /**
      * Combine all temporary files into one resulting file.
      *
-     * @param file File download request
+     * The saved file is stored in the download cache and deduplicated, if these are enabled.
+     *
+     * @param dispatcher Dispatcher, which owns the download cache
+     * @param file       File download request
      * @throws IOException in case of any problems reading or writing files
      */
-    private void combineTemporaryFiles(IManagedDownloadableFile file) throws IOException {
-        if (file.getDownloadableParts().size() <= 1) {
-            file.markAsSaved();
-            return; //Already in the resulting file
+    static void combineTemporaryFiles(IDispatchingQueue dispatcher, IManagedDownloadableFile file) throws IOException {
+        //Gap-filling parts have written into the files of the other parts
+        final List<IManagedDownloadableFilePart> parts = file.getDownloadableParts().stream()
+                .filter(p -> !p.isGapPart())
+                .collect(Collectors.toList());
+        final StreamingDigest digest = file.getStreamingDigest();
+        final byte[] buffer = new byte[AppSettings.getDownloadBufferSize()];
+        if (parts.size() <= 1) {
+            //Already in the resulting file. Only the data that was not hashed during the download is read.
+            if (digest != null) {
+                try (InputStream outputFileData = new FileInputStream(file.getOutputFile())) {
+                    final long hashedLength = digest.getHashedLength();
+                    if (outputFileData.skip(hashedLength) == hashedLength)
+                        digest.updateTail(hashedLength, outputFileData, buffer);
+                }
+            }
+            if (verifyDigest(file, digest))
+                markAsSaved(dispatcher, file);
+            return;
         }
 
+        //The data is hashed while it's copied, except for the prefix that was hashed during the download
         try (OutputStream outputFileStream = new FileOutputStream(file.getOutputFile())) {
-            for (IDownloadableFilePart part : file.getDownloadableParts()) {
+            for (IManagedDownloadableFilePart part : parts) {
                 logger.debug("Copy data from " + part.getOutputFile() + " to " + file.getOutputFile());
-                Files.copy(part.getOutputFile().toPath(), outputFileStream);
+                try (InputStream partData = new FileInputStream(part.getOutputFile())) {
+                    long position = part.getOutputFileStart();
+                    int lastRead;
+                    while ((lastRead = partData.read(buffer)) > 0) {
+                        outputFileStream.write(buffer, 0, lastRead);
+                        if (digest != null)
+                            digest.updateTail(position, buffer, 0, lastRead);
+                        position += lastRead;
+                    }
+                }
                 Files.delete(part.getOutputFile().toPath());
             }
-            file.markAsSaved();
         }
+        if (verifyDigest(file, digest))
+            markAsSaved(dispatcher, file);
+    }
+
+    /**
+     * Mark the file as saved, and store it in the download cache and replace it with a hard link to an identical
+     * file in the background
+     */
+    private static void markAsSaved(IDispatchingQueue dispatcher, IManagedDownloadableFile file) {
+        file.markAsSaved();
+        dispatcher.submitSavedFileTask(file);
+    }
+
+    /**
+     * Compare the digest of the file with the expected one
+     *
+     * @param digest Digest that has hashed the whole file, or null if the file is not hashed
+     * @return Whether the file may be marked as saved. If not, the file has failed.
+     */
+    private static boolean verifyDigest(IManagedDownloadableFile file, @Nullable StreamingDigest digest) {
+        if (digest == null)
+            return true;
+        final FileDigest fileDigest = digest.finish();
+        file.setDigest(fileDigest);
+        final FileDigest expectedDigest = file.getExpectedDigest();
+        if (expectedDigest == null || expectedDigest.equals(fileDigest))
+            return true;
+        logger.error("Digest of the downloaded file is " + fileDigest + ", but " + expectedDigest +
+                " was expected. File: " + file);
+        file.errorHappened();
+        return false;
     }
 }
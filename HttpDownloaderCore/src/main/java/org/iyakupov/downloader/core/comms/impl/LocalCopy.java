@@ -0,0 +1,94 @@
+package org.iyakupov.downloader.core.comms.impl;
+
+import org.iyakupov.downloader.core.dispatch.IDispatchingQueue;
+import org.iyakupov.downloader.core.file.internal.BlockBitmap;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFile;
+import org.iyakupov.downloader.core.file.internal.impl.DownloadableFilePart;
+import org.iyakupov.downloader.core.file.state.FileDownloadState;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Algorithm that saves a file by copying its content from a local file, which another download has already
+ * fetched, instead of downloading it. The copy is saved as if it was downloaded by a single part,
+ * so its digest and pieces are verified as usual.
+ */
+public class LocalCopy implements Runnable {
+    private final static Logger logger = LoggerFactory.getLogger(LocalCopy.class);
+
+    @NotNull
+    private final IDispatchingQueue dispatcher;
+
+    @NotNull
+    private final IManagedDownloadableFile file;
+
+    @NotNull
+    private final File source;
+
+    /**
+     * @param dispatcher Dispatcher of the file
+     * @param file       File download request without parts
+     * @param source     Local file with the same content as the remote one
+     */
+    public LocalCopy(@NotNull IDispatchingQueue dispatcher, @NotNull IManagedDownloadableFile file,
+                     @NotNull File source) {
+        this.dispatcher = dispatcher;
+        this.file = file;
+        this.source = source;
+    }
+
+    @Override
+    public void run() {
+        if (file.getStatus() == FileDownloadState.CANCELLED) {
+            logger.debug("File was cancelled before it was copied from " + source + ". File: " + file);
+            return;
+        }
+        try {
+            Files.copy(source.toPath(), file.getOutputFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.error("Failed to copy file " + source + " to " + file.getOutputFile(), e);
+            file.errorHappened();
+            return;
+        }
+        logger.info("Copied file " + source + " to " + file.getOutputFile());
+        completeCopiedFile(dispatcher, file, file.getOutputFile().length(), null);
+    }
+
+    /**
+     * Account for the content that was copied into the output file of a file without parts, and save the file
+     *
+     * @param length    Size of the copied content in bytes
+     * @param validator Version of the content (see {@link IManagedDownloadableFile#getResumeValidator(String)}),
+     *                  or null if it's unknown
+     */
+    static void completeCopiedFile(@NotNull IDispatchingQueue dispatcher, @NotNull IManagedDownloadableFile file,
+                                   long length, @Nullable String validator) {
+        file.setTotalLength(length);
+        file.setRemoteDigest(null);
+        if (validator != null)
+            file.setResumeValidator(file.getLocator(), validator);
+        dispatcher.startPieceVerification(file);
+        final DownloadableFilePart part = new DownloadableFilePart(file.getOutputFile(), file.getLocator(), 0, length);
+        file.addPart(part);
+        part.start();
+        part.incrementDownloadedBytesCount(length);
+        final BlockBitmap bitmap = file.getBlockBitmap();
+        if (bitmap != null)
+            bitmap.markCompleted(0, length);
+        if (file.completePart(part) == 0) {
+            try {
+                HttpPartDownloadCommunication.combineTemporaryFiles(dispatcher, file);
+            } catch (IOException e) {
+                logger.error("Failed to save file " + file, e);
+                file.errorHappened();
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.iyakupov.downloader.core.comms.impl;
+
+import org.iyakupov.downloader.core.AppSettings;
+import org.iyakupov.downloader.core.dispatch.IDispatchingQueue;
+import org.iyakupov.downloader.core.file.FileDigest;
+import org.iyakupov.downloader.core.file.PieceManifest;
+import org.iyakupov.downloader.core.file.internal.BlockBitmap;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFile;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFilePart;
+import org.iyakupov.downloader.core.file.state.FileDownloadState;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Algorithm that compares the data of a downloaded piece of a file with its digest in the piece manifest.
+ * A corrupted piece is marked as incomplete and downloaded again. When the last piece (and part) of the file
+ * is verified, the file is saved.
+ * <p>
+ * It reads the data from the temporary files of the parts, so it has to run before they are combined.
+ */
+public class PieceVerification implements Runnable {
+    private final static Logger logger = LoggerFactory.getLogger(PieceVerification.class);
+
+    @NotNull
+    private final IDispatchingQueue dispatcher;
+
+    @NotNull
+    private final IManagedDownloadableFile file;
+
+    @NotNull
+    private final BlockBitmap bitmap;
+
+    private final int piece;
+
+    /**
+     * @param dispatcher Dispatcher that re-downloads the piece, if it's corrupted
+     * @param file       File download request with a piece manifest
+     * @param bitmap     Bitmap of the file, whose blocks are the pieces
+     * @param piece      Index of the piece
+     */
+    public PieceVerification(@NotNull IDispatchingQueue dispatcher, @NotNull IManagedDownloadableFile file,
+                             @NotNull BlockBitmap bitmap, int piece) {
+        this.dispatcher = dispatcher;
+        this.file = file;
+        this.bitmap = bitmap;
+        this.piece = piece;
+    }
+
+    @Override
+    public void run() {
+        final PieceManifest manifest = file.getDownloadOptions().getPieceManifest();
+        final FileDownloadState status = file.getStatus();
+        if (manifest == null || file.getBlockBitmap() != bitmap || !bitmap.isCompleted(piece) ||
+                status == FileDownloadState.CANCELLED || status == FileDownloadState.FAILED) {
+            logger.debug("Piece " + piece + " does not have to be verified anymore. File: " + file);
+            return;
+        }
+
+        final long start = bitmap.getBlockStart(piece);
+        final long end = bitmap.getBlockEnd(piece);
+        try {
+            final FileDigest digest = hashRange(manifest.getAlgorithm(), start, end);
+            if (manifest.getPieceDigest(piece).equals(digest)) {
+                logger.trace("Verified piece " + piece + " of file " + file.getOutputFile());
+                if (file.pieceVerified(piece) == 0)
+                    HttpPartDownloadCommunication.combineTemporaryFiles(dispatcher, file);
+                return;
+            }
+
+            final int failuresCount = file.pieceFailed(piece);
+            if (!isResumable(start)) {
+                logger.error("Piece " + piece + " [" + start + ", " + end + ") is corrupted, and it cannot be " +
+                        "downloaded separately. File: " + file);
+                file.errorHappened();
+                return;
+            } else if (failuresCount > AppSettings.getMaxPieceRepairAttempts()) {
+                logger.error("Piece " + piece + " [" + start + ", " + end + ") is corrupted, " +
+                        "and the repair attempts are exhausted. File: " + file);
+                file.errorHappened();
+                return;
+            }
+            logger.warn("Piece " + piece + " [" + start + ", " + end + ") is corrupted, downloading it again. " +
+                    "File: " + file);
+            bitmap.markIncomplete(start, end);
+            dispatcher.fillGap(file, start, end);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            logger.error("Failed to verify piece " + piece + " of file " + file, e);
+            file.errorHappened();
+        }
+    }
+
+    /**
+     * @return Whether the part that contains a byte of the file can download a range
+     */
+    private boolean isResumable(long position) {
+        return file.getDownloadableParts().stream()
+                .filter(p -> !p.isGapPart() && p.getStart() <= position)
+                .reduce((first, second) -> second)
+                .map(IManagedDownloadableFilePart::isDownloadResumeSupported)
+                .orElse(false);
+    }
+
+    /**
+     * Hash a range of the file. The range may span the temporary files of several parts.
+     */
+    @NotNull
+    private FileDigest hashRange(@NotNull String algorithm, long start, long end)
+            throws IOException, NoSuchAlgorithmException {
+        final MessageDigest messageDigest = MessageDigest.getInstance(algorithm);
+        final byte[] buffer = new byte[AppSettings.getDownloadBufferSize()];
+        long position = start;
+        for (IManagedDownloadableFilePart part : file.getDownloadableParts()) {
+            final long partEnd = part.getLength() > 0 ? part.getStart() + part.getLength() : bitmap.getTotalLength();
+            if (part.isGapPart() || partEnd <= position || part.getStart() > position)
+                continue;
+            final long rangeEnd = Math.min(end, partEnd);
+            try (RandomAccessFile partData = new RandomAccessFile(part.getOutputFile(), "r")) {
+                partData.seek(position - part.getOutputFileStart());
+                while (position < rangeEnd) {
+                    final int lastRead = partData.read(buffer, 0, (int) Math.min(buffer.length, rangeEnd - position));
+                    if (lastRead < 0)
+                        throw new IOException("Unexpected end of file " + part.getOutputFile());
+                    messageDigest.update(buffer, 0, lastRead);
+                    position += lastRead;
+                }
+            }
+            if (position >= end)
+                break;
+        }
+        if (position < end)
+            throw new IOException("No part of the file contains range [" + position + ", " + end + ")");
+        return new FileDigest(algorithm, messageDigest.digest());
+    }
+}
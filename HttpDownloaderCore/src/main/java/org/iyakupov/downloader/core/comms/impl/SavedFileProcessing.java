@@ -0,0 +1,58 @@
+package org.iyakupov.downloader.core.comms.impl;
+
+import org.iyakupov.downloader.core.cache.DownloadCache;
+import org.iyakupov.downloader.core.cache.FileDeduplicator;
+import org.iyakupov.downloader.core.dispatch.IDispatchingQueue;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFile;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Algorithm that stores a saved file in the download cache and replaces it with a hard link to an identical file.
+ * Both read the whole file, so they run in the background instead of delaying the worker that has saved the file.
+ * The failures do not affect the file.
+ */
+public class SavedFileProcessing implements Runnable {
+    private final static Logger logger = LoggerFactory.getLogger(SavedFileProcessing.class);
+
+    @NotNull
+    private final IDispatchingQueue dispatcher;
+
+    @NotNull
+    private final IManagedDownloadableFile file;
+
+    /**
+     * @param dispatcher Dispatcher of the file
+     * @param file       Saved file
+     */
+    public SavedFileProcessing(@NotNull IDispatchingQueue dispatcher, @NotNull IManagedDownloadableFile file) {
+        this.dispatcher = dispatcher;
+        this.file = file;
+    }
+
+    @Override
+    public void run() {
+        //The file is cached only if it has a version to revalidate it with the server
+        final String validator = file.getResumeValidator(file.getLocator());
+        final DownloadCache cache = dispatcher.getDownloadCache();
+        if (cache != null && validator != null) {
+            try {
+                cache.store(file.getLocator(), validator, file.getOutputFile());
+            } catch (IOException e) {
+                logger.warn("Failed to store file " + file.getOutputFile() + " in the download cache", e);
+            }
+        }
+
+        final FileDeduplicator deduplicator = dispatcher.getFileDeduplicator();
+        if (deduplicator != null) {
+            try {
+                deduplicator.deduplicate(file.getOutputFile(), file.getDigest());
+            } catch (IOException e) {
+                logger.warn("Failed to deduplicate file " + file.getOutputFile(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.iyakupov.downloader.core.dispatch;
+
+import org.iyakupov.downloader.core.comms.IFilePartCommunication;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Strategies that the Dispatcher may use to choose running part downloads to evict (e.g. when the thread pool shrinks).
+ * The tasks with the lowest eviction cost are evicted first.
+ */
+public enum EvictionPolicy {
+    /**
+     * Evict the parts that are the least complete, so that nearly finished parts are not interrupted
+     */
+    LEAST_PROGRESS {
+        @Override
+        public long getEvictionCost(@NotNull IFilePartCommunication task) {
+            return getProgressCost(task);
+        }
+    },
+
+    /**
+     * Evict the slowest connections and keep the fastest ones
+     */
+    LOWEST_THROUGHPUT {
+        @Override
+        public long getEvictionCost(@NotNull IFilePartCommunication task) {
+            return task.getFilePart().getDownloadSpeed();
+        }
+    },
+
+    /**
+     * Evict the parts of the files of the lowest {@link org.iyakupov.downloader.core.file.DownloadPriorityClass};
+     * within a class, evict the least complete parts
+     */
+    LOWEST_PRIORITY_CLASS {
+        @Override
+        public long getEvictionCost(@NotNull IFilePartCommunication task) {
+            final int priorityClass = task.getFile().getDownloadOptions().getPriorityClass().getNumericValue();
+            return priorityClass * (PROGRESS_SCALE + 1) + getProgressCost(task);
+        }
+    };
+
+    private static final long PROGRESS_SCALE = 1_000_000;
+
+    /**
+     * @param task Running part download
+     * @return Cost of eviction of this task. Must be evaluated once per decision, because it changes over time.
+     */
+    public abstract long getEvictionCost(@NotNull IFilePartCommunication task);
+
+    private static long getProgressCost(@NotNull IFilePartCommunication task) {
+        return (long) (task.getFilePart().getProgress() * PROGRESS_SCALE);
+    }
+}
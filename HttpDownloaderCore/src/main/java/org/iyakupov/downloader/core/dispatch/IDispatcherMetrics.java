@@ -0,0 +1,88 @@
+package org.iyakupov.downloader.core.dispatch;
+
+/**
+ * Read-only runtime statistics of a Dispatcher
+ */
+public interface IDispatcherMetrics {
+    /**
+     * @return Maximal number of threads that may perform download checks (HEAD requests) simultaneously
+     */
+    int getProbeThreadPoolSize();
+
+    /**
+     * @return Number of download checks that are being executed right now
+     */
+    int getActiveProbeCount();
+
+    /**
+     * @return Number of download checks that are waiting for a free probe thread
+     */
+    int getQueuedProbeCount();
+
+    /**
+     * @return Total number of finished download checks
+     */
+    long getCompletedProbeCount();
+
+    /**
+     * @return Number of part downloads that are being executed right now
+     */
+    int getActiveDownloadCount();
+
+    /**
+     * @return Number of part downloads that are waiting for a free download thread
+     */
+    int getQueuedDownloadCount();
+
+    /**
+     * @param priority Priority that the tasks were submitted with (before aging)
+     * @return Histogram of time that part download tasks of this priority have spent in the queue
+     */
+    WaitTimeHistogram getQueueWaitTimeHistogram(TaskPriority priority);
+
+    /**
+     * @return Number of part downloads that were restarted by the watchdog because their speed was too low
+     */
+    long getStalledPartRestartCount();
+
+    /**
+     * @return Number of open response streams of evicted parts that are waiting to be resumed
+     */
+    int getParkedStreamCount();
+
+    /**
+     * @return Number of evicted parts that have continued to read from their parked streams
+     */
+    long getReusedParkedStreamCount();
+
+    /**
+     * @return Time (in ms) that it took for the number of running part downloads to drop to the new pool size
+     * after the last shrink of the download thread pool. -1 if no shrink has completed yet.
+     */
+    long getLastPoolShrinkConvergenceTime();
+
+    /**
+     * @return Number of downloads that were served from the download cache
+     */
+    long getCacheHitCount();
+
+    /**
+     * @return Number of downloads that the download cache could not serve (0 if the cache is disabled)
+     */
+    long getCacheMissCount();
+
+    /**
+     * @return Number of bytes that were copied from the download cache instead of being downloaded
+     */
+    long getCacheSavedBytesCount();
+
+    /**
+     * @return Number of downloaded files that were replaced with hard links to identical files
+     */
+    long getLinkedFileCount();
+
+    /**
+     * @return Disk space (in bytes) that was reclaimed by replacing identical downloaded files with hard links
+     */
+    long getReclaimedBytesCount();
+}
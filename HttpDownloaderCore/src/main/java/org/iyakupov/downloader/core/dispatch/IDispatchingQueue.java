@@ -1,9 +1,17 @@
 package org.iyakupov.downloader.core.dispatch;
 
+import org.iyakupov.downloader.core.cache.DownloadCache;
+import org.iyakupov.downloader.core.cache.FileDeduplicator;
+import org.iyakupov.downloader.core.comms.ParkedStreamRegistry;
+import org.iyakupov.downloader.core.file.DownloadOptions;
+import org.iyakupov.downloader.core.file.IDownloadGroup;
 import org.iyakupov.downloader.core.file.IDownloadableFile;
 import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFile;
 import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFilePart;
 
+import org.iyakupov.downloader.core.throttle.BandwidthThrottle;
+import org.jetbrains.annotations.Nullable;
+
 import java.io.Closeable;
 import java.io.File;
 import java.util.Collection;
@@ -28,6 +36,82 @@ public interface IDispatchingQueue extends Closeable {
      */
     void submitNewTask(IManagedDownloadableFile file, IManagedDownloadableFilePart part);
 
+    /**
+     * Build a file from the blocks of its previous version (see {@link DownloadOptions#getPreviousVersion()}),
+     * and download only the ranges that the previous version does not have
+     *
+     * @param file File download request with a block checksum map that matches its size
+     * @param part The only part of the file, which covers all of it and writes into the output file
+     */
+    void submitDeltaTask(IManagedDownloadableFile file, IManagedDownloadableFilePart part);
+
+    /**
+     * Re-submit a part download that has failed with a transient error, after a backoff delay.
+     * The download is resumed from the current start position of the part; the downloaded data is kept.
+     *
+     * @param file  Parent file for this downloadable part
+     * @param part  Failed download task. Must be in the DOWNLOADING state.
+     * @param error Class of the error
+     * @return Whether the retry was scheduled. If not, the caller should mark the part as FAILED.
+     */
+    boolean retryFailedTask(IManagedDownloadableFile file, IManagedDownloadableFilePart part, RetryableError error);
+
+    /**
+     * Start the download of a file over, because the remote file has changed since its parts were planned.
+     * The data of all the parts is dropped, and the file is checked and split into parts again.
+     * The other files are not affected.
+     *
+     * @param file Changed file
+     * @param part Part whose download has detected the change
+     * @return Whether the file will be downloaded again. False if the part no longer belongs to the file
+     * (e.g. the change was detected by another part first) or the file is forgotten.
+     */
+    boolean replanChangedFile(IManagedDownloadableFile file, IManagedDownloadableFilePart part);
+
+    /**
+     * Download the incomplete blocks of a file (see {@link IManagedDownloadableFile#getBlockBitmap()}) that none
+     * of its parts is going to write to, e.g. the blocks whose data has turned out to be corrupted. The block that
+     * a part is writing is never a gap, even if the part has written only some of its bytes. Each gap is
+     * downloaded by a part of its own, which writes into the temporary file of the part that the gap belongs to.
+     *
+     * @param file File download request. Must not be complete yet.
+     * @return Number of submitted gap downloads
+     */
+    int fillGaps(IManagedDownloadableFile file);
+
+    /**
+     * Download a range of a file again, e.g. because its data has turned out to be corrupted. The range is
+     * downloaded by gap parts (see {@link #fillGaps(IManagedDownloadableFile)}), one per part whose data it overlaps.
+     * The other incomplete blocks of the file are not affected.
+     *
+     * @param file  File download request. Must not be complete yet.
+     * @param start Offset of the first byte of the range
+     * @param end   Offset of the byte that follows the range
+     * @return Number of submitted gap downloads
+     */
+    int fillGap(IManagedDownloadableFile file, long start, long end);
+
+    /**
+     * Verify the pieces of a file that has a {@link org.iyakupov.downloader.core.file.PieceManifest}: each piece
+     * is verified in a pool of its own as soon as it's completed. The pieces that are already completed
+     * (e.g. restored from the journal) are verified at once. Must be called when the size of the file is known.
+     *
+     * @param file File download request
+     */
+    void startPieceVerification(IManagedDownloadableFile file);
+
+    /**
+     * Let a file be copied from another download of the same content (e.g. from a mirror), instead of being
+     * downloaded. The content is identified by its strong entity tag and size. Only works if request
+     * deduplication is enabled (see {@link org.iyakupov.downloader.core.AppSettings#deduplicateRequests()}).
+     *
+     * @param file      File download request without parts
+     * @param entityTag Entity tag of the remote file, or null
+     * @param size      Size of the remote file in bytes
+     * @return Whether the file is attached to another download. If so, it must not be downloaded.
+     */
+    boolean attachToIdenticalDownload(IManagedDownloadableFile file, @Nullable String entityTag, long size);
+
     /**
      * Sets the maximal number of download worker threads
      *
@@ -37,6 +121,48 @@ public interface IDispatchingQueue extends Closeable {
      */
     void setThreadPoolSize(int newSize, boolean evictNonResumable);
 
+    /**
+     * Sets the maximal number of download worker threads without evicting the running tasks abruptly.
+     * If the pool shrinks, the surplus tasks (chosen by the eviction policy) download at most byteQuota more bytes
+     * (they complete, if less remains) and then yield their threads. No new tasks are started until
+     * the number of running tasks drops to newSize.
+     *
+     * @param newSize   Number of threads. Must be positive.
+     * @param byteQuota Number of bytes that a surplus task may download before yielding
+     */
+    void resizeThreadPoolGracefully(int newSize, long byteQuota);
+
+    /**
+     * Sets the maximal number of threads that perform download checks (HEAD requests).
+     * Checks are executed apart from part downloads, so they are never starved by a saturated download pool.
+     *
+     * @param newSize Number of threads. Must be positive.
+     */
+    void setProbeThreadPoolSize(int newSize);
+
+    /**
+     * Sets the strategy of choosing the next part download task for a free worker thread.
+     * Already running tasks are not affected.
+     *
+     * @param policy Scheduling policy
+     */
+    void setSchedulingPolicy(SchedulingPolicy policy);
+
+    /**
+     * Sets the rules of automatic re-submission of failed part downloads.
+     * Retries that are already scheduled are not affected.
+     *
+     * @param retryPolicy Retry policy. Use {@link RetryPolicy#NEVER} to disable retries.
+     */
+    void setRetryPolicy(RetryPolicy retryPolicy);
+
+    /**
+     * Sets the strategy of choosing running part downloads to evict when there are not enough threads for them
+     *
+     * @param evictionPolicy Eviction policy
+     */
+    void setEvictionPolicy(EvictionPolicy evictionPolicy);
+
     /**
      * Create a new file download request
      *
@@ -47,6 +173,35 @@ public interface IDispatchingQueue extends Closeable {
      */
     IDownloadableFile submitFile(String url, File outputDir, int nThreads);
 
+    /**
+     * Create a new file download request with non-default parameters
+     *
+     * @param url       Location of this file in the remote location
+     * @param outputDir Output file
+     * @param nThreads  Number of pieces to cut this file into in order to perform parallel download
+     * @param options   Optional parameters of the request (e.g. weight, priority class or deadline of the file)
+     * @return File download request. If request deduplication is enabled (see
+     * {@link org.iyakupov.downloader.core.AppSettings#deduplicateRequests()}), and a file with the same URL is being
+     * downloaded, the request is attached to that download: the file is copied to the output directory of the request
+     * when it's downloaded. If that download fails or is cancelled, the request is downloaded on its own.
+     */
+    IDownloadableFile submitFile(String url, File outputDir, int nThreads, DownloadOptions options);
+
+    /**
+     * Create a new group of file download requests. Files are added to the group on submission,
+     * see {@link DownloadOptions.Builder#setGroup(IDownloadGroup)}.
+     * Groups may be nested (e.g. tenant -> batch); worker threads are shared between sibling groups
+     * in proportion to their weights, and limits of a group apply to all its nested groups together.
+     *
+     * @param name              Name of the group
+     * @param parent            Enclosing group (must be created by this Dispatcher), or null
+     * @param weight            Share of worker threads, relative to the siblings of this group. Must be positive.
+     * @param maxWorkers        Maximal number of worker threads of the group. Non-positive value means "unlimited".
+     * @param maxBytesPerSecond Maximal total download speed of the group. Non-positive value means "unlimited".
+     * @return Download group
+     */
+    IDownloadGroup createGroup(String name, IDownloadGroup parent, int weight, int maxWorkers, long maxBytesPerSecond);
+
     /**
      * @return The collection of file download requests that this Dispatcher knows about.
      */
@@ -67,4 +222,42 @@ public interface IDispatchingQueue extends Closeable {
      * @return Whether the Dispatcher has managed to resume download
      */
     boolean resumeDownload(IDownloadableFile file);
+
+    /**
+     * @return Runtime statistics of this Dispatcher
+     */
+    IDispatcherMetrics getMetrics();
+
+    /**
+     * @return Global and per-host download speed limits. Per-file limits are set on the files themselves.
+     */
+    BandwidthThrottle getBandwidthThrottle();
+
+    /**
+     * @return Registry of open response streams of evicted part downloads
+     */
+    ParkedStreamRegistry getParkedStreamRegistry();
+
+    /**
+     * Store a saved file in the download cache (see {@link #getDownloadCache()}) and replace it with a hard link
+     * to an identical file (see {@link #getFileDeduplicator()}), if these are enabled. It's done in the background,
+     * so the calling worker is not delayed.
+     *
+     * @param file Saved file
+     */
+    void submitSavedFileTask(IManagedDownloadableFile file);
+
+    /**
+     * @return Local cache of the downloaded files, or null if it's disabled
+     * (see {@link org.iyakupov.downloader.core.AppSettings#getCacheDirectory()})
+     */
+    @Nullable
+    DownloadCache getDownloadCache();
+
+    /**
+     * @return Index of the downloaded files by their content, which links identical files together,
+     * or null if it's disabled (see {@link org.iyakupov.downloader.core.AppSettings#deduplicateFiles()})
+     */
+    @Nullable
+    FileDeduplicator getFileDeduplicator();
 }
@@ -0,0 +1,138 @@
+package org.iyakupov.downloader.core.dispatch;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Rules of automatic re-submission of failed part downloads: maximal number of consecutive attempts
+ * for each class of errors, and a jittered exponential backoff between the attempts.
+ * An attempt that has downloaded some data resets the counter of consecutive failures.
+ */
+public class RetryPolicy {
+    public static final RetryPolicy DEFAULT = builder().createRetryPolicy();
+    public static final RetryPolicy NEVER = builder()
+            .setMaxAttempts(RetryableError.CONNECTION_FAILURE, 0)
+            .setMaxAttempts(RetryableError.READ_TIMEOUT, 0)
+            .setMaxAttempts(RetryableError.SERVER_ERROR, 0)
+            .setMaxAttempts(RetryableError.PARTIAL_CONTENT_NOK, 0)
+            .createRetryPolicy();
+
+    private final Map<RetryableError, Integer> maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+
+    private RetryPolicy(Map<RetryableError, Integer> maxAttempts, long initialDelay, long maxDelay) {
+        this.maxAttempts = new EnumMap<>(maxAttempts);
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @param error Class of the error
+     * @return Maximal number of consecutive retries after errors of this class. Zero means "do not retry".
+     */
+    public int getMaxAttempts(@NotNull RetryableError error) {
+        return maxAttempts.get(error);
+    }
+
+    /**
+     * @return Delay before the first retry, in ms
+     */
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    /**
+     * @return Upper bound of the delay between retries, in ms
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * @param error   Class of the error
+     * @param attempt Number of the retry, starting from 1
+     * @return Whether the retry is allowed
+     */
+    public boolean shouldRetry(@NotNull RetryableError error, int attempt) {
+        return attempt <= getMaxAttempts(error);
+    }
+
+    /**
+     * The delay doubles with each attempt (up to {@link #getMaxDelay()}); a random jitter of up to a half of it
+     * is subtracted, so that parts that have failed simultaneously do not hit the server simultaneously again.
+     *
+     * @param attempt Number of the retry, starting from 1
+     * @return Delay before the retry, in ms
+     */
+    public long getBackoffDelay(int attempt) {
+        final int shift = Math.min(attempt - 1, 30);
+        final long delay = Math.min(maxDelay, initialDelay << shift);
+        return delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{" +
+                "maxAttempts=" + maxAttempts +
+                ", initialDelay=" + initialDelay +
+                ", maxDelay=" + maxDelay +
+                '}';
+    }
+
+    public static class Builder {
+        private final Map<RetryableError, Integer> maxAttempts = new EnumMap<>(RetryableError.class);
+        private long initialDelay = 1000;
+        private long maxDelay = 60000;
+
+        private Builder() {
+            maxAttempts.put(RetryableError.CONNECTION_FAILURE, 5);
+            maxAttempts.put(RetryableError.READ_TIMEOUT, 5);
+            maxAttempts.put(RetryableError.SERVER_ERROR, 3);
+            maxAttempts.put(RetryableError.PARTIAL_CONTENT_NOK, 1);
+        }
+
+        /**
+         * @param error       Class of the error
+         * @param maxAttempts Maximal number of consecutive retries. Zero means "do not retry".
+         * @return this
+         */
+        public Builder setMaxAttempts(@NotNull RetryableError error, int maxAttempts) {
+            if (maxAttempts < 0)
+                throw new IllegalArgumentException("Number of attempts must not be negative: " + maxAttempts);
+            this.maxAttempts.put(error, maxAttempts);
+            return this;
+        }
+
+        /**
+         * @param initialDelay Delay before the first retry, in ms. Must be positive.
+         * @return this
+         */
+        public Builder setInitialDelay(long initialDelay) {
+            if (initialDelay <= 0)
+                throw new IllegalArgumentException("Delay must be positive: " + initialDelay);
+            this.initialDelay = initialDelay;
+            return this;
+        }
+
+        /**
+         * @param maxDelay Upper bound of the delay between retries, in ms
+         * @return this
+         */
+        public Builder setMaxDelay(long maxDelay) {
+            this.maxDelay = maxDelay;
+            return this;
+        }
+
+        public RetryPolicy createRetryPolicy() {
+            return new RetryPolicy(maxAttempts, initialDelay, Math.max(initialDelay, maxDelay));
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.iyakupov.downloader.core.dispatch;
+
+/**
+ * Classes of transient part download failures that may be cured by another attempt
+ */
+public enum RetryableError {
+    /**
+     * Failed to connect to the server, or the connection was dropped in the middle of the transfer
+     */
+    CONNECTION_FAILURE,
+
+    /**
+     * The server has stopped sending data for longer than the socket timeout
+     */
+    READ_TIMEOUT,
+
+    /**
+     * The server has responded with a 5xx status code
+     */
+    SERVER_ERROR,
+
+    /**
+     * The server has ignored the requested range (e.g. a replica behind a load balancer does not support it)
+     */
+    PARTIAL_CONTENT_NOK
+}
@@ -0,0 +1,26 @@
+package org.iyakupov.downloader.core.dispatch;
+
+/**
+ * Strategies that the Dispatcher may use to choose the next part download task for a free worker thread
+ */
+public enum SchedulingPolicy {
+    /**
+     * The task with the highest {@link TaskPriority} is executed first, regardless of the file it belongs to
+     */
+    PRIORITY,
+
+    /**
+     * Worker threads are shared between files in proportion to their weights: the next task is taken from
+     * the file with the lowest number of running tasks per unit of weight.
+     * Tasks of the same file are ordered by their {@link TaskPriority}.
+     */
+    WEIGHTED_FAIR,
+
+    /**
+     * The next task is taken from the file with the least remaining bytes, so that files are completed as soon
+     * as possible. Files of unknown size go last. To bound unfairness, a file that was passed over
+     * {@link org.iyakupov.downloader.core.AppSettings#getMaxSchedulingBypassCount()} times in a row
+     * is served next regardless of its size.
+     */
+    SHORTEST_REMAINING_FIRST
+}
@@ -5,8 +5,10 @@ package org.iyakupov.downloader.core.dispatch;
  */
 public enum TaskPriority {
     NEW_CHECK(0),
+    ROTATED_TASK(5), //Yielded its worker at the end of a time slice, so it goes after the tasks that are waiting
     NEW_PART_DOWNLOAD(10),
     PAUSED_TASK(20),
+    RETRIED_TASK(50),
     EVICTED_TASK(100);
 
     final int numericValue;
@@ -18,4 +20,16 @@ public enum TaskPriority {
     public int getNumericValue() {
         return numericValue;
     }
+
+    /**
+     * @param numericValue Numeric value of a priority
+     * @return Priority with the given numeric value, or null if there is no such priority
+     */
+    public static TaskPriority fromNumericValue(int numericValue) {
+        for (TaskPriority priority : values()) {
+            if (priority.numericValue == numericValue)
+                return priority;
+        }
+        return null;
+    }
 }
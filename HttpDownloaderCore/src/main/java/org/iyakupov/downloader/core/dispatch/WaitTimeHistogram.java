@@ -0,0 +1,104 @@
+package org.iyakupov.downloader.core.dispatch;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of the time that tasks spend in the Dispatcher's queue.
+ * Bucket i counts the tasks that have waited for less than 2^i ms (and not less than 2^(i-1) ms),
+ * the last bucket counts all longer waits.
+ */
+public class WaitTimeHistogram {
+    private static final int BUCKETS_COUNT = 24; //The last bound is ~70 minutes
+
+    private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKETS_COUNT);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong totalWaitTime = new AtomicLong(0);
+    private final AtomicLong maxWaitTime = new AtomicLong(0);
+
+    /**
+     * Register a task that has left the queue
+     *
+     * @param waitTime Time in the queue, in ms
+     */
+    public void record(long waitTime) {
+        final int bucket = waitTime <= 0 ? 0 : Math.min(BUCKETS_COUNT - 1, 64 - Long.numberOfLeadingZeros(waitTime));
+        bucketCounts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalWaitTime.addAndGet(waitTime);
+        long currentMax;
+        while (waitTime > (currentMax = maxWaitTime.get()) && !maxWaitTime.compareAndSet(currentMax, waitTime)) {
+            //retry
+        }
+    }
+
+    /**
+     * @return Number of recorded tasks
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return Mean wait time in ms, or 0 if nothing was recorded
+     */
+    public double getMeanWaitTime() {
+        final long n = count.get();
+        return n == 0 ? 0 : (double) totalWaitTime.get() / n;
+    }
+
+    /**
+     * @return The longest recorded wait time in ms
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+
+    /**
+     * @return Exclusive upper bounds (in ms) of the buckets. The last bucket is unbounded.
+     */
+    public long[] getBucketUpperBounds() {
+        final long[] bounds = new long[BUCKETS_COUNT];
+        for (int i = 0; i < BUCKETS_COUNT - 1; ++i)
+            bounds[i] = 1L << i;
+        bounds[BUCKETS_COUNT - 1] = Long.MAX_VALUE;
+        return bounds;
+    }
+
+    /**
+     * @return Number of recorded tasks in each bucket
+     */
+    public long[] getBucketCounts() {
+        final long[] counts = new long[BUCKETS_COUNT];
+        for (int i = 0; i < BUCKETS_COUNT; ++i)
+            counts[i] = bucketCounts.get(i);
+        return counts;
+    }
+
+    /**
+     * @param percentile Value in the range (0, 1]
+     * @return Upper bound (in ms) of the bucket that contains the given percentile, or 0 if nothing was recorded
+     */
+    public long getPercentileUpperBound(double percentile) {
+        final long[] counts = getBucketCounts();
+        final long total = Arrays.stream(counts).sum();
+        long seen = 0;
+        for (int i = 0; i < BUCKETS_COUNT; ++i) {
+            seen += counts[i];
+            if (seen > 0 && seen >= percentile * total)
+                return i < BUCKETS_COUNT - 1 ? 1L << i : Long.MAX_VALUE;
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "WaitTimeHistogram{" +
+                "count=" + getCount() +
+                ", meanWaitTime=" + getMeanWaitTime() +
+                ", p99=" + getPercentileUpperBound(0.99) +
+                ", maxWaitTime=" + getMaxWaitTime() +
+                '}';
+    }
+}
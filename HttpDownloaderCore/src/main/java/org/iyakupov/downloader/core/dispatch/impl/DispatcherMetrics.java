@@ -0,0 +1,152 @@
+package org.iyakupov.downloader.core.dispatch.impl;
+
+import org.iyakupov.downloader.core.cache.DownloadCache;
+import org.iyakupov.downloader.core.cache.FileDeduplicator;
+import org.iyakupov.downloader.core.comms.ParkedStreamRegistry;
+import org.iyakupov.downloader.core.dispatch.IDispatcherMetrics;
+import org.iyakupov.downloader.core.dispatch.TaskPriority;
+import org.iyakupov.downloader.core.dispatch.WaitTimeHistogram;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatcher statistics, backed by the Dispatcher's thread pools
+ */
+class DispatcherMetrics implements IDispatcherMetrics {
+    @NotNull
+    private final ThreadPoolExecutor probeExecutor;
+
+    @NotNull
+    private final DownloadThreadPoolExecutor downloadExecutor;
+
+    @NotNull
+    private final ParkedStreamRegistry parkedStreams;
+
+    @Nullable
+    private final DownloadCache cache; //null if disabled
+
+    @Nullable
+    private final FileDeduplicator deduplicator; //null if disabled
+
+    private final AtomicLong stalledPartRestartCount = new AtomicLong(0);
+
+    DispatcherMetrics(@NotNull ThreadPoolExecutor probeExecutor, @NotNull DownloadThreadPoolExecutor downloadExecutor,
+                      @NotNull ParkedStreamRegistry parkedStreams, @Nullable DownloadCache cache,
+                      @Nullable FileDeduplicator deduplicator) {
+        this.probeExecutor = probeExecutor;
+        this.downloadExecutor = downloadExecutor;
+        this.parkedStreams = parkedStreams;
+        this.cache = cache;
+        this.deduplicator = deduplicator;
+    }
+
+    @Override
+    public int getProbeThreadPoolSize() {
+        return probeExecutor.getMaximumPoolSize();
+    }
+
+    @Override
+    public int getActiveProbeCount() {
+        return probeExecutor.getActiveCount();
+    }
+
+    @Override
+    public int getQueuedProbeCount() {
+        return probeExecutor.getQueue().size();
+    }
+
+    @Override
+    public long getCompletedProbeCount() {
+        return probeExecutor.getCompletedTaskCount();
+    }
+
+    @Override
+    public int getActiveDownloadCount() {
+        return downloadExecutor.getActiveCount();
+    }
+
+    @Override
+    public int getQueuedDownloadCount() {
+        return downloadExecutor.getQueue().size();
+    }
+
+    @Override
+    public WaitTimeHistogram getQueueWaitTimeHistogram(TaskPriority priority) {
+        return downloadExecutor.getTaskQueue().getWaitTimeHistogram(priority);
+    }
+
+    @Override
+    public long getStalledPartRestartCount() {
+        return stalledPartRestartCount.get();
+    }
+
+    @Override
+    public int getParkedStreamCount() {
+        return parkedStreams.getParkedStreamsCount();
+    }
+
+    @Override
+    public long getReusedParkedStreamCount() {
+        return parkedStreams.getReusedStreamsCount();
+    }
+
+    @Override
+    public long getLastPoolShrinkConvergenceTime() {
+        final long convergenceTime = downloadExecutor.getLastShrinkConvergenceTime();
+        return convergenceTime < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(convergenceTime);
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return cache == null ? 0 : cache.getHitCount();
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        return cache == null ? 0 : cache.getMissCount();
+    }
+
+    @Override
+    public long getCacheSavedBytesCount() {
+        return cache == null ? 0 : cache.getSavedBytesCount();
+    }
+
+    @Override
+    public long getLinkedFileCount() {
+        return deduplicator == null ? 0 : deduplicator.getLinkedFilesCount();
+    }
+
+    @Override
+    public long getReclaimedBytesCount() {
+        return deduplicator == null ? 0 : deduplicator.getReclaimedBytesCount();
+    }
+
+    void stalledPartRestarted() {
+        stalledPartRestartCount.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return "DispatcherMetrics{" +
+                "probeThreadPoolSize=" + getProbeThreadPoolSize() +
+                ", activeProbeCount=" + getActiveProbeCount() +
+                ", queuedProbeCount=" + getQueuedProbeCount() +
+                ", completedProbeCount=" + getCompletedProbeCount() +
+                ", activeDownloadCount=" + getActiveDownloadCount() +
+                ", queuedDownloadCount=" + getQueuedDownloadCount() +
+                ", stalledPartRestartCount=" + getStalledPartRestartCount() +
+                ", parkedStreamCount=" + getParkedStreamCount() +
+                ", reusedParkedStreamCount=" + getReusedParkedStreamCount() +
+                ", lastPoolShrinkConvergenceTime=" + getLastPoolShrinkConvergenceTime() +
+                ", cacheHitCount=" + getCacheHitCount() +
+                ", cacheMissCount=" + getCacheMissCount() +
+                ", cacheSavedBytesCount=" + getCacheSavedBytesCount() +
+                ", linkedFileCount=" + getLinkedFileCount() +
+                ", reclaimedBytesCount=" + getReclaimedBytesCount() +
+                '}';
+    }
+}
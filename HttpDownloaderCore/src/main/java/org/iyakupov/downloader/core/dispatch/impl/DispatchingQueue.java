@@ -2,72 +2,154 @@ package org.iyakupov.downloader.core.dispatch.impl;
 
 import com.google.common.collect.Sets;
 import org.iyakupov.downloader.core.AppSettings;
+import org.iyakupov.downloader.core.cache.DownloadCache;
+import org.iyakupov.downloader.core.cache.FileDeduplicator;
 import org.iyakupov.downloader.core.file.state.FileDownloadState;
-import org.iyakupov.downloader.core.comms.ICommunication;
 import org.iyakupov.downloader.core.comms.ICommunicatingComponent;
+import org.iyakupov.downloader.core.comms.ParkedStreamRegistry;
+import org.iyakupov.downloader.core.comms.impl.DeltaCopy;
 import org.iyakupov.downloader.core.comms.impl.HttpCommunicatingComponent;
 import org.iyakupov.downloader.core.comms.impl.HttpDownloadCheckCommunication;
 import org.iyakupov.downloader.core.comms.impl.HttpPartDownloadCommunication;
+import org.iyakupov.downloader.core.comms.impl.LocalCopy;
+import org.iyakupov.downloader.core.comms.impl.PieceVerification;
+import org.iyakupov.downloader.core.comms.impl.SavedFileProcessing;
+import org.iyakupov.downloader.core.comms.IFilePartCommunication;
+import org.iyakupov.downloader.core.dispatch.EvictionPolicy;
+import org.iyakupov.downloader.core.dispatch.IDispatcherMetrics;
 import org.iyakupov.downloader.core.dispatch.IDispatchingQueue;
+import org.iyakupov.downloader.core.dispatch.RetryPolicy;
+import org.iyakupov.downloader.core.dispatch.RetryableError;
+import org.iyakupov.downloader.core.dispatch.SchedulingPolicy;
 import org.iyakupov.downloader.core.dispatch.TaskPriority;
+import org.iyakupov.downloader.core.file.DownloadOptions;
+import org.iyakupov.downloader.core.file.IDownloadGroup;
 import org.iyakupov.downloader.core.file.IDownloadableFile;
 import org.iyakupov.downloader.core.file.IDownloadableFilePart;
+import org.iyakupov.downloader.core.file.internal.BlockBitmap;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadGroup;
 import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFile;
 import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFilePart;
+import org.iyakupov.downloader.core.file.internal.impl.DownloadGroup;
 import org.iyakupov.downloader.core.file.internal.impl.DownloadableFile;
+import org.iyakupov.downloader.core.file.internal.impl.DownloadableFilePart;
 import org.iyakupov.downloader.core.file.state.FilePartDownloadState;
+import org.iyakupov.downloader.core.throttle.BandwidthThrottle;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Set;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 /**
  * Queued thread pool, designed to process file download requests
  */
 public class DispatchingQueue implements IDispatchingQueue {
+    private static final long PARKED_STREAMS_CHECK_INTERVAL = 500; //in ms
+    private static final long TIME_SLICE_CHECK_INTERVAL = 500; //in ms
+    private static final long DUPLICATES_CHECK_INTERVAL = 100; //in ms
+
     private final Logger logger = LoggerFactory.getLogger(DispatchingQueue.class);
 
     private final Set<IManagedDownloadableFile> knownFiles = Sets.newConcurrentHashSet(); //concurrent for getAllFiles to work
     private final ExecutorService trashRemovalExecutor = Executors.newCachedThreadPool();
-    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService maintenanceExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final DownloadThreadPoolExecutor executor;
+    private final ThreadPoolExecutor probeExecutor;
+    private final ThreadPoolExecutor pieceVerificationExecutor;
     private final ICommunicatingComponent communicationComponent;
+    private final DispatcherMetrics metrics;
+    private final Map<IManagedDownloadableFilePart, ProgressSample> progressSamples = new HashMap<>(); //watchdog state
+    private final Map<IFilePartCommunication, ProgressSample> timeSlices = new HashMap<>(); //starts of running slices
+    private final Set<IManagedDownloadableFilePart> rotatedParts = ConcurrentHashMap.newKeySet();
+    private final Map<IManagedDownloadableFile, IManagedDownloadableFile> duplicates = new ConcurrentHashMap<>(); //to originals
+    private final BandwidthThrottle bandwidthThrottle = new BandwidthThrottle();
+    private final ParkedStreamRegistry parkedStreams = new ParkedStreamRegistry();
+    private volatile RetryPolicy retryPolicy = AppSettings.getRetryPolicy();
+    private volatile EvictionPolicy evictionPolicy = AppSettings.getEvictionPolicy();
+    private final DownloadJournal journal; //null if disabled
+    private final DownloadCache cache; //null if disabled
+    private final FileDeduplicator deduplicator; //null if disabled
 
     public DispatchingQueue(int maxNumberOfThreads) {
-        this(maxNumberOfThreads, AppSettings.getDispatchingQueueCapacity());
-    }
-
-    private DispatchingQueue(int maxNumberOfThreads, int queueCapacity) {
-        this(maxNumberOfThreads, queueCapacity, new HttpCommunicatingComponent(
+        this(maxNumberOfThreads, new HttpCommunicatingComponent(
                 AppSettings.getHttpMaxConnections(), AppSettings.getHttpConnRqTimeout(),
                 AppSettings.getHttpConnTimeout(), AppSettings.getHttpSocketTimeout()));
     }
 
+    /**
+     * @param queueCapacity Ignored: the task queue is unbounded
+     * @deprecated Use {@link #DispatchingQueue(int, ICommunicatingComponent)}
+     */
+    @Deprecated
     public DispatchingQueue(int maxNumberOfThreads, int queueCapacity, ICommunicatingComponent communicationComponent) {
-        final BlockingQueue<Runnable> taskQueue = new PriorityBlockingQueue<>(queueCapacity, (o1, o2) -> {
-            if (o1 instanceof ICommunication && o2 instanceof ICommunication)
-                return Integer.compare(((ICommunication) o2).getPriority(), ((ICommunication) o1).getPriority());
-            else
-                return 0;
-        });
+        this(maxNumberOfThreads, communicationComponent);
+    }
 
-        executor = new ThreadPoolExecutor(maxNumberOfThreads, maxNumberOfThreads, 60L, TimeUnit.SECONDS, taskQueue);
+    public DispatchingQueue(int maxNumberOfThreads, ICommunicatingComponent communicationComponent) {
+        executor = new DownloadThreadPoolExecutor(maxNumberOfThreads, 60L, TimeUnit.SECONDS,
+                new SchedulingTaskQueue(AppSettings.getSchedulingPolicy()));
         executor.allowCoreThreadTimeOut(true);
 
+        //Checks have a lane of their own: they are short, and the sooner we know the size of a file, the better
+        final int probeThreadPoolSize = AppSettings.getProbeThreadPoolSize();
+        probeExecutor = new ThreadPoolExecutor(probeThreadPoolSize, probeThreadPoolSize, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>());
+        probeExecutor.allowCoreThreadTimeOut(true);
+
+        //Hashing (piece verification, delta copies) is CPU-bound, so it must not occupy the download workers
+        final int pieceVerificationThreadPoolSize = AppSettings.getPieceVerificationThreadPoolSize();
+        pieceVerificationExecutor = new ThreadPoolExecutor(pieceVerificationThreadPoolSize,
+                pieceVerificationThreadPoolSize, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        pieceVerificationExecutor.allowCoreThreadTimeOut(true);
+
         this.communicationComponent = communicationComponent;
+        this.cache = openCache(AppSettings.getCacheDirectory());
+        this.deduplicator = AppSettings.deduplicateFiles() ? new FileDeduplicator() : null;
+        this.metrics = new DispatcherMetrics(probeExecutor, executor, parkedStreams, cache, deduplicator);
 
-        logger.info("Started DispatchingQueue with thread pool size of " + maxNumberOfThreads);
+        final long deadlineCheckInterval = AppSettings.getDeadlineCheckInterval();
+        maintenanceExecutor.scheduleWithFixedDelay(this::preemptForDeadlines,
+                deadlineCheckInterval, deadlineCheckInterval, TimeUnit.MILLISECONDS);
+        final long stallCheckInterval = AppSettings.getStallCheckInterval();
+        maintenanceExecutor.scheduleWithFixedDelay(this::restartStalledParts,
+                stallCheckInterval, stallCheckInterval, TimeUnit.MILLISECONDS);
+        maintenanceExecutor.scheduleWithFixedDelay(parkedStreams::closeExpired,
+                PARKED_STREAMS_CHECK_INTERVAL, PARKED_STREAMS_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        maintenanceExecutor.scheduleWithFixedDelay(this::rotateTimeSlices,
+                TIME_SLICE_CHECK_INTERVAL, TIME_SLICE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        maintenanceExecutor.scheduleWithFixedDelay(this::releaseDuplicates,
+                DUPLICATES_CHECK_INTERVAL, DUPLICATES_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+
+        final File journalFile = AppSettings.getJournalFile();
+        if (journalFile != null) {
+            final List<IManagedDownloadableFile> restoredFiles = restoreFiles(journalFile);
+            journal = openJournal(journalFile, restoredFiles);
+            restoredFiles.forEach(this::resubmitRestoredFile);
+            final long checkpointInterval = AppSettings.getJournalCheckpointInterval();
+            maintenanceExecutor.scheduleWithFixedDelay(() -> updateJournal(DownloadJournal::checkpoint),
+                    checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+        } else {
+            journal = null;
+        }
+
+        logger.info("Started DispatchingQueue with thread pool size of " + maxNumberOfThreads +
+                " and probe thread pool size of " + probeThreadPoolSize);
     }
 
     @Override
     public synchronized void reSubmitEvictedTask(IManagedDownloadableFile file, IManagedDownloadableFilePart part) {
+        final TaskPriority priority = rotatedParts.remove(part) ? TaskPriority.ROTATED_TASK : TaskPriority.EVICTED_TASK;
         if (part.confirmSuspendAndRestart()) {
-            executor.execute(new HttpPartDownloadCommunication(
-                    TaskPriority.EVICTED_TASK, this, communicationComponent, file, part));
+            executor.execute(new HttpPartDownloadCommunication(priority, this, communicationComponent, file, part));
         } else {
             logger.warn("Failed to re-submit evicted task - incorrect status or concurrent modification by user? " +
                     "Status: " + part.getStatus() + ", URL: " + part.getLocator() + ", file = " + part.getOutputFile());
@@ -80,15 +162,173 @@ public class DispatchingQueue implements IDispatchingQueue {
             logger.error("Failed to submit a part download task: parent file is not known. " +
                     "Already deleted? Task: " + part);
         } else {
+            updateJournal(j -> j.partAdded(file, part));
             executor.execute(new HttpPartDownloadCommunication(TaskPriority.NEW_PART_DOWNLOAD, this, communicationComponent, file, part));
         }
     }
 
+    @Override
+    public synchronized void submitDeltaTask(IManagedDownloadableFile file, IManagedDownloadableFilePart part) {
+        if (!fileIsKnown(file)) {
+            logger.error("Failed to submit a delta copy task: parent file is not known. Already deleted? Task: " + part);
+        } else {
+            updateJournal(j -> j.partAdded(file, part));
+            pieceVerificationExecutor.execute(new DeltaCopy(this, file, part));
+        }
+    }
+
+    @Override
+    public void submitSavedFileTask(IManagedDownloadableFile file) {
+        if (cache == null && deduplicator == null)
+            return;
+        try {
+            pieceVerificationExecutor.execute(new SavedFileProcessing(this, file));
+        } catch (RejectedExecutionException e) {
+            logger.debug("Saved file is not processed, the Dispatcher is closed. File: " + file);
+        }
+    }
+
+    @Override
+    public boolean retryFailedTask(IManagedDownloadableFile file, IManagedDownloadableFilePart part, RetryableError error) {
+        final RetryPolicy policy = retryPolicy;
+        final int attempt = part.registerFailedAttempt();
+        if (!fileIsKnown(file) || !policy.shouldRetry(error, attempt))
+            return false;
+        if (!part.suspend() || !part.confirmSuspendAndRestart()) {
+            logger.warn("Failed to schedule a retry - incorrect status or concurrent modification by user? " +
+                    "Status: " + part.getStatus() + ", URL: " + part.getLocator() + ", file = " + part.getOutputFile());
+            return false;
+        }
+
+        final long delay = policy.getBackoffDelay(attempt);
+        logger.info("Part download failed with " + error + ", attempt " + attempt + " of " +
+                policy.getMaxAttempts(error) + " will start in " + delay + " ms: " + part);
+        maintenanceExecutor.schedule(() -> {
+            //The user might have paused or cancelled the download in the meantime
+            if (part.getStatus() == FilePartDownloadState.PENDING && fileIsKnown(file)) {
+                executor.execute(new HttpPartDownloadCommunication(
+                        TaskPriority.RETRIED_TASK, this, communicationComponent, file, part));
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean replanChangedFile(IManagedDownloadableFile file, IManagedDownloadableFilePart part) {
+        if (!fileIsKnown(file) || !file.getDownloadableParts().contains(part))
+            return false; //Already re-planned, or forgotten
+        logger.warn("Remote file has changed, its download starts over: " + file);
+        final List<IManagedDownloadableFilePart> droppedParts = file.resetParts();
+        updateJournal(j -> j.fileReplanned(file));
+        for (IManagedDownloadableFilePart droppedPart : droppedParts) {
+            rotatedParts.remove(droppedPart);
+            //Synchronously, so that the removal cannot hit the data of the new parts
+            if (!droppedPart.getOutputFile().equals(file.getOutputFile()) && !droppedPart.getOutputFile().delete())
+                logger.debug("Temporary file of a dropped part does not exist: " + droppedPart.getOutputFile());
+        }
+        probeExecutor.execute(new HttpDownloadCheckCommunication(this, communicationComponent, file));
+        return true;
+    }
+
+    @Override
+    public synchronized int fillGaps(IManagedDownloadableFile file) {
+        final BlockBitmap bitmap = file.getBlockBitmap();
+        if (!fileIsKnown(file) || bitmap == null)
+            return 0;
+
+        //The ranges that the parts are going to download, extended to whole blocks, ordered by start. The block
+        //that a part is writing (or shares with a neighbour) already has some of its bytes reported to the bitmap,
+        //so none of its bytes may be downloaded by a gap part: each byte must be reported once.
+        final List<IManagedDownloadableFilePart> parts = file.getDownloadableParts();
+        final List<BlockBitmap.Range> plannedRanges = parts.stream()
+                .filter(p -> p.getStatus() != FilePartDownloadState.DONE && p.getStatus() != FilePartDownloadState.CANCELLED)
+                .filter(p -> p.getCurrentStartPosition() < getEnd(p, bitmap))
+                .map(p -> new BlockBitmap.Range(bitmap.getBlockStart(bitmap.getBlock(p.getCurrentStartPosition())),
+                        bitmap.getBlockEnd(bitmap.getBlock(getEnd(p, bitmap) - 1))))
+                .sorted(Comparator.comparingLong(BlockBitmap.Range::getStart))
+                .collect(Collectors.toList());
+
+        int submittedCount = 0;
+        for (IManagedDownloadableFilePart host : parts) {
+            if (host.isGapPart() || !host.isDownloadResumeSupported())
+                continue; //Fills a gap itself, or cannot download a range
+            final long hostEnd = getEnd(host, bitmap);
+            BlockBitmap.Range gap;
+            for (long from = host.getStart(); (gap = bitmap.findGap(from, hostEnd)) != null; from = gap.getEnd()) {
+                long unplannedStart = gap.getStart();
+                for (BlockBitmap.Range plannedRange : plannedRanges) {
+                    if (plannedRange.getStart() >= gap.getEnd())
+                        break;
+                    if (plannedRange.getStart() > unplannedStart && submitGapPart(file, host, unplannedStart, plannedRange.getStart()))
+                        submittedCount++;
+                    unplannedStart = Math.max(unplannedStart, plannedRange.getEnd());
+                }
+                if (unplannedStart < gap.getEnd() && submitGapPart(file, host, unplannedStart, gap.getEnd()))
+                    submittedCount++;
+            }
+        }
+        return submittedCount;
+    }
+
+    @Override
+    public synchronized int fillGap(IManagedDownloadableFile file, long start, long end) {
+        final BlockBitmap bitmap = file.getBlockBitmap();
+        if (!fileIsKnown(file) || bitmap == null)
+            return 0;
+
+        int submittedCount = 0;
+        for (IManagedDownloadableFilePart host : file.getDownloadableParts()) {
+            final long gapStart = Math.max(start, host.getStart());
+            final long gapEnd = Math.min(end, getEnd(host, bitmap));
+            if (host.isGapPart() || !host.isDownloadResumeSupported() || gapStart >= gapEnd)
+                continue;
+            if (submitGapPart(file, host, gapStart, gapEnd))
+                submittedCount++;
+        }
+        return submittedCount;
+    }
+
+    @Override
+    public void startPieceVerification(IManagedDownloadableFile file) {
+        final BlockBitmap bitmap = file.getBlockBitmap();
+        if (bitmap == null || file.getDownloadOptions().getPieceManifest() == null)
+            return;
+        bitmap.setCompletionListener(piece -> verifyPiece(file, bitmap, piece));
+        for (int piece = 0; piece < bitmap.getBlocksCount(); piece++) {
+            if (bitmap.isCompleted(piece)) //Verifying a piece twice is harmless
+                verifyPiece(file, bitmap, piece);
+        }
+    }
+
+    private void verifyPiece(IManagedDownloadableFile file, BlockBitmap bitmap, int piece) {
+        try {
+            pieceVerificationExecutor.execute(new PieceVerification(this, file, bitmap, piece));
+        } catch (RejectedExecutionException e) {
+            logger.debug("Piece " + piece + " is not verified, the Dispatcher is closed. File: " + file);
+        }
+    }
+
+    /**
+     * @return Offset of the byte that follows the last byte of a part
+     */
+    private static long getEnd(IManagedDownloadableFilePart part, BlockBitmap bitmap) {
+        return part.getLength() > 0 ? part.getStart() + part.getLength() : bitmap.getTotalLength();
+    }
+
+    private boolean submitGapPart(IManagedDownloadableFile file, IManagedDownloadableFilePart host, long start, long end) {
+        final DownloadableFilePart gapPart = new DownloadableFilePart(host.getOutputFile(), host.getLocator(),
+                start, end - start, host.getOutputFileStart());
+        if (!file.addGapPart(gapPart))
+            return false;
+        logger.info("Filling gap [" + start + ", " + end + ") of file " + file.getOutputFile());
+        executor.execute(new HttpPartDownloadCommunication(TaskPriority.RETRIED_TASK, this, communicationComponent, file, gapPart));
+        return true;
+    }
+
     @Override
     public synchronized void setThreadPoolSize(int newSize, boolean evictNonResumable) {
         logger.info("Setting new core and max pool size: " + newSize);
-        executor.setCorePoolSize(newSize);
-        executor.setMaximumPoolSize(newSize);
+        executor.resize(newSize);
         executor.prestartAllCoreThreads();
 
         logger.debug("New pool size: " + executor.getPoolSize());
@@ -107,33 +347,282 @@ public class DispatchingQueue implements IDispatchingQueue {
         }
     }
 
+    @Override
+    public synchronized void resizeThreadPoolGracefully(int newSize, long byteQuota) {
+        logger.info("Setting new core and max pool size: " + newSize + ", byte quota of surplus tasks: " + byteQuota);
+        executor.resize(newSize);
+        executor.prestartAllCoreThreads();
+
+        //Tasks that cannot be resumed are left to complete: yielding would throw their data away
+        final int surplusCount = executor.getActiveTasks().size() - newSize;
+        final List<IManagedDownloadableFilePart> surplusParts = chooseEvictionVictims(t ->
+                t.getFilePart().isDownloadResumeSupported());
+        for (int i = 0; i < surplusCount && i < surplusParts.size(); i++) {
+            logger.debug("Task will yield after " + byteQuota + " more bytes: " + surplusParts.get(i));
+            surplusParts.get(i).requestYield(byteQuota);
+        }
+    }
+
+    @Override
+    public synchronized void setProbeThreadPoolSize(int newSize) {
+        logger.info("Setting new probe pool size: " + newSize);
+        if (newSize > probeExecutor.getMaximumPoolSize()) {
+            probeExecutor.setMaximumPoolSize(newSize);
+            probeExecutor.setCorePoolSize(newSize);
+        } else {
+            probeExecutor.setCorePoolSize(newSize);
+            probeExecutor.setMaximumPoolSize(newSize);
+        }
+    }
+
+    @Override
+    public void setSchedulingPolicy(SchedulingPolicy policy) {
+        logger.info("Setting new scheduling policy: " + policy);
+        executor.getTaskQueue().setPolicy(policy);
+    }
+
+    @Override
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        logger.info("Setting new eviction policy: " + evictionPolicy);
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    @Override
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        logger.info("Setting new retry policy: " + retryPolicy);
+        this.retryPolicy = retryPolicy;
+    }
+
     /**
-     * Forcefully pause some tasks
+     * Forcefully pause some tasks. Victims are chosen among the running tasks according to the eviction policy.
      *
      * @param tasksToEvict      Number of tasks to suspend
      * @param evictNonResumable Whether to suspend tasks where download resume is not possible
      * @return Remaining number of tasks to evict
      */
     private synchronized int suspendSomeTasks(int tasksToEvict, boolean evictNonResumable) {
-        for (IManagedDownloadableFile file : knownFiles) {
-            for (IManagedDownloadableFilePart part : file.getDownloadableParts()) {
-                if (part.getStatus() == FilePartDownloadState.DOWNLOADING &&
-                        (part.isDownloadResumeSupported() || evictNonResumable)) {
-                    if (tasksToEvict-- <= 0)
-                        break;
+        final List<IManagedDownloadableFilePart> victims = chooseEvictionVictims(t ->
+                t.getFilePart().isDownloadResumeSupported() || evictNonResumable);
+        for (IManagedDownloadableFilePart part : victims) {
+            if (tasksToEvict <= 0)
+                break;
+            if (evict(part)) {
+                logger.warn("Evicted task because of the shortage of threads: "
+                        + part.getLocator() + ", file = " + part.getOutputFile());
+                tasksToEvict--;
+            }
+        }
+        return tasksToEvict;
+    }
+
+    /**
+     * Suspend a running part to free its worker. If the stream of the part may be parked, the worker finishes
+     * its current read first; a read that is still blocked after {@link AppSettings#getEvictionAbortDelay()}
+     * is aborted, so the worker is freed soon anyway.
+     *
+     * @return Whether the part was suspended
+     */
+    private boolean evict(IManagedDownloadableFilePart part) {
+        if (!part.suspend())
+            return false;
+        if (part.getStatus() == FilePartDownloadState.SUSPEND_REQUESTED) { //The transfer was not aborted
+            try {
+                maintenanceExecutor.schedule(() -> {
+                    if (part.getStatus() == FilePartDownloadState.SUSPEND_REQUESTED) {
+                        logger.debug("Evicted part has not finished its read in time, aborting it: " + part);
+                        part.abortTransfer();
+                    }
+                }, AppSettings.getEvictionAbortDelay(), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                part.abortTransfer();
+            }
+        }
+        return true;
+    }
 
-                    logger.warn("Evicted task because of the shortage of threads: "
-                            + part.getLocator() + ", file = " + part.getOutputFile());
-                    part.suspend();
+    /**
+     * @param filter Condition that a task must satisfy to be evicted
+     * @return Parts of the running tasks that may be evicted, the most preferable victims first
+     */
+    private List<IManagedDownloadableFilePart> chooseEvictionVictims(Predicate<IFilePartCommunication> filter) {
+        final EvictionPolicy policy = evictionPolicy;
+        final List<Map.Entry<IManagedDownloadableFilePart, Long>> candidates = new ArrayList<>();
+        for (IFilePartCommunication task : executor.getActiveTasks()) {
+            if (task.getFilePart().getStatus() == FilePartDownloadState.DOWNLOADING && filter.test(task)) {
+                //The cost is evaluated once: it changes over time, which would break sorting
+                candidates.add(new AbstractMap.SimpleImmutableEntry<>(task.getFilePart(), policy.getEvictionCost(task)));
+            }
+        }
+        candidates.sort(Map.Entry.comparingByValue());
+        return candidates.stream().map(Map.Entry::getKey).collect(Collectors.toList());
+    }
+
+    @Override
+    public IDownloadableFile submitFile(String url, File outputDir, int nThreads) {
+        return submitFile(url, outputDir, nThreads, DownloadOptions.DEFAULT);
+    }
+
+    /**
+     * Suspend part downloads of files of lower priority classes in favour of the files that are likely
+     * to miss their deadlines. Suspended parts are re-submitted and will resume after the urgent ones.
+     */
+    private synchronized void preemptForDeadlines() {
+        try {
+            if (executor.getActiveCount() < executor.getMaximumPoolSize())
+                return; //Queued parts will get a free thread anyway
+
+            final long now = System.currentTimeMillis();
+            knownFiles.stream()
+                    .filter(f -> f.getDownloadOptions().hasDeadline())
+                    .filter(f -> f.getDownloadableParts().stream().anyMatch(p -> p.getStatus() == FilePartDownloadState.PENDING))
+                    .filter(f -> deadlineIsAtRisk(f, now))
+                    .sorted(Comparator.comparingLong(f -> f.getDownloadOptions().getDeadline()))
+                    .forEach(urgentFile -> {
+                        final int urgentClass = urgentFile.getDownloadOptions().getPriorityClass().getNumericValue();
+                        chooseEvictionVictims(t -> t.getFilePart().isDownloadResumeSupported() &&
+                                t.getFile().getDownloadOptions().getPriorityClass().getNumericValue() < urgentClass)
+                                .stream()
+                                .filter(this::evict)
+                                .findFirst()
+                                .ifPresent(p -> logger.warn("Evicted task in favour of the file " + urgentFile.getLocator() +
+                                        " which may miss its deadline: " + p.getLocator() + ", file = " + p.getOutputFile()));
+                    });
+        } catch (RuntimeException e) {
+            logger.error("Failed to check download deadlines", e);
+        }
+    }
+
+    /**
+     * @return Whether the file will miss its deadline at its current download speed. If the speed or the size of
+     * the file is not known yet, whether the deadline is closer than {@link AppSettings#getDeadlineRiskThreshold()}.
+     */
+    private static boolean deadlineIsAtRisk(IManagedDownloadableFile file, long now) {
+        final long timeLeft = file.getDownloadOptions().getDeadline() - now;
+        final long remainingLength = file.getRemainingLength();
+        final int speed = file.getDownloadSpeed();
+        if (timeLeft <= 0)
+            return true;
+        if (remainingLength < 0 || speed <= 0)
+            return timeLeft < AppSettings.getDeadlineRiskThreshold();
+        return remainingLength * 1000 / speed > timeLeft;
+    }
+
+    /**
+     * Watchdog: restart the part downloads that have transferred less than
+     * {@link AppSettings#getMinPartDownloadSpeed()} bytes/s during the last {@link AppSettings#getStallDetectionWindow()}.
+     * Time spent waiting for bandwidth limits is not counted. The request of a stalled part is aborted,
+     * and the part is re-submitted from its current offset. Runs on the maintenance thread only.
+     */
+    private void restartStalledParts() {
+        try {
+            final long minSpeed = AppSettings.getMinPartDownloadSpeed();
+            final long window = TimeUnit.MILLISECONDS.toNanos(AppSettings.getStallDetectionWindow());
+            final long now = System.nanoTime();
+            final Set<IManagedDownloadableFilePart> downloadingParts = new HashSet<>();
+
+            for (IFilePartCommunication task : executor.getActiveTasks()) {
+                final IManagedDownloadableFilePart part = task.getFilePart();
+                if (part.getStatus() != FilePartDownloadState.DOWNLOADING)
+                    continue;
+                downloadingParts.add(part);
+
+                final ProgressSample sample = progressSamples.get(part);
+                if (sample == null || minSpeed <= 0) {
+                    progressSamples.put(part, new ProgressSample(part, now));
+                    continue;
                 }
+
+                final long elapsedTime = now - sample.timestamp - (part.getThrottledTime() - sample.throttledTime);
+                if (now - sample.timestamp < window)
+                    continue;
+                //Otherwise the part was mostly throttled, so we cannot judge
+                if (elapsedTime > 0 && elapsedTime >= window / 2) {
+                    final long speed = (part.getDownloadedBytesCount() - sample.downloadedBytesCount) *
+                            TimeUnit.SECONDS.toNanos(1) / elapsedTime;
+                    if (speed < minSpeed && part.isDownloadResumeSupported() && part.suspend()) {
+                        logger.warn("Part download has stalled (" + speed + " bytes/s), restarting it: " + part);
+                        metrics.stalledPartRestarted();
+                        part.abortTransfer(); //A stalled stream is not worth parking
+                    }
+                }
+                //A new window starts, for the restarted download as well
+                progressSamples.put(part, new ProgressSample(part, now));
             }
+            progressSamples.keySet().retainAll(downloadingParts);
+        } catch (RuntimeException e) {
+            logger.error("Failed to check for stalled downloads", e);
         }
-        return tasksToEvict;
     }
 
-    public synchronized IDownloadableFile submitFile(String url, File outputDir, int nThreads) {
-        final DownloadableFile downloadableFile = new DownloadableFile(url, outputDir, nThreads);
-        if (fileIsKnown(downloadableFile))
+    /**
+     * Time slicing: when part downloads are waiting for a worker, make the running ones that have used up
+     * {@link AppSettings#getTimeSliceDuration()} or {@link AppSettings#getTimeSliceBytes()} yield their workers,
+     * the oldest slices first. Only resumable parts are rotated, and their streams are parked on the way out,
+     * so a rotation costs no more than an eviction. Runs on the maintenance thread only.
+     */
+    private void rotateTimeSlices() {
+        try {
+            final long sliceDuration = TimeUnit.MILLISECONDS.toNanos(AppSettings.getTimeSliceDuration());
+            final long sliceBytes = AppSettings.getTimeSliceBytes();
+            rotatedParts.removeIf(p -> p.getStatus() != FilePartDownloadState.DOWNLOADING &&
+                    p.getStatus() != FilePartDownloadState.SUSPEND_REQUESTED);
+            if (sliceDuration <= 0 && sliceBytes <= 0) {
+                timeSlices.clear();
+                return;
+            }
+
+            final long now = System.nanoTime();
+            final Collection<IFilePartCommunication> activeTasks = new ArrayList<>(executor.getActiveTasks());
+            timeSlices.keySet().retainAll(activeTasks);
+            final List<IFilePartCommunication> expiredTasks = new ArrayList<>();
+            for (IFilePartCommunication task : activeTasks) {
+                final IManagedDownloadableFilePart part = task.getFilePart();
+                if (part.getStatus() != FilePartDownloadState.DOWNLOADING || !part.isDownloadResumeSupported())
+                    continue;
+                final ProgressSample sliceStart = timeSlices.computeIfAbsent(task, t -> new ProgressSample(part, now));
+                if (sliceDuration > 0 && now - sliceStart.timestamp >= sliceDuration ||
+                        sliceBytes > 0 && part.getDownloadedBytesCount() - sliceStart.downloadedBytesCount >= sliceBytes)
+                    expiredTasks.add(task);
+            }
+
+            //There is no point in freeing more workers than there are tasks to take them
+            final int waitingTasksCount = executor.getQueue().size();
+            expiredTasks.sort(Comparator.comparingLong(t -> timeSlices.get(t).timestamp));
+            for (IFilePartCommunication task : expiredTasks.subList(0, Math.min(waitingTasksCount, expiredTasks.size()))) {
+                logger.debug("Time slice is over, rotating task: " + task.getFilePart());
+                rotatedParts.add(task.getFilePart());
+                task.getFilePart().requestYield(0);
+                timeSlices.remove(task);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Failed to rotate time slices", e);
+        }
+    }
+
+    /**
+     * Progress of a part download at some moment of time
+     */
+    private static class ProgressSample {
+        final long timestamp; //in ns
+        final long downloadedBytesCount;
+        final long throttledTime; //in ns
+
+        ProgressSample(IManagedDownloadableFilePart part, long timestamp) {
+            this.timestamp = timestamp;
+            this.downloadedBytesCount = part.getDownloadedBytesCount();
+            this.throttledTime = part.getThrottledTime();
+        }
+    }
+
+    @Override
+    public synchronized IDownloadableFile submitFile(String url, File outputDir, int nThreads, DownloadOptions options) {
+        if (options.getGroup() != null && !(options.getGroup() instanceof IManagedDownloadGroup))
+            throw new IllegalArgumentException("Download group must be created by the Dispatcher: " + options.getGroup());
+        final DownloadableFile downloadableFile = new DownloadableFile(url, outputDir, nThreads, options);
+        final String normalizedUrl = normalizeLocator(url);
+        final IManagedDownloadableFile original = AppSettings.deduplicateRequests() ?
+                findOriginal(f -> normalizeLocator(f.getLocator()).equals(normalizedUrl)) : null;
+        if (original == null && knownFiles.stream().anyMatch(f -> f.getLocator().equals(url)))
             throw new RuntimeException("Download request with this URL is already submitted: " + url);
         knownFiles.forEach(f -> {
             if (f.getOutputFile().equals(downloadableFile.getOutputFile()))
@@ -142,10 +631,116 @@ public class DispatchingQueue implements IDispatchingQueue {
         });
 
         knownFiles.add(downloadableFile);
-        executor.execute(new HttpDownloadCheckCommunication(this, communicationComponent, downloadableFile));
+        updateJournal(j -> j.fileAdded(downloadableFile));
+        final IManagedDownloadGroup group = downloadableFile.getGroup();
+        if (group != null)
+            group.addFile(downloadableFile);
+        if (original != null) {
+            duplicates.put(downloadableFile, original);
+            logger.info("File " + url + " is being downloaded already, it will be copied to " +
+                    downloadableFile.getOutputFile() + " when it's done");
+        } else {
+            probeExecutor.execute(new HttpDownloadCheckCommunication(this, communicationComponent, downloadableFile));
+        }
         return downloadableFile;
     }
 
+    @Override
+    public synchronized boolean attachToIdenticalDownload(IManagedDownloadableFile file, String entityTag, long size) {
+        //A weak entity tag does not guarantee identical bytes
+        if (!AppSettings.deduplicateRequests() || entityTag == null || entityTag.startsWith("W/") || size <= 0 ||
+                !fileIsKnown(file))
+            return false;
+        final IManagedDownloadableFile original = findOriginal(f -> f != file && f.getTotalLength() == size &&
+                entityTag.equals(f.getResumeValidator(f.getLocator())));
+        if (original == null)
+            return false;
+        duplicates.put(file, original);
+        logger.info("File " + file.getLocator() + " has the same content as " + original.getLocator() +
+                ", which is being downloaded already. It will be copied to " + file.getOutputFile() + " when it's done");
+        return true;
+    }
+
+    /**
+     * @param sameContent Whether a download fetches the content that is requested
+     * @return Download in progress that fetches the content on its own (not as a duplicate), or null
+     */
+    @Nullable
+    private IManagedDownloadableFile findOriginal(Predicate<IManagedDownloadableFile> sameContent) {
+        return knownFiles.stream()
+                .filter(f -> !duplicates.containsKey(f))
+                .filter(f -> {
+                    final FileDownloadState status = f.getStatus();
+                    return status != FileDownloadState.DONE && status != FileDownloadState.FAILED &&
+                            status != FileDownloadState.CANCELLED;
+                })
+                .filter(sameContent)
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Copy the content of the finished downloads to their duplicates. The duplicates of the downloads that have
+     * failed or were cancelled are downloaded on their own.
+     */
+    private void releaseDuplicates() {
+        try {
+            for (Iterator<Map.Entry<IManagedDownloadableFile, IManagedDownloadableFile>> iterator =
+                 duplicates.entrySet().iterator(); iterator.hasNext(); ) {
+                final Map.Entry<IManagedDownloadableFile, IManagedDownloadableFile> entry = iterator.next();
+                final IManagedDownloadableFile duplicate = entry.getKey();
+                final FileDownloadState originalStatus = entry.getValue().getStatus();
+                if (!fileIsKnown(duplicate) || duplicate.getStatus() == FileDownloadState.CANCELLED) {
+                    iterator.remove();
+                } else if (originalStatus == FileDownloadState.DONE) {
+                    iterator.remove();
+                    pieceVerificationExecutor.execute(new LocalCopy(this, duplicate, entry.getValue().getOutputFile()));
+                } else if (originalStatus == FileDownloadState.FAILED || originalStatus == FileDownloadState.CANCELLED) {
+                    iterator.remove();
+                    logger.info("Download of the same content has failed or was cancelled, downloading file " +
+                            duplicate.getLocator() + " on its own");
+                    probeExecutor.execute(new HttpDownloadCheckCommunication(this, communicationComponent, duplicate));
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Failed to release duplicate downloads", e);
+        }
+    }
+
+    /**
+     * @return URL in a canonical form: the scheme and the host are case-insensitive, and neither the default port
+     * nor the fragment changes the resource
+     */
+    private static String normalizeLocator(String locator) {
+        final URI uri;
+        try {
+            uri = new URI(locator);
+        } catch (URISyntaxException e) {
+            return locator;
+        }
+        if (uri.getScheme() == null || uri.getHost() == null)
+            return locator;
+        final String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+        final boolean defaultPort = uri.getPort() == 80 && scheme.equals("http") ||
+                uri.getPort() == 443 && scheme.equals("https");
+        return scheme + "://" +
+                (uri.getRawUserInfo() != null ? uri.getRawUserInfo() + "@" : "") +
+                uri.getHost().toLowerCase(Locale.ROOT) +
+                (uri.getPort() != -1 && !defaultPort ? ":" + uri.getPort() : "") +
+                (uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath()) +
+                (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "");
+    }
+
+    @Override
+    public IDownloadGroup createGroup(String name, IDownloadGroup parent, int weight, int maxWorkers, long maxBytesPerSecond) {
+        if (parent != null && !(parent instanceof DownloadGroup))
+            throw new IllegalArgumentException("Parent group must be created by the Dispatcher: " + parent);
+        final DownloadGroup group = new DownloadGroup(name, (DownloadGroup) parent, weight, maxWorkers, maxBytesPerSecond);
+        group.setMaxWorkersListener(executor.getTaskQueue()::workerCapChanged);
+        logger.info("Created download group " + group);
+        return group;
+    }
+
     @Override
     public Collection<IDownloadableFile> getAllFiles() {
         return Collections.unmodifiableSet(knownFiles);
@@ -158,6 +753,10 @@ public class DispatchingQueue implements IDispatchingQueue {
             final boolean shouldCancel = file.getStatus() != FileDownloadState.DONE;
             //noinspection SuspiciousMethodCalls
             knownFiles.remove(file);
+            updateJournal(j -> j.fileRemoved((IManagedDownloadableFile) file));
+            final IManagedDownloadGroup group = ((IManagedDownloadableFile) file).getGroup();
+            if (group != null)
+                group.removeFile((IManagedDownloadableFile) file);
             if (shouldCancel && file.cancel()) {
                 file.getDownloadableParts().stream().map(IDownloadableFilePart::getOutputFile)
                         .forEach(f -> trashRemovalExecutor.submit(new FileRemovalTask(f)));
@@ -169,6 +768,140 @@ public class DispatchingQueue implements IDispatchingQueue {
         return false;
     }
 
+    /**
+     * Read the downloads that were recorded in the journal. The data of their parts is truncated
+     * to the last checkpoint, and the parts will resume from there. The tail of the data before the checkpoint
+     * is dropped as well and downloaded once more (see {@link AppSettings#getResumeVerificationWindow()}).
+     *
+     * @param journalFile Path to the journal
+     * @return Restored files. The ones without parts have to be checked again.
+     */
+    private List<IManagedDownloadableFile> restoreFiles(File journalFile) {
+        final List<DownloadJournal.FileRecord> records;
+        try {
+            records = DownloadJournal.read(journalFile);
+        } catch (IOException e) {
+            logger.error("Failed to read the download journal " + journalFile, e);
+            return new ArrayList<>();
+        }
+
+        final List<IManagedDownloadableFile> restoredFiles = new ArrayList<>();
+        for (DownloadJournal.FileRecord record : records) {
+            final DownloadableFile file = DownloadableFile.restore(record.locator, record.outputFile,
+                    record.maxThreadCount, record.options);
+            try {
+                if (record.hasCompleteLayout()) {
+                    file.setTotalLength(record.totalLength);
+                    file.setRemoteDigest(record.remoteDigest); //Restored parts are hashed when the file is saved
+                    final BlockBitmap savedBitmap = BlockBitmap.load(
+                            DownloadJournal.getBlockBitmapFile(record.outputFile), record.totalLength);
+                    for (DownloadJournal.PartRecord partRecord : record.parts) {
+                        final IManagedDownloadableFilePart part = restorePart(record, partRecord, savedBitmap);
+                        file.addPart(part);
+                        final BlockBitmap bitmap = file.getBlockBitmap();
+                        if (bitmap != null)
+                            bitmap.markCompleted(part.getStart(), part.getCurrentStartPosition());
+                    }
+                    record.resumeValidators.forEach(file::setResumeValidator);
+                }
+                restoredFiles.add(file);
+                logger.info("Restored download from the journal: " + file);
+            } catch (IOException e) {
+                logger.error("Failed to restore download " + record.locator, e);
+            }
+        }
+        return restoredFiles;
+    }
+
+    /**
+     * @param savedBitmap Block bitmap that was saved with the journal, or null. If a block that lies within
+     *                    the downloaded range of the part is not completed there (e.g. its data has turned out
+     *                    to be corrupted), the part resumes from it.
+     */
+    private static IManagedDownloadableFilePart restorePart(DownloadJournal.FileRecord record,
+                                                            DownloadJournal.PartRecord partRecord,
+                                                            @Nullable BlockBitmap savedBitmap) throws IOException {
+        final DownloadableFilePart part = new DownloadableFilePart(partRecord.outputFile, record.locator,
+                partRecord.start, partRecord.length);
+        long resumePosition = 0;
+        if (partRecord.downloadResumeSupported) {
+            resumePosition = Math.min(partRecord.downloadedBytesCount, partRecord.outputFile.length());
+            if (savedBitmap != null) {
+                //The blocks that the part has written only partially are not checked: the checkpoint covers their
+                //bytes, but the bitmap does not store the incomplete blocks
+                final long downloadedEnd = partRecord.start + resumePosition;
+                for (int block = savedBitmap.getBlock(partRecord.start);
+                     block < savedBitmap.getBlocksCount() && savedBitmap.getBlockEnd(block) <= downloadedEnd; block++) {
+                    if (savedBitmap.getBlockStart(block) >= partRecord.start && !savedBitmap.isCompleted(block)) {
+                        resumePosition = savedBitmap.getBlockStart(block) - partRecord.start;
+                        break;
+                    }
+                }
+            }
+            //The last bytes before the checkpoint may have not reached the disk intact after an unclean stop
+            resumePosition -= Math.min(Math.max(AppSettings.getResumeVerificationWindow(), 0), resumePosition);
+        } else {
+            part.setDownloadResumeNotSupported(); //Has to start over
+        }
+        try (RandomAccessFile partData = new RandomAccessFile(partRecord.outputFile, "rw")) {
+            partData.setLength(resumePosition); //Drop the data that was written after the checkpoint
+        }
+        part.incrementDownloadedBytesCount(resumePosition);
+        return part;
+    }
+
+    @Nullable
+    private DownloadJournal openJournal(File journalFile, List<IManagedDownloadableFile> restoredFiles) {
+        try {
+            return DownloadJournal.open(journalFile, restoredFiles);
+        } catch (IOException e) {
+            logger.error("Failed to open the download journal " + journalFile + ", downloads will not be persisted", e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private DownloadCache openCache(@Nullable File cacheDirectory) {
+        if (cacheDirectory == null)
+            return null;
+        try {
+            return new DownloadCache(cacheDirectory, AppSettings.getMaxCacheSize());
+        } catch (IOException e) {
+            logger.error("Failed to open the download cache " + cacheDirectory + ", files will not be cached", e);
+            return null;
+        }
+    }
+
+    private void resubmitRestoredFile(IManagedDownloadableFile file) {
+        knownFiles.add(file);
+        startPieceVerification(file); //The pieces are not trusted after a restart
+        if (file.getDownloadableParts().isEmpty()) {
+            probeExecutor.execute(new HttpDownloadCheckCommunication(this, communicationComponent, file));
+        } else {
+            for (IManagedDownloadableFilePart part : file.getDownloadableParts())
+                executor.execute(new HttpPartDownloadCommunication(
+                        TaskPriority.NEW_PART_DOWNLOAD, this, communicationComponent, file, part));
+        }
+    }
+
+    /**
+     * Apply a change to the journal, if it's enabled. A failure of the journal does not stop the downloads.
+     */
+    private void updateJournal(JournalUpdate update) {
+        if (journal == null)
+            return;
+        try {
+            update.apply(journal);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to update the download journal", e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface JournalUpdate {
+        void apply(DownloadJournal journal) throws IOException;
+    }
+
     private boolean fileIsKnown(IDownloadableFile file) {
         return file instanceof IManagedDownloadableFile && knownFiles.contains(file);
     }
@@ -198,12 +931,50 @@ public class DispatchingQueue implements IDispatchingQueue {
         }
     }
 
+    @Override
+    public IDispatcherMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public BandwidthThrottle getBandwidthThrottle() {
+        return bandwidthThrottle;
+    }
+
+    @Override
+    public ParkedStreamRegistry getParkedStreamRegistry() {
+        return parkedStreams;
+    }
+
+    @Override
+    public DownloadCache getDownloadCache() {
+        return cache;
+    }
+
+    @Override
+    public FileDeduplicator getFileDeduplicator() {
+        return deduplicator;
+    }
+
     @Override
     public synchronized void close() throws IOException {
-        knownFiles.forEach(IDownloadableFile::cancel);
+        //With the journal, the downloads are only stopped: the next Dispatcher will resume them
+        if (journal != null)
+            knownFiles.forEach(IDownloadableFile::pause);
+        else
+            knownFiles.forEach(IDownloadableFile::cancel);
+        maintenanceExecutor.shutdownNow();
+        probeExecutor.shutdownNow();
+        pieceVerificationExecutor.shutdownNow();
         executor.shutdownNow();
         trashRemovalExecutor.shutdownNow();
+        parkedStreams.closeAll();
         communicationComponent.close();
+        if (journal != null) {
+            updateJournal(DownloadJournal::checkpoint);
+            journal.close();
+            return;
+        }
 
         knownFiles.forEach(file -> {
             file.getDownloadableParts().stream().map(IDownloadableFilePart::getOutputFile).forEach(f -> {
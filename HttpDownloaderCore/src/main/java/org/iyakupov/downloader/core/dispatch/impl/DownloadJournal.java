@@ -0,0 +1,601 @@
+package org.iyakupov.downloader.core.dispatch.impl;
+
+import org.iyakupov.downloader.core.file.DownloadOptions;
+import org.iyakupov.downloader.core.file.DownloadPriorityClass;
+import org.iyakupov.downloader.core.file.FileDigest;
+import org.iyakupov.downloader.core.file.PieceManifest;
+import org.iyakupov.downloader.core.file.internal.BlockBitmap;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFile;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFilePart;
+import org.iyakupov.downloader.core.file.state.FileDownloadState;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the Dispatcher's downloads, so that they survive a restart (or a crash) of the JVM.
+ * <p>
+ * The journal records each file (locator, output file and options), the layout of its parts with the versions
+ * (and digests) of the remote file they are downloaded from, and checkpoints of the downloaded bytes count of each part. A checkpoint first syncs the temporary files of the parts
+ * to the disk, so the recorded progress never exceeds the data that is actually stored. The journal itself
+ * is synced once per checkpoint rather than on each record. When the journal grows, it's compacted:
+ * a snapshot of the live downloads is written to a new file, which atomically replaces the old one.
+ * <p>
+ * Each record is stored as [length][type][payload][CRC32]. A torn or corrupted record ends the journal:
+ * the records after it are ignored on recovery.
+ * <p>
+ * The {@link BlockBitmap} of each file is saved by the checkpoints as well, next to the output file
+ * (see {@link #getBlockBitmapFile(File)}). Like the progress, it's snapshotted before the data is synced.
+ */
+class DownloadJournal implements Closeable {
+    private static final int MAGIC = 0x444C4A31; //"DLJ1"
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024; //piece manifests of large files may be long
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024; //1MByte
+
+    private static final byte FILE_ADDED = 1;
+    private static final byte PART_ADDED = 2;
+    private static final byte PART_PROGRESS = 3;
+    private static final byte FILE_REMOVED = 4;
+    private static final byte RESUME_VALIDATORS = 5;
+    private static final byte FILE_REPLANNED = 6;
+
+    private final static Logger logger = LoggerFactory.getLogger(DownloadJournal.class);
+
+    @NotNull
+    private final File journalFile;
+
+    private final Map<IManagedDownloadableFile, JournaledFile> journaledFiles = new LinkedHashMap<>();
+    private long nextFileId = 0;
+    private DataOutputStream journalStream;
+    private FileOutputStream journalFileStream;
+    private long journalSize;
+    private long compactedSize;
+
+    private DownloadJournal(@NotNull File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Open the journal for appending. Its previous content is replaced by a snapshot of the given files.
+     *
+     * @param journalFile Path to the journal
+     * @param files       Downloads that are already known (e.g. restored from this journal by {@link #read(File)})
+     * @return Journal
+     * @throws IOException If the journal cannot be written
+     */
+    @NotNull
+    static DownloadJournal open(@NotNull File journalFile, @NotNull Collection<IManagedDownloadableFile> files)
+            throws IOException {
+        final DownloadJournal journal = new DownloadJournal(journalFile);
+        synchronized (journal) {
+            for (IManagedDownloadableFile file : files) {
+                final JournaledFile journaledFile = new JournaledFile(journal.nextFileId++);
+                for (IManagedDownloadableFilePart part : file.getDownloadableParts()) {
+                    //Restored progress is already stored on the disk
+                    journaledFile.checkpointedBytesCounts.put(journaledFile.parts.size(), part.getDownloadedBytesCount());
+                    journaledFile.parts.add(part);
+                }
+                journal.journaledFiles.put(file, journaledFile);
+            }
+            journal.compact();
+        }
+        return journal;
+    }
+
+    /**
+     * Register a new download
+     *
+     * @param file File download request
+     */
+    synchronized void fileAdded(@NotNull IManagedDownloadableFile file) throws IOException {
+        if (journaledFiles.containsKey(file))
+            return;
+        final JournaledFile journaledFile = new JournaledFile(nextFileId++);
+        journaledFiles.put(file, journaledFile);
+        append(FILE_ADDED, out -> writeFile(out, journaledFile.id, file));
+    }
+
+    /**
+     * Register a part of a file. Must be called in the order of the parts.
+     *
+     * @param file File download request
+     * @param part New part of this file
+     */
+    synchronized void partAdded(@NotNull IManagedDownloadableFile file, @NotNull IManagedDownloadableFilePart part)
+            throws IOException {
+        final JournaledFile journaledFile = journaledFiles.get(file);
+        if (journaledFile == null || journaledFile.parts.contains(part))
+            return;
+        if (journaledFile.parts.isEmpty()) //The layout was planned for this version of the remote file
+            append(RESUME_VALIDATORS, out -> writeResumeValidators(out, journaledFile.id, file));
+        journaledFile.parts.add(part);
+        append(PART_ADDED, out -> writePart(out, journaledFile.id, file, part, 0));
+    }
+
+    /**
+     * Forget a download: it will not be restored
+     *
+     * @param file File download request
+     */
+    synchronized void fileRemoved(@NotNull IManagedDownloadableFile file) throws IOException {
+        final JournaledFile journaledFile = journaledFiles.remove(file);
+        if (journaledFile != null) {
+            append(FILE_REMOVED, out -> out.writeLong(journaledFile.id));
+            deleteBlockBitmap(file);
+        }
+    }
+
+    /**
+     * Forget the parts of a file: it will be checked and split into parts again
+     *
+     * @param file File download request
+     */
+    synchronized void fileReplanned(@NotNull IManagedDownloadableFile file) throws IOException {
+        final JournaledFile journaledFile = journaledFiles.get(file);
+        if (journaledFile == null)
+            return;
+        journaledFile.parts.clear();
+        journaledFile.checkpointedBytesCounts.clear();
+        journaledFile.savedBitmapModificationCount = -1;
+        append(FILE_REPLANNED, out -> out.writeLong(journaledFile.id));
+        deleteBlockBitmap(file);
+    }
+
+    /**
+     * Record the progress of all the parts that have downloaded something since the last checkpoint,
+     * save the block bitmaps that have changed, forget the completed and cancelled files, sync the journal
+     * to the disk, and compact it if it's too large.
+     */
+    synchronized void checkpoint() throws IOException {
+        for (Iterator<Map.Entry<IManagedDownloadableFile, JournaledFile>> iterator = journaledFiles.entrySet().iterator();
+             iterator.hasNext(); ) {
+            final Map.Entry<IManagedDownloadableFile, JournaledFile> entry = iterator.next();
+            final IManagedDownloadableFile file = entry.getKey();
+            final JournaledFile journaledFile = entry.getValue();
+            final FileDownloadState status = file.getStatus();
+            if (status == FileDownloadState.DONE || status == FileDownloadState.CANCELLED) {
+                iterator.remove();
+                append(FILE_REMOVED, out -> out.writeLong(journaledFile.id));
+                deleteBlockBitmap(file);
+                continue;
+            }
+
+            //The bitmap is updated before the progress of a part, so the snapshot that is taken after the progress
+            //is read covers it. The snapshot is taken before the data is synced, so it does not claim the bytes
+            //written afterwards.
+            final long[] downloadedBytesCounts = journaledFile.parts.stream()
+                    .mapToLong(IManagedDownloadableFilePart::getDownloadedBytesCount).toArray();
+            final BlockBitmap bitmap = file.getBlockBitmap();
+            final long bitmapModificationCount = bitmap == null ? -1 : bitmap.getModificationCount();
+            final BlockBitmap bitmapSnapshot = bitmap == null ||
+                    bitmapModificationCount == journaledFile.savedBitmapModificationCount ? null : bitmap.snapshot();
+            final Set<File> syncedFiles = new HashSet<>();
+            for (int i = 0; i < journaledFile.parts.size(); i++) {
+                final IManagedDownloadableFilePart part = journaledFile.parts.get(i);
+                final long downloadedBytesCount = downloadedBytesCounts[i];
+                if (journaledFile.checkpointedBytesCounts.getOrDefault(i, 0L) == downloadedBytesCount)
+                    continue;
+                syncToDisk(part.getOutputFile()); //The data must be stored before the journal claims so
+                syncedFiles.add(part.getOutputFile());
+                final int partIndex = i;
+                append(PART_PROGRESS, out -> writeProgress(out, journaledFile.id, partIndex, part, downloadedBytesCount));
+                journaledFile.checkpointedBytesCounts.put(i, downloadedBytesCount);
+            }
+
+            if (bitmapSnapshot != null) {
+                //Gap-filling parts are not journaled, but write into the files of the other parts
+                for (IManagedDownloadableFilePart part : file.getDownloadableParts()) {
+                    if (syncedFiles.add(part.getOutputFile()))
+                        syncToDisk(part.getOutputFile());
+                }
+                bitmapSnapshot.save(getBlockBitmapFile(file.getOutputFile()));
+                journaledFile.savedBitmapModificationCount = bitmapModificationCount;
+            }
+        }
+
+        journalStream.flush();
+        journalFileStream.getFD().sync();
+        if (journalSize > Math.max(MIN_COMPACTION_SIZE, 4 * compactedSize))
+            compact();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (journalStream != null)
+            journalStream.close();
+    }
+
+    /**
+     * Replace the journal with a snapshot of the live downloads
+     */
+    private void compact() throws IOException {
+        final File tempFile = new File(journalFile.getAbsolutePath() + ".tmp");
+        if (journalStream != null)
+            journalStream.close();
+
+        openStream(tempFile);
+        for (Map.Entry<IManagedDownloadableFile, JournaledFile> entry : journaledFiles.entrySet()) {
+            final IManagedDownloadableFile file = entry.getKey();
+            final JournaledFile journaledFile = entry.getValue();
+            append(FILE_ADDED, out -> writeFile(out, journaledFile.id, file));
+            if (!journaledFile.parts.isEmpty())
+                append(RESUME_VALIDATORS, out -> writeResumeValidators(out, journaledFile.id, file));
+            for (int i = 0; i < journaledFile.parts.size(); i++) {
+                final IManagedDownloadableFilePart part = journaledFile.parts.get(i);
+                final long downloadedBytesCount = journaledFile.checkpointedBytesCounts.getOrDefault(i, 0L);
+                append(PART_ADDED, out -> writePart(out, journaledFile.id, file, part, downloadedBytesCount));
+            }
+        }
+        journalStream.flush();
+        journalFileStream.getFD().sync();
+        journalStream.close();
+
+        Files.move(tempFile.toPath(), journalFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        compactedSize = journalSize;
+        journalFileStream = new FileOutputStream(journalFile, true);
+        journalStream = new DataOutputStream(new BufferedOutputStream(journalFileStream));
+        logger.debug("Compacted download journal " + journalFile + ", size = " + journalSize);
+    }
+
+    private void openStream(@NotNull File file) throws IOException {
+        journalFileStream = new FileOutputStream(file);
+        journalStream = new DataOutputStream(new BufferedOutputStream(journalFileStream));
+        journalStream.writeInt(MAGIC);
+        journalSize = Integer.BYTES;
+    }
+
+    private void append(byte type, @NotNull RecordWriter payloadWriter) throws IOException {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream payloadStream = new DataOutputStream(payload);
+        payloadStream.writeByte(type);
+        payloadWriter.write(payloadStream);
+        payloadStream.flush();
+
+        final CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+        journalStream.writeInt(payload.size());
+        payload.writeTo(journalStream);
+        journalStream.writeInt((int) crc.getValue());
+        journalSize += Integer.BYTES + payload.size() + Integer.BYTES;
+    }
+
+    /**
+     * @param outputFile Resulting file of a download
+     * @return Path to the saved block bitmap of the download
+     */
+    @NotNull
+    static File getBlockBitmapFile(@NotNull File outputFile) {
+        return new File(outputFile.getAbsolutePath() + ".blocks");
+    }
+
+    private static void deleteBlockBitmap(@NotNull IManagedDownloadableFile file) {
+        final File bitmapFile = getBlockBitmapFile(file.getOutputFile());
+        if (bitmapFile.exists() && !bitmapFile.delete())
+            logger.warn("Failed to delete block bitmap " + bitmapFile);
+    }
+
+    private static void syncToDisk(@NotNull File file) throws IOException {
+        if (!file.exists())
+            return;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+    }
+
+    private static void writeFile(@NotNull DataOutputStream out, long id, @NotNull IManagedDownloadableFile file)
+            throws IOException {
+        final DownloadOptions options = file.getDownloadOptions();
+        out.writeLong(id);
+        out.writeUTF(file.getLocator());
+        out.writeUTF(file.getOutputFile().getAbsolutePath());
+        out.writeInt(file.getMaxThreadCount());
+        out.writeInt(options.getWeight());
+        out.writeUTF(options.getPriorityClass().name());
+        out.writeLong(options.getDeadline());
+        out.writeLong(options.getMaxBytesPerSecond());
+        out.writeInt(options.getMirrors().size());
+        for (String mirror : options.getMirrors())
+            out.writeUTF(mirror);
+        writeDigest(out, options.getExpectedDigest());
+        writePieceManifest(out, options.getPieceManifest());
+    }
+
+    private static void writeResumeValidators(@NotNull DataOutputStream out, long fileId,
+                                              @NotNull IManagedDownloadableFile file) throws IOException {
+        final Map<String, String> validators = new LinkedHashMap<>();
+        for (String locator : file.getMirrorSelector().getLocators()) {
+            final String validator = file.getResumeValidator(locator);
+            if (validator != null)
+                validators.put(locator, validator);
+        }
+        out.writeLong(fileId);
+        out.writeInt(validators.size());
+        for (Map.Entry<String, String> entry : validators.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        writeDigest(out, file.getRemoteDigest()); //Declared by the server for this version of the file
+    }
+
+    private static void writeDigest(@NotNull DataOutputStream out, @Nullable FileDigest digest) throws IOException {
+        out.writeBoolean(digest != null);
+        if (digest != null) {
+            out.writeUTF(digest.getAlgorithm());
+            final byte[] value = digest.getValue();
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    private static void writePieceManifest(@NotNull DataOutputStream out, @Nullable PieceManifest manifest)
+            throws IOException {
+        out.writeBoolean(manifest != null);
+        if (manifest != null) {
+            out.writeUTF(manifest.getAlgorithm());
+            out.writeInt(manifest.getPieceLength());
+            out.writeInt(manifest.getPiecesCount());
+            for (int piece = 0; piece < manifest.getPiecesCount(); piece++) {
+                final byte[] value = manifest.getPieceDigest(piece).getValue();
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        }
+    }
+
+    /**
+     * @return Piece manifest, or null if none was written. The records of the older versions have no manifests.
+     */
+    @Nullable
+    private static PieceManifest readPieceManifest(@NotNull DataInputStream in) throws IOException {
+        if (in.available() <= 0 || !in.readBoolean())
+            return null;
+        final String algorithm = in.readUTF();
+        final int pieceLength = in.readInt();
+        final int piecesCount = in.readInt();
+        if (pieceLength <= 0 || piecesCount < 0 || piecesCount > in.available())
+            throw new IOException("Invalid piece manifest: " + pieceLength + " bytes per piece, " + piecesCount + " pieces");
+        final List<byte[]> pieceHashes = new ArrayList<>(piecesCount);
+        for (int piece = 0; piece < piecesCount; piece++) {
+            final int length = in.readInt();
+            if (length < 0 || length > in.available())
+                throw new IOException("Invalid digest length: " + length);
+            final byte[] value = new byte[length];
+            in.readFully(value);
+            pieceHashes.add(value);
+        }
+        return new PieceManifest(algorithm, pieceLength, pieceHashes);
+    }
+
+    /**
+     * @return Digest, or null if none was written. The records of the older versions have no digests.
+     */
+    @Nullable
+    private static FileDigest readDigest(@NotNull DataInputStream in) throws IOException {
+        if (in.available() <= 0 || !in.readBoolean())
+            return null;
+        final String algorithm = in.readUTF();
+        final int length = in.readInt();
+        if (length < 0 || length > in.available())
+            throw new IOException("Invalid digest length: " + length);
+        final byte[] value = new byte[length];
+        in.readFully(value);
+        return new FileDigest(algorithm, value);
+    }
+
+    /**
+     * @param downloadedBytesCount Checkpointed progress of the part (its data must be stored on the disk)
+     */
+    private static void writePart(@NotNull DataOutputStream out, long fileId, @NotNull IManagedDownloadableFile file,
+                                  @NotNull IManagedDownloadableFilePart part, long downloadedBytesCount)
+            throws IOException {
+        out.writeLong(fileId);
+        out.writeLong(file.getTotalLength());
+        out.writeUTF(part.getOutputFile().getAbsolutePath());
+        out.writeLong(part.getStart());
+        out.writeLong(part.getLength());
+        out.writeBoolean(part.isDownloadResumeSupported());
+        out.writeLong(downloadedBytesCount);
+    }
+
+    private static void writeProgress(@NotNull DataOutputStream out, long fileId, int partIndex,
+                                      @NotNull IManagedDownloadableFilePart part, long downloadedBytesCount)
+            throws IOException {
+        out.writeLong(fileId);
+        out.writeInt(partIndex);
+        out.writeLong(downloadedBytesCount);
+        out.writeLong(part.getLength()); //The length of a part may become known during the download
+    }
+
+    /**
+     * Read the downloads that were recorded in a journal
+     *
+     * @param journalFile Path to the journal
+     * @return Live downloads, in the order of their submission. Empty if there is no journal.
+     * @throws IOException If the journal cannot be read
+     */
+    @NotNull
+    static List<FileRecord> read(@NotNull File journalFile) throws IOException {
+        final Map<Long, FileRecord> files = new LinkedHashMap<>();
+        if (!journalFile.exists())
+            return new ArrayList<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a download journal: " + journalFile);
+            while (true) {
+                final byte[] payload;
+                try {
+                    final int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_LENGTH)
+                        break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    final CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if (in.readInt() != (int) crc.getValue())
+                        break;
+                } catch (EOFException e) {
+                    break;
+                }
+                readRecord(new DataInputStream(new ByteArrayInputStream(payload)), files);
+            }
+        } catch (EOFException e) {
+            logger.warn("Download journal is empty: " + journalFile);
+        }
+        return new ArrayList<>(files.values());
+    }
+
+    private static void readRecord(@NotNull DataInputStream in, @NotNull Map<Long, FileRecord> files) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+            case FILE_ADDED: {
+                final long id = in.readLong();
+                final String locator = in.readUTF();
+                final File outputFile = new File(in.readUTF());
+                final int maxThreadCount = in.readInt();
+                final DownloadOptions.Builder options = DownloadOptions.builder()
+                        .setWeight(in.readInt())
+                        .setPriorityClass(DownloadPriorityClass.valueOf(in.readUTF()))
+                        .setDeadline(in.readLong())
+                        .setMaxBytesPerSecond(in.readLong());
+                final int mirrorsCount = in.readInt();
+                final List<String> mirrors = new ArrayList<>();
+                for (int i = 0; i < mirrorsCount; i++)
+                    mirrors.add(in.readUTF());
+                options.setMirrors(mirrors);
+                options.setExpectedDigest(readDigest(in));
+                options.setPieceManifest(readPieceManifest(in));
+                files.put(id, new FileRecord(locator, outputFile, maxThreadCount, options.createDownloadOptions()));
+                break;
+            }
+            case PART_ADDED: {
+                final FileRecord file = files.get(in.readLong());
+                final long totalLength = in.readLong();
+                final PartRecord part = new PartRecord(new File(in.readUTF()), in.readLong(), in.readLong(),
+                        in.readBoolean(), in.readLong());
+                if (file != null) {
+                    file.totalLength = totalLength;
+                    file.parts.add(part);
+                }
+                break;
+            }
+            case PART_PROGRESS: {
+                final FileRecord file = files.get(in.readLong());
+                final int partIndex = in.readInt();
+                final long downloadedBytesCount = in.readLong();
+                final long length = in.readLong();
+                if (file != null && partIndex < file.parts.size()) {
+                    file.parts.get(partIndex).downloadedBytesCount = downloadedBytesCount;
+                    if (length > 0)
+                        file.parts.get(partIndex).length = length;
+                }
+                break;
+            }
+            case FILE_REMOVED:
+                files.remove(in.readLong());
+                break;
+            case RESUME_VALIDATORS: {
+                final FileRecord file = files.get(in.readLong());
+                final int validatorsCount = in.readInt();
+                for (int i = 0; i < validatorsCount; i++) {
+                    final String locator = in.readUTF();
+                    final String validator = in.readUTF();
+                    if (file != null)
+                        file.resumeValidators.put(locator, validator);
+                }
+                final FileDigest remoteDigest = readDigest(in);
+                if (file != null)
+                    file.remoteDigest = remoteDigest;
+                break;
+            }
+            case FILE_REPLANNED: {
+                final FileRecord file = files.get(in.readLong());
+                if (file != null) {
+                    file.parts.clear();
+                    file.resumeValidators.clear();
+                    file.remoteDigest = null;
+                    file.totalLength = -1;
+                }
+                break;
+            }
+            default:
+                logger.error("Unknown record type in the download journal: " + type);
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordWriter {
+        void write(@NotNull DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Journal's state of a live download
+     */
+    private static class JournaledFile {
+        final long id;
+        final List<IManagedDownloadableFilePart> parts = new ArrayList<>();
+        final Map<Integer, Long> checkpointedBytesCounts = new HashMap<>();
+        long savedBitmapModificationCount = -1;
+
+        JournaledFile(long id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * File download request, as recorded in the journal
+     */
+    static class FileRecord {
+        final String locator;
+        final File outputFile;
+        final int maxThreadCount;
+        final DownloadOptions options;
+        final List<PartRecord> parts = new ArrayList<>();
+        final Map<String, String> resumeValidators = new LinkedHashMap<>(); //by locator
+        FileDigest remoteDigest = null;
+        long totalLength = -1;
+
+        FileRecord(String locator, File outputFile, int maxThreadCount, DownloadOptions options) {
+            this.locator = locator;
+            this.outputFile = outputFile;
+            this.maxThreadCount = maxThreadCount;
+            this.options = options;
+        }
+
+        /**
+         * @return Whether all the parts of the file were recorded. If not, the file has to be checked again.
+         */
+        boolean hasCompleteLayout() {
+            return parts.size() == maxThreadCount || parts.size() == 1 && parts.get(0).length <= 0;
+        }
+    }
+
+    /**
+     * Part of a file download request, as recorded in the journal
+     */
+    static class PartRecord {
+        final File outputFile;
+        final long start;
+        final boolean downloadResumeSupported;
+        long length;
+        long downloadedBytesCount;
+
+        PartRecord(File outputFile, long start, long length, boolean downloadResumeSupported, long downloadedBytesCount) {
+            this.outputFile = outputFile;
+            this.start = start;
+            this.length = length;
+            this.downloadResumeSupported = downloadResumeSupported;
+            this.downloadedBytesCount = downloadedBytesCount;
+        }
+    }
+}
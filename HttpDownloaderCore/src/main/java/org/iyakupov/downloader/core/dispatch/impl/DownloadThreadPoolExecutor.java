@@ -0,0 +1,111 @@
+package org.iyakupov.downloader.core.dispatch.impl;
+
+import org.iyakupov.downloader.core.comms.IFilePartCommunication;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread pool that executes part downloads and keeps its {@link SchedulingTaskQueue} informed
+ * about the tasks that are currently running
+ */
+class DownloadThreadPoolExecutor extends ThreadPoolExecutor {
+    @NotNull
+    private final SchedulingTaskQueue taskQueue;
+
+    //Index of the running part downloads, so that they can be found without scanning all the files
+    private final Set<IFilePartCommunication> activeTasks = ConcurrentHashMap.newKeySet();
+
+    //Start of the pool shrink that is in progress (negative if none) and duration of the last completed one, in ns
+    private final AtomicLong shrinkStartTime = new AtomicLong(-1);
+    private volatile long lastShrinkConvergenceTime = -1;
+
+    DownloadThreadPoolExecutor(int poolSize, long keepAliveTime, @NotNull TimeUnit unit,
+                               @NotNull SchedulingTaskQueue taskQueue) {
+        super(poolSize, poolSize, keepAliveTime, unit, taskQueue);
+        this.taskQueue = taskQueue;
+    }
+
+    @NotNull
+    SchedulingTaskQueue getTaskQueue() {
+        return taskQueue;
+    }
+
+    /**
+     * @return Live view of the part downloads that are being executed right now
+     */
+    @NotNull
+    Collection<IFilePartCommunication> getActiveTasks() {
+        return Collections.unmodifiableSet(activeTasks);
+    }
+
+    /**
+     * Set the new pool size and start measuring how long it takes for the number of running tasks to follow it.
+     * Worker threads that finish their tasks while the pool is oversized exit instead of taking new tasks.
+     *
+     * @param newSize Number of threads
+     */
+    void resize(int newSize) {
+        if (newSize > getMaximumPoolSize()) {
+            setMaximumPoolSize(newSize);
+            setCorePoolSize(newSize);
+        } else {
+            setCorePoolSize(newSize);
+            setMaximumPoolSize(newSize);
+        }
+        if (activeTasks.size() > newSize)
+            shrinkStartTime.compareAndSet(-1, System.nanoTime());
+        checkShrinkConvergence();
+    }
+
+    /**
+     * @return Time that it took for the number of running tasks to drop to the pool size after the last shrink,
+     * in ns. -1 if no shrink has completed yet.
+     */
+    long getLastShrinkConvergenceTime() {
+        return lastShrinkConvergenceTime;
+    }
+
+    private void checkShrinkConvergence() {
+        final long startTime = shrinkStartTime.get();
+        if (startTime >= 0 && activeTasks.size() <= getMaximumPoolSize() && shrinkStartTime.compareAndSet(startTime, -1))
+            lastShrinkConvergenceTime = System.nanoTime() - startTime;
+    }
+
+    /**
+     * Unlike the default implementation, never passes the task directly to a new worker thread:
+     * all tasks go through the queue, so that its ordering and worker caps apply to them as well.
+     */
+    @Override
+    public void execute(@NotNull Runnable command) {
+        if (isShutdown()) {
+            getRejectedExecutionHandler().rejectedExecution(command, this);
+            return;
+        }
+        taskQueue.offer(command);
+        prestartCoreThread();
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        taskQueue.taskStarted(r);
+        if (r instanceof IFilePartCommunication)
+            activeTasks.add((IFilePartCommunication) r);
+        super.beforeExecute(t, r);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        if (r instanceof IFilePartCommunication)
+            activeTasks.remove(r);
+        checkShrinkConvergence();
+        taskQueue.taskFinished(r);
+    }
+}
@@ -0,0 +1,708 @@
+package org.iyakupov.downloader.core.dispatch.impl;
+
+import org.iyakupov.downloader.core.AppSettings;
+import org.iyakupov.downloader.core.comms.ICommunication;
+import org.iyakupov.downloader.core.comms.IFilePartCommunication;
+import org.iyakupov.downloader.core.dispatch.SchedulingPolicy;
+import org.iyakupov.downloader.core.dispatch.TaskPriority;
+import org.iyakupov.downloader.core.dispatch.WaitTimeHistogram;
+import org.iyakupov.downloader.core.file.DownloadOptions;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadGroup;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Task queue of the download thread pool.
+ * <p>
+ * Queued tasks are grouped into buckets, one bucket per file. The bucket also counts the tasks of its file that
+ * are being executed right now, so that the queue is able to share worker threads between files.
+ * The next task is taken from the file of the highest {@link org.iyakupov.downloader.core.file.DownloadPriorityClass}
+ * and, within the class, from the file with the earliest deadline. Files without a deadline are chosen between
+ * according to the current {@link SchedulingPolicy}. Tasks are aged: the longer a task waits, the higher its
+ * effective priority is. A file that has not been served for {@link AppSettings#getMaxClassWaitTime()} is served
+ * first, regardless of its class and deadline, so that a steady flow of files of a higher class cannot starve it.
+ * <p>
+ * Files may belong to nested download groups. Within the same class and deadline, worker threads are shared
+ * between sibling groups in proportion to their weights: the queue compares two files at the level where their
+ * group paths diverge and prefers the group with less running tasks per unit of weight. Files of the same group
+ * (and files without a group) are chosen between according to the policy. Files of a group that has
+ * reached its worker cap (or whose enclosing group has) are not served until one of its tasks completes,
+ * or until the cap is raised (see {@link #workerCapChanged()}).
+ * <p>
+ * The buckets that have queued tasks are kept sorted by class and deadline, and then by the policy, so that
+ * the next task is usually found without looking at the other files. Only the files of download groups
+ * are compared one by one, because the shares of the groups change with every task of their members.
+ * <p>
+ * The executor must report start and completion of each task via {@link #taskStarted(Runnable)}
+ * and {@link #taskFinished(Runnable)}.
+ */
+class SchedulingTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    private static final Comparator<QueuedTask> TASK_ORDER = (t1, t2) -> {
+        //Higher effective priority first, then first come, first served
+        final int res = Long.compare(t2.agedPriority, t1.agedPriority);
+        return res != 0 ? res : Long.compare(t1.enqueueNumber, t2.enqueueNumber);
+    };
+
+    private static final Comparator<Tier> TIER_ORDER = (t1, t2) -> {
+        //Higher class first, then earliest deadline first
+        final int res = Integer.compare(t2.priorityClass, t1.priorityClass);
+        return res != 0 ? res : Long.compare(t1.deadline, t2.deadline);
+    };
+
+    private static final Comparator<TaskBucket> BYPASS_ORDER = (b1, b2) -> {
+        //The bucket that has been bypassed more times first
+        final int res = Long.compare(b1.bypassBase, b2.bypassBase);
+        return res != 0 ? res : Long.compare(b1.id, b2.id);
+    };
+
+    private static final Comparator<TaskBucket> WAIT_ORDER = (b1, b2) -> {
+        //The bucket that has been waiting for longer first
+        final int res = Long.compare(b1.waitingSince, b2.waitingSince);
+        return res != 0 ? res : Long.compare(b1.id, b2.id);
+    };
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    //Buckets are keyed by file. Tasks that do not belong to a file share one bucket, keyed by the queue itself.
+    private final Map<Object, TaskBucket> buckets = new HashMap<>();
+    //Buckets with queued tasks, by class and deadline
+    private final NavigableSet<Tier> tiers = new TreeSet<>(TIER_ORDER);
+    //Buckets with queued tasks, by the time they have been waiting to be served
+    private final NavigableSet<TaskBucket> byWaitingTime = new TreeSet<>(WAIT_ORDER);
+    //Tasks that were taken from this queue (or passed directly to a worker) and not yet finished
+    private final Map<Runnable, TaskBucket> runningTasks = new IdentityHashMap<>();
+    //Number of running tasks of each group, including the tasks of its nested groups
+    private final Map<IManagedDownloadGroup, Integer> groupRunning = new HashMap<>();
+
+    private final Map<TaskPriority, WaitTimeHistogram> waitTimeHistograms = new EnumMap<>(TaskPriority.class);
+
+    private final long epoch = System.nanoTime(); //the tasks are aged relative to it
+    private volatile SchedulingPolicy policy;
+    private int agingRate = AppSettings.getPriorityAgingRate(); //the rate that the tasks were aged with
+    private int size = 0;
+    private long enqueueCounter = 0;
+    private long serveCounter = 0;
+    private long bucketCounter = 0;
+
+    SchedulingTaskQueue(@NotNull SchedulingPolicy policy) {
+        this.policy = policy;
+        for (TaskPriority priority : TaskPriority.values())
+            waitTimeHistograms.put(priority, new WaitTimeHistogram());
+    }
+
+    /**
+     * @param priority Initial priority of the tasks
+     * @return Histogram of time that the tasks of the given priority have spent in this queue
+     */
+    @NotNull
+    WaitTimeHistogram getWaitTimeHistogram(@NotNull TaskPriority priority) {
+        return waitTimeHistograms.get(priority);
+    }
+
+    void setPolicy(@NotNull SchedulingPolicy policy) {
+        lock.lock();
+        try {
+            //The remaining lengths are only kept up to date under SHORTEST_REMAINING_FIRST
+            if (policy == SchedulingPolicy.SHORTEST_REMAINING_FIRST && this.policy != policy)
+                buckets.values().forEach(b -> b.remainingLength = getRemainingLength(b.key));
+            resort(() -> this.policy = policy);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @NotNull
+    SchedulingPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Must be called after the worker cap of a download group is changed, so that the tasks that were held back
+     * by the cap are served without waiting for a task of the group to complete
+     */
+    void workerCapChanged() {
+        lock.lock();
+        try {
+            if (size > 0)
+                notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must be called by the executor before it runs a task
+     *
+     * @param task Task
+     */
+    void taskStarted(@NotNull Runnable task) {
+        lock.lock();
+        try {
+            if (!runningTasks.containsKey(task)) { //The task was given to a worker directly, bypassing this queue
+                final TaskBucket bucket = getOrCreateBucket(task);
+                detach(bucket);
+                incrementRunning(bucket);
+                attach(bucket);
+                runningTasks.put(task, bucket);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must be called by the executor after a task is completed
+     *
+     * @param task Task
+     */
+    void taskFinished(@NotNull Runnable task) {
+        //The file is asked outside the lock. Its remaining length only changes while its tasks are running.
+        final long remainingLength = policy == SchedulingPolicy.SHORTEST_REMAINING_FIRST
+                ? getRemainingLength(getBucketKey(task))
+                : Long.MAX_VALUE;
+        lock.lock();
+        try {
+            final TaskBucket bucket = runningTasks.remove(task);
+            if (bucket != null) {
+                detach(bucket);
+                decrementRunning(bucket);
+                bucket.remainingLength = remainingLength;
+                attach(bucket);
+                removeIfUnused(bucket);
+                if (bucket.groupPath.length > 0 && size > 0)
+                    notEmpty.signalAll(); //Some tasks might have been held back by a worker cap
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(@NotNull Runnable task) {
+        final long remainingLength = policy == SchedulingPolicy.SHORTEST_REMAINING_FIRST
+                ? getRemainingLength(getBucketKey(task))
+                : Long.MAX_VALUE;
+        lock.lock();
+        try {
+            final TaskBucket bucket = getOrCreateBucket(task);
+            detach(bucket);
+            final long now = System.nanoTime();
+            if (bucket.tasks.isEmpty()) { //Bypasses and waiting are only counted while the bucket has queued tasks
+                bucket.bypassBase += serveCounter - bucket.idleSince;
+                bucket.waitingSince = now;
+            }
+            bucket.tasks.add(new QueuedTask(task, enqueueCounter++, now, agingRate, epoch));
+            bucket.remainingLength = remainingLength;
+            attach(bucket);
+            size++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(@NotNull Runnable task) {
+        offer(task);
+    }
+
+    @Override
+    public boolean offer(@NotNull Runnable task, long timeout, @NotNull TimeUnit unit) {
+        return offer(task);
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @NotNull
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Runnable task;
+            while ((task = dequeue()) == null)
+                notEmpty.await();
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Runnable task;
+            while ((task = dequeue()) == null) {
+                if (nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            updateAgingRate();
+            final TaskBucket bucket = chooseBucket();
+            return bucket == null ? null : bucket.tasks.element().task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            for (TaskBucket bucket : buckets.values()) {
+                for (QueuedTask queuedTask : bucket.tasks) {
+                    if (queuedTask.task == o) {
+                        detach(bucket);
+                        bucket.tasks.remove(queuedTask);
+                        tasksRemoved(bucket);
+                        attach(bucket);
+                        size--;
+                        removeIfUnused(bucket);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(@NotNull Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(@NotNull Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            for (Iterator<TaskBucket> bucketIterator = buckets.values().iterator(); bucketIterator.hasNext(); ) {
+                final TaskBucket bucket = bucketIterator.next();
+                detach(bucket);
+                while (!bucket.tasks.isEmpty() && drained < maxElements) {
+                    c.add(bucket.tasks.remove().task);
+                    size--;
+                    drained++;
+                }
+                tasksRemoved(bucket);
+                attach(bucket);
+                if (bucket.tasks.isEmpty() && bucket.running == 0)
+                    bucketIterator.remove();
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Snapshot iterator. Its remove() method is not supported.
+     */
+    @NotNull
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            final List<Runnable> snapshot = new ArrayList<>(size);
+            buckets.values().forEach(b -> b.tasks.forEach(t -> snapshot.add(t.task)));
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the next task from the queue. Must be called under lock.
+     *
+     * @return Next task, or null if the queue is empty
+     */
+    @Nullable
+    private Runnable dequeue() {
+        if (size == 0)
+            return null;
+        updateAgingRate();
+        final TaskBucket bucket = chooseBucket();
+        if (bucket == null)
+            return null;
+
+        detach(bucket);
+        final QueuedTask queuedTask = bucket.tasks.remove();
+        final Runnable task = queuedTask.task;
+        final TaskPriority initialPriority = TaskPriority.fromNumericValue(queuedTask.priority);
+        final long now = System.nanoTime();
+        if (initialPriority != null)
+            waitTimeHistograms.get(initialPriority).record(TimeUnit.NANOSECONDS.toMillis(now - queuedTask.enqueueTime));
+        size--;
+        incrementRunning(bucket);
+        bucket.lastServed = ++serveCounter;
+        bucket.bypassBase = serveCounter;
+        bucket.waitingSince = now;
+        tasksRemoved(bucket);
+        attach(bucket);
+        runningTasks.put(task, bucket);
+        return task;
+    }
+
+    /**
+     * @return Bucket to take the next task from, or null if there are no queued tasks that may be served now
+     */
+    @Nullable
+    private TaskBucket chooseBucket() {
+        final long maxClassWaitTime = TimeUnit.MILLISECONDS.toNanos(AppSettings.getMaxClassWaitTime());
+        if (maxClassWaitTime > 0) {
+            //The file that has not been served for too long is promoted above all classes and deadlines
+            final long now = System.nanoTime();
+            for (TaskBucket bucket : byWaitingTime) {
+                if (now - bucket.waitingSince < maxClassWaitTime)
+                    break;
+                if (!isCapped(bucket))
+                    return bucket;
+            }
+        }
+
+        for (Tier tier : tiers) {
+            final TaskBucket bucket = chooseBucket(tier);
+            if (bucket != null)
+                return bucket;
+        }
+        return null;
+    }
+
+    /**
+     * @return Bucket of the given class and deadline to take the next task from, or null if all of them are capped
+     */
+    @Nullable
+    private TaskBucket chooseBucket(@NotNull Tier tier) {
+        if (policy == SchedulingPolicy.SHORTEST_REMAINING_FIRST) {
+            //The file that has been bypassed too many times is served regardless of its size
+            final int maxBypassCount = AppSettings.getMaxSchedulingBypassCount();
+            for (TaskBucket bucket : tier.byBypassCount) {
+                if (serveCounter - bucket.bypassBase < maxBypassCount)
+                    break;
+                if (!isCapped(bucket))
+                    return bucket;
+            }
+        }
+
+        //Without groups, there are no caps, and the first bucket is the best one
+        if (tier.groupedCount == 0)
+            return tier.byPolicy.first();
+        TaskBucket best = null;
+        for (TaskBucket bucket : tier.byPolicy) {
+            if (!isCapped(bucket) && (best == null || compareGroupShares(bucket, best) < 0))
+                best = bucket;
+        }
+        return best;
+    }
+
+    /**
+     * Compare the buckets of the same class and deadline according to the policy
+     *
+     * @return Negative value, if the next task should rather be taken from b1 than from b2
+     */
+    private int compareByPolicy(@NotNull TaskBucket b1, @NotNull TaskBucket b2) {
+        int res;
+        switch (policy) {
+            case WEIGHTED_FAIR:
+                //Less running tasks per unit of weight first, then the bucket that has not been served for longer
+                res = Long.compare((long) b1.running * b2.weight, (long) b2.running * b1.weight);
+                break;
+            case SHORTEST_REMAINING_FIRST:
+                res = Long.compare(b1.remainingLength, b2.remainingLength);
+                break;
+            case PRIORITY:
+            default:
+                res = TASK_ORDER.compare(b1.tasks.element(), b2.tasks.element());
+                break;
+        }
+        if (res == 0)
+            res = Long.compare(b1.lastServed, b2.lastServed);
+        return res != 0 ? res : Long.compare(b1.id, b2.id);
+    }
+
+    /**
+     * Compare the sibling groups at the level where the group paths of the buckets diverge
+     *
+     * @return Negative value, if the group of b1 has less running tasks per unit of weight. Zero if the buckets
+     * belong to the same group, or if at least one of them has no group at the level of divergence.
+     */
+    private int compareGroupShares(@NotNull TaskBucket b1, @NotNull TaskBucket b2) {
+        final int commonDepth = Math.min(b1.groupPath.length, b2.groupPath.length);
+        for (int i = 0; i < commonDepth; ++i) {
+            final IManagedDownloadGroup g1 = b1.groupPath[i];
+            final IManagedDownloadGroup g2 = b2.groupPath[i];
+            if (g1 != g2)
+                return Long.compare((long) getGroupRunning(g1) * g2.getWeight(), (long) getGroupRunning(g2) * g1.getWeight());
+        }
+        return 0;
+    }
+
+    /**
+     * @return Whether the bucket's group, or any of its enclosing groups, has reached its worker cap
+     */
+    private boolean isCapped(@NotNull TaskBucket bucket) {
+        for (IManagedDownloadGroup group : bucket.groupPath) {
+            final int maxWorkers = group.getMaxWorkers();
+            if (maxWorkers > 0 && getGroupRunning(group) >= maxWorkers)
+                return true;
+        }
+        return false;
+    }
+
+    private int getGroupRunning(@NotNull IManagedDownloadGroup group) {
+        final Integer running = groupRunning.get(group);
+        return running == null ? 0 : running;
+    }
+
+    private void incrementRunning(@NotNull TaskBucket bucket) {
+        bucket.running++;
+        for (IManagedDownloadGroup group : bucket.groupPath)
+            groupRunning.merge(group, 1, Integer::sum);
+    }
+
+    private void decrementRunning(@NotNull TaskBucket bucket) {
+        bucket.running--;
+        for (IManagedDownloadGroup group : bucket.groupPath)
+            groupRunning.computeIfPresent(group, (g, running) -> running > 1 ? running - 1 : null);
+    }
+
+    /**
+     * Remove the bucket from the sorted sets. Must be called before the bucket is modified.
+     */
+    private void detach(@NotNull TaskBucket bucket) {
+        final Tier tier = bucket.tier;
+        if (tier == null)
+            return;
+        tier.byPolicy.remove(bucket);
+        tier.byBypassCount.remove(bucket);
+        byWaitingTime.remove(bucket);
+        if (bucket.groupPath.length > 0)
+            tier.groupedCount--;
+        if (tier.byPolicy.isEmpty())
+            tiers.remove(tier);
+        bucket.tier = null;
+    }
+
+    /**
+     * Add the bucket to the sorted sets, if it has queued tasks. Must be called after the bucket is modified.
+     */
+    private void attach(@NotNull TaskBucket bucket) {
+        if (bucket.tasks.isEmpty())
+            return;
+        final Tier key = new Tier(bucket.priorityClass, bucket.deadline);
+        Tier tier = tiers.floor(key);
+        if (tier == null || TIER_ORDER.compare(tier, key) != 0) {
+            tier = key;
+            tiers.add(tier);
+        }
+        tier.byPolicy.add(bucket);
+        tier.byBypassCount.add(bucket);
+        byWaitingTime.add(bucket);
+        if (bucket.groupPath.length > 0)
+            tier.groupedCount++;
+        bucket.tier = tier;
+    }
+
+    /**
+     * Re-sort all buckets after a change of the order
+     */
+    private void resort(@NotNull Runnable change) {
+        final List<TaskBucket> queuedBuckets = new ArrayList<>();
+        tiers.forEach(t -> queuedBuckets.addAll(t.byPolicy));
+        queuedBuckets.forEach(this::detach);
+        change.run();
+        queuedBuckets.forEach(this::attach);
+    }
+
+    /**
+     * Re-age the queued tasks if {@link AppSettings#getPriorityAgingRate()} has been changed
+     */
+    private void updateAgingRate() {
+        final int newAgingRate = AppSettings.getPriorityAgingRate();
+        if (newAgingRate == agingRate)
+            return;
+        resort(() -> {
+            agingRate = newAgingRate;
+            for (TaskBucket bucket : buckets.values()) {
+                final List<QueuedTask> tasks = new ArrayList<>(bucket.tasks);
+                bucket.tasks.clear();
+                tasks.forEach(t -> t.age(agingRate, epoch));
+                bucket.tasks.addAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * Must be called after tasks are removed from the bucket
+     */
+    private void tasksRemoved(@NotNull TaskBucket bucket) {
+        if (bucket.tasks.isEmpty())
+            bucket.idleSince = serveCounter;
+    }
+
+    @NotNull
+    private Object getBucketKey(@NotNull Runnable task) {
+        return task instanceof IFilePartCommunication ? ((IFilePartCommunication) task).getFile() : this;
+    }
+
+    /**
+     * @return Remaining length of the file in bytes, or {@link Long#MAX_VALUE} if it's unknown
+     */
+    private static long getRemainingLength(@NotNull Object bucketKey) {
+        final long fileRemainingLength = bucketKey instanceof IManagedDownloadableFile
+                ? ((IManagedDownloadableFile) bucketKey).getRemainingLength()
+                : -1;
+        return fileRemainingLength < 0 ? Long.MAX_VALUE : fileRemainingLength;
+    }
+
+    @NotNull
+    private TaskBucket getOrCreateBucket(@NotNull Runnable task) {
+        final Object key = getBucketKey(task);
+        final DownloadOptions options;
+        final IManagedDownloadGroup group;
+        if (key instanceof IManagedDownloadableFile) {
+            options = ((IManagedDownloadableFile) key).getDownloadOptions();
+            group = ((IManagedDownloadableFile) key).getGroup();
+        } else {
+            options = DownloadOptions.DEFAULT;
+            group = null;
+        }
+        return buckets.computeIfAbsent(key, k -> new TaskBucket(k, bucketCounter++, serveCounter, options, group));
+    }
+
+    private void removeIfUnused(@NotNull TaskBucket bucket) {
+        if (bucket.tasks.isEmpty() && bucket.running == 0)
+            buckets.remove(bucket.key);
+    }
+
+    /**
+     * Buckets with queued tasks of the same class and deadline
+     */
+    private class Tier {
+        final int priorityClass;
+        final long deadline;
+        final NavigableSet<TaskBucket> byPolicy = new TreeSet<>(SchedulingTaskQueue.this::compareByPolicy);
+        final NavigableSet<TaskBucket> byBypassCount = new TreeSet<>(BYPASS_ORDER);
+        int groupedCount = 0; //Number of buckets of download groups
+
+        Tier(int priorityClass, long deadline) {
+            this.priorityClass = priorityClass;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Tasks of one file.
+     * The fields that the buckets are sorted by may only be modified while the bucket is detached.
+     */
+    private static class TaskBucket {
+        @NotNull
+        final Object key;
+        final long id;
+        final int weight;
+        final int priorityClass;
+        final long deadline;
+        @NotNull
+        final IManagedDownloadGroup[] groupPath; //From the top-level group down to the group of the file
+        final Queue<QueuedTask> tasks = new PriorityQueue<>(TASK_ORDER);
+        @Nullable
+        Tier tier = null; //null if detached
+        int running = 0;
+        long lastServed = 0;
+        //The bucket has been bypassed (serveCounter - bypassBase) times since it was served last time
+        long bypassBase;
+        long idleSince; //Value of serveCounter when the bucket ran out of queued tasks
+        long waitingSince; //in ns; when the bucket was served last time, or got its first queued task after that
+        long remainingLength = Long.MAX_VALUE; //Snapshot of the remaining length of the file, in bytes
+
+        TaskBucket(@NotNull Object key, long id, long serveCounter,
+                   @NotNull DownloadOptions options, @Nullable IManagedDownloadGroup group) {
+            this.key = key;
+            this.id = id;
+            this.bypassBase = serveCounter;
+            this.idleSince = serveCounter;
+            this.weight = options.getWeight();
+            this.priorityClass = options.getPriorityClass().getNumericValue();
+            this.deadline = options.getDeadline();
+
+            final Deque<IManagedDownloadGroup> path = new ArrayDeque<>();
+            for (IManagedDownloadGroup g = group; g != null; g = g.getParent())
+                path.addFirst(g);
+            this.groupPath = path.toArray(new IManagedDownloadGroup[path.size()]);
+        }
+    }
+
+    private static class QueuedTask {
+        @NotNull
+        final Runnable task;
+        final int priority;
+        final long enqueueNumber;
+        final long enqueueTime; //in ns
+        long agedPriority;
+
+        QueuedTask(@NotNull Runnable task, long enqueueNumber, long enqueueTime, int agingRate, long epoch) {
+            this.task = task;
+            this.priority = task instanceof ICommunication ? ((ICommunication) task).getPriority() : 0;
+            this.enqueueNumber = enqueueNumber;
+            this.enqueueTime = enqueueTime;
+            age(agingRate, epoch);
+        }
+
+        /**
+         * The effective priority of a task is its priority, increased by {@link AppSettings#getPriorityAgingRate()}
+         * points per second of waiting. All queued tasks wait for the same time from now on, so they are ordered
+         * by their effective priorities the same way as by their priorities, decreased by the aging of the time
+         * from the epoch to their enqueueing. The latter does not change while the tasks wait.
+         *
+         * @param epoch Moment in ns that the tasks are aged relative to
+         */
+        void age(int agingRate, long epoch) {
+            agedPriority = priority * 1_000_000L - agingRate * TimeUnit.NANOSECONDS.toMicros(enqueueTime - epoch);
+        }
+    }
+}
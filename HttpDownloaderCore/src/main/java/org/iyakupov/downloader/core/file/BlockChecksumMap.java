@@ -0,0 +1,148 @@
+package org.iyakupov.downloader.core.file;
+
+import org.iyakupov.downloader.core.file.internal.RollingChecksum;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checksums of the consecutive blocks of a file (like a zsync control file): a weak rolling checksum, which
+ * allows to find the block at any offset in another file, and a strong digest, which confirms the match.
+ * With the map of a new version of a file, the blocks that a local old version still has are copied,
+ * and only the other ones are downloaded.
+ */
+public class BlockChecksumMap {
+    @NotNull
+    private final String algorithm;
+
+    private final int blockSize;
+
+    private final long totalLength;
+
+    @NotNull
+    private final int[] weakChecksums;
+
+    @NotNull
+    private final List<FileDigest> strongChecksums;
+
+    /**
+     * @param algorithm       Name of the algorithm of the strong checksums, as in {@link MessageDigest} (e.g. "MD5")
+     * @param blockSize       Length of each block in bytes, except for the last one, which may be shorter.
+     *                        Must be positive.
+     * @param totalLength     Size of the file in bytes
+     * @param weakChecksums   Rolling checksums of the blocks (see {@link RollingChecksum}), in the order of the blocks
+     * @param strongChecksums Digests of the blocks, in the order of the blocks
+     */
+    public BlockChecksumMap(@NotNull String algorithm, int blockSize, long totalLength, @NotNull int[] weakChecksums,
+                            @NotNull List<byte[]> strongChecksums) {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        final long blocksCount = (totalLength + blockSize - 1) / blockSize;
+        if (totalLength <= 0 || weakChecksums.length != blocksCount || strongChecksums.size() != blocksCount)
+            throw new IllegalArgumentException("A file of " + totalLength + " bytes has " + blocksCount +
+                    " blocks, but " + weakChecksums.length + " weak and " + strongChecksums.size() +
+                    " strong checksums are given");
+        this.algorithm = algorithm;
+        this.blockSize = blockSize;
+        this.totalLength = totalLength;
+        this.weakChecksums = weakChecksums.clone();
+        final List<FileDigest> digests = new ArrayList<>(strongChecksums.size());
+        for (byte[] strongChecksum : strongChecksums)
+            digests.add(new FileDigest(algorithm, strongChecksum));
+        this.strongChecksums = Collections.unmodifiableList(digests);
+    }
+
+    /**
+     * Compute the map of a local file (e.g. to publish it along with the file)
+     *
+     * @param file      File
+     * @param algorithm Name of the algorithm of the strong checksums, as in {@link MessageDigest} (e.g. "MD5")
+     * @param blockSize Length of each block in bytes. Must be positive.
+     * @return Map
+     * @throws IOException              If the file cannot be read
+     * @throws NoSuchAlgorithmException If the algorithm is not supported by the JVM
+     */
+    @NotNull
+    public static BlockChecksumMap compute(@NotNull File file, @NotNull String algorithm, int blockSize)
+            throws IOException, NoSuchAlgorithmException {
+        final MessageDigest messageDigest = MessageDigest.getInstance(algorithm);
+        final long totalLength = file.length();
+        final int[] weakChecksums = new int[(int) ((totalLength + blockSize - 1) / blockSize)];
+        final List<byte[]> strongChecksums = new ArrayList<>(weakChecksums.length);
+        final byte[] block = new byte[blockSize];
+        try (InputStream in = new FileInputStream(file)) {
+            for (int i = 0; i < weakChecksums.length; i++) {
+                final int length = (int) Math.min(blockSize, totalLength - (long) i * blockSize);
+                int readLength = 0;
+                int lastRead;
+                while (readLength < length && (lastRead = in.read(block, readLength, length - readLength)) > 0)
+                    readLength += lastRead;
+                if (readLength < length)
+                    throw new IOException("File " + file + " has changed while its block checksums were computed");
+                weakChecksums[i] = RollingChecksum.checksum(block, 0, length);
+                messageDigest.update(block, 0, length);
+                strongChecksums.add(messageDigest.digest());
+            }
+        }
+        return new BlockChecksumMap(algorithm, blockSize, totalLength, weakChecksums, strongChecksums);
+    }
+
+    @NotNull
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    public int getBlocksCount() {
+        return weakChecksums.length;
+    }
+
+    /**
+     * @param block Index of a block
+     * @return Length of the block in bytes
+     */
+    public int getBlockLength(int block) {
+        return (int) Math.min(blockSize, totalLength - (long) block * blockSize);
+    }
+
+    /**
+     * @param block Index of a block
+     * @return Rolling checksum of the block
+     */
+    public int getWeakChecksum(int block) {
+        return weakChecksums[block];
+    }
+
+    /**
+     * @param block Index of a block
+     * @return Digest of the block
+     */
+    @NotNull
+    public FileDigest getStrongChecksum(int block) {
+        return strongChecksums.get(block);
+    }
+
+    @Override
+    public String toString() {
+        return "BlockChecksumMap{" +
+                "algorithm=" + algorithm +
+                ", blockSize=" + blockSize +
+                ", totalLength=" + totalLength +
+                '}';
+    }
+}
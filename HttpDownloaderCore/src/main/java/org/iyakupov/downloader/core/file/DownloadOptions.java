@@ -0,0 +1,254 @@
+package org.iyakupov.downloader.core.file;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Optional parameters of a file download request
+ */
+public class DownloadOptions {
+    public static final DownloadOptions DEFAULT = builder().createDownloadOptions();
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final int weight;
+    private final DownloadPriorityClass priorityClass;
+    private final long deadline;
+    private final IDownloadGroup group;
+    private final long maxBytesPerSecond;
+    private final List<String> mirrors;
+    private final FileDigest expectedDigest;
+    private final PieceManifest pieceManifest;
+    private final File previousVersion;
+    private final BlockChecksumMap blockChecksumMap;
+
+    private DownloadOptions(int weight, DownloadPriorityClass priorityClass, long deadline, IDownloadGroup group,
+                            long maxBytesPerSecond, List<String> mirrors, FileDigest expectedDigest,
+                            PieceManifest pieceManifest, File previousVersion, BlockChecksumMap blockChecksumMap) {
+        this.weight = weight;
+        this.priorityClass = priorityClass;
+        this.deadline = deadline;
+        this.group = group;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.mirrors = Collections.unmodifiableList(new ArrayList<>(mirrors));
+        this.expectedDigest = expectedDigest;
+        this.pieceManifest = pieceManifest;
+        this.previousVersion = previousVersion;
+        this.blockChecksumMap = blockChecksumMap;
+    }
+
+    /**
+     * @return Relative share of worker threads that this file is entitled to, when several files compete for them
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    public DownloadPriorityClass getPriorityClass() {
+        return priorityClass;
+    }
+
+    /**
+     * @return Time (as in {@link System#currentTimeMillis()}) by which the download should be completed,
+     * or {@link #NO_DEADLINE}
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public boolean hasDeadline() {
+        return deadline != NO_DEADLINE;
+    }
+
+    /**
+     * @return Group that this file belongs to, or null
+     */
+    @Nullable
+    public IDownloadGroup getGroup() {
+        return group;
+    }
+
+    /**
+     * @return Initial download speed limit of the file, in bytes/s. Non-positive value means "unlimited".
+     */
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    /**
+     * @return Locators of the same file on other servers, in addition to the one the file was submitted with
+     */
+    @NotNull
+    public List<String> getMirrors() {
+        return mirrors;
+    }
+
+    /**
+     * @return Digest that the downloaded file must have, or null. Takes precedence over the one sent by the server.
+     */
+    @Nullable
+    public FileDigest getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    /**
+     * @return Digests of the pieces of the file, or null
+     */
+    @Nullable
+    public PieceManifest getPieceManifest() {
+        return pieceManifest;
+    }
+
+    /**
+     * @return Local copy of an older version of the file, whose blocks may be reused, or null
+     */
+    @Nullable
+    public File getPreviousVersion() {
+        return previousVersion;
+    }
+
+    /**
+     * @return Block checksums of the remote file, which tell the blocks of the previous version that may be reused,
+     * or null
+     */
+    @Nullable
+    public BlockChecksumMap getBlockChecksumMap() {
+        return blockChecksumMap;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadOptions{" +
+                "weight=" + weight +
+                ", priorityClass=" + priorityClass +
+                ", deadline=" + deadline +
+                ", group=" + (group == null ? null : group.getName()) +
+                ", maxBytesPerSecond=" + maxBytesPerSecond +
+                ", mirrors=" + mirrors +
+                ", expectedDigest=" + expectedDigest +
+                ", pieceManifest=" + pieceManifest +
+                ", previousVersion=" + previousVersion +
+                '}';
+    }
+
+    public static class Builder {
+        private int weight = 1;
+        private DownloadPriorityClass priorityClass = DownloadPriorityClass.NORMAL;
+        private long deadline = NO_DEADLINE;
+        private IDownloadGroup group = null;
+        private long maxBytesPerSecond = 0;
+        private List<String> mirrors = Collections.emptyList();
+        private FileDigest expectedDigest = null;
+        private PieceManifest pieceManifest = null;
+        private File previousVersion = null;
+        private BlockChecksumMap blockChecksumMap = null;
+
+        private Builder() {
+        }
+
+        /**
+         * @param weight Relative share of worker threads. Must be positive.
+         * @return this
+         */
+        public Builder setWeight(int weight) {
+            if (weight <= 0)
+                throw new IllegalArgumentException("Weight must be positive: " + weight);
+            this.weight = weight;
+            return this;
+        }
+
+        /**
+         * @param priorityClass Importance of the download. Must not be null.
+         * @return this
+         */
+        public Builder setPriorityClass(@NotNull DownloadPriorityClass priorityClass) {
+            this.priorityClass = Objects.requireNonNull(priorityClass, "Priority class must not be null");
+            return this;
+        }
+
+        /**
+         * @param deadline Time (as in {@link System#currentTimeMillis()}) by which the download should be completed
+         * @return this
+         */
+        public Builder setDeadline(long deadline) {
+            this.deadline = deadline;
+            return this;
+        }
+
+        /**
+         * @param group Group that the file should belong to. Must be created by the same Dispatcher.
+         * @return this
+         */
+        public Builder setGroup(@Nullable IDownloadGroup group) {
+            this.group = group;
+            return this;
+        }
+
+        /**
+         * @param maxBytesPerSecond Download speed limit of the file, in bytes/s. Non-positive value means "unlimited".
+         * @return this
+         */
+        public Builder setMaxBytesPerSecond(long maxBytesPerSecond) {
+            this.maxBytesPerSecond = maxBytesPerSecond;
+            return this;
+        }
+
+        /**
+         * @param mirrors Locators of the same file on other servers. The parts of the file are downloaded
+         *                from all the sources that serve the same content (size and ETag). Must not be null.
+         * @return this
+         */
+        public Builder setMirrors(@NotNull List<String> mirrors) {
+            this.mirrors = Objects.requireNonNull(mirrors, "Mirrors must not be null");
+            return this;
+        }
+
+        /**
+         * @param expectedDigest Digest that the downloaded file must have. If it differs, the download fails.
+         * @return this
+         */
+        public Builder setExpectedDigest(@Nullable FileDigest expectedDigest) {
+            this.expectedDigest = expectedDigest;
+            return this;
+        }
+
+        /**
+         * @param pieceManifest Digests of the pieces of the file. Each piece is verified as soon as it's downloaded,
+         *                      and downloaded again if it's corrupted. If the manifest does not match the size
+         *                      of the file, the download fails.
+         * @return this
+         */
+        public Builder setPieceManifest(@Nullable PieceManifest pieceManifest) {
+            this.pieceManifest = pieceManifest;
+            return this;
+        }
+
+        /**
+         * @param previousVersion  Local copy of an older version of the file. It must not be the output file.
+         * @param blockChecksumMap Block checksums of the remote file. The blocks that the previous version
+         *                         still has (at any offset) are copied from it, and only the other ranges are
+         *                         downloaded. If the map does not match the size of the file, or the server does
+         *                         not support partial download, the whole file is downloaded.
+         * @return this
+         */
+        public Builder setDeltaSource(@Nullable File previousVersion, @Nullable BlockChecksumMap blockChecksumMap) {
+            this.previousVersion = previousVersion;
+            this.blockChecksumMap = blockChecksumMap;
+            return this;
+        }
+
+        public DownloadOptions createDownloadOptions() {
+            return new DownloadOptions(weight, priorityClass, deadline, group, maxBytesPerSecond, mirrors,
+                    expectedDigest, pieceManifest, previousVersion, blockChecksumMap);
+        }
+    }
+}
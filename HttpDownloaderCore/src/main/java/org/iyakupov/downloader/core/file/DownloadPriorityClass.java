@@ -0,0 +1,33 @@
+package org.iyakupov.downloader.core.file;
+
+/**
+ * Importance of a file download request. Part downloads of a file of a higher class are dispatched before
+ * the ones of files of lower classes, unless the latter have not been served for
+ * {@link org.iyakupov.downloader.core.AppSettings#getMaxClassWaitTime()}.
+ */
+public enum DownloadPriorityClass {
+    /**
+     * Prefetch and other downloads that nobody waits for
+     */
+    BACKGROUND(0),
+
+    /**
+     * Default class
+     */
+    NORMAL(10),
+
+    /**
+     * Downloads that block somebody (e.g. an artifact for a deployment)
+     */
+    CRITICAL(20);
+
+    final int numericValue;
+
+    DownloadPriorityClass(int numericValue) {
+        this.numericValue = numericValue;
+    }
+
+    public int getNumericValue() {
+        return numericValue;
+    }
+}
@@ -0,0 +1,90 @@
+package org.iyakupov.downloader.core.file;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Digest (cryptographic hash) of a file
+ */
+public class FileDigest {
+    @NotNull
+    private final String algorithm;
+
+    @NotNull
+    private final byte[] value;
+
+    /**
+     * @param algorithm Name of the algorithm, as in {@link java.security.MessageDigest} (e.g. "SHA-256")
+     * @param value     Digest
+     */
+    public FileDigest(@NotNull String algorithm, @NotNull byte[] value) {
+        this.algorithm = algorithm;
+        this.value = value.clone();
+    }
+
+    /**
+     * @param algorithm Name of the algorithm, as in {@link java.security.MessageDigest} (e.g. "SHA-256")
+     * @param hexValue  Digest in hexadecimal form
+     * @return Digest
+     * @throws IllegalArgumentException If the value is not a hexadecimal string
+     */
+    @NotNull
+    public static FileDigest fromHex(@NotNull String algorithm, @NotNull String hexValue) {
+        if (hexValue.length() % 2 != 0 || !hexValue.matches("[0-9a-fA-F]*"))
+            throw new IllegalArgumentException("Not a hexadecimal digest: " + hexValue);
+        final byte[] value = new byte[hexValue.length() / 2];
+        for (int i = 0; i < value.length; i++)
+            value[i] = (byte) Integer.parseInt(hexValue.substring(2 * i, 2 * i + 2), 16);
+        return new FileDigest(algorithm, value);
+    }
+
+    /**
+     * @param algorithm   Name of the algorithm, as in {@link java.security.MessageDigest} (e.g. "SHA-256")
+     * @param base64Value Digest in Base64 form
+     * @return Digest
+     * @throws IllegalArgumentException If the value is not a Base64 string
+     */
+    @NotNull
+    public static FileDigest fromBase64(@NotNull String algorithm, @NotNull String base64Value) {
+        return new FileDigest(algorithm, Base64.getDecoder().decode(base64Value));
+    }
+
+    @NotNull
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    @NotNull
+    public byte[] getValue() {
+        return value.clone();
+    }
+
+    @NotNull
+    public String getHexValue() {
+        final StringBuilder hexValue = new StringBuilder(2 * value.length);
+        for (byte b : value)
+            hexValue.append(String.format("%02x", b));
+        return hexValue.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final FileDigest that = (FileDigest) o;
+        return algorithm.equalsIgnoreCase(that.algorithm) && Arrays.equals(value, that.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(value);
+    }
+
+    @Override
+    public String toString() {
+        return algorithm + ":" + getHexValue();
+    }
+}
@@ -0,0 +1,71 @@
+package org.iyakupov.downloader.core.file;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+
+/**
+ * A named group of file download requests (e.g. all downloads of a team, or a batch of files).
+ * Groups may be nested. Worker threads are shared between sibling groups in proportion to their weights,
+ * and each group may have its own limits of worker threads and download speed.
+ */
+public interface IDownloadGroup {
+    @NotNull
+    String getName();
+
+    /**
+     * @return Enclosing group, or null for a top-level group
+     */
+    @Nullable
+    IDownloadGroup getParent();
+
+    /**
+     * @return Relative share of worker threads that this group is entitled to, when it competes with its siblings
+     */
+    int getWeight();
+
+    /**
+     * @return Maximal number of worker threads that files of this group (including nested groups) may occupy.
+     * Non-positive value means "unlimited".
+     */
+    int getMaxWorkers();
+
+    /**
+     * @param maxWorkers Maximal number of worker threads. Non-positive value means "unlimited".
+     */
+    void setMaxWorkers(int maxWorkers);
+
+    /**
+     * @return Maximal total download speed of the files of this group (including nested groups), in bytes/s.
+     * Non-positive value means "unlimited".
+     */
+    long getMaxBytesPerSecond();
+
+    /**
+     * @param maxBytesPerSecond Maximal total download speed, in bytes/s. Non-positive value means "unlimited".
+     */
+    void setMaxBytesPerSecond(long maxBytesPerSecond);
+
+    /**
+     * @return All file download requests of this group, including the ones of the nested groups
+     */
+    @NotNull
+    Collection<IDownloadableFile> getFiles();
+
+    /**
+     * @return Percentage of the group's data that was already downloaded, possible values: [0, 1]
+     */
+    double getProgress();
+
+    /**
+     * @return Total speed of the files of this group, in bytes/s
+     */
+    int getDownloadSpeed();
+
+    /**
+     * @return Estimated time to download the rest of the group's files at the current speed (in ms),
+     * or -1 if it is not possible to estimate it
+     */
+    long getEstimatedTimeLeft();
+}
@@ -2,6 +2,7 @@ package org.iyakupov.downloader.core.file;
 
 import org.iyakupov.downloader.core.file.state.FileDownloadState;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.util.List;
@@ -67,4 +68,29 @@ public interface IDownloadableFile {
      */
     @NotNull
     String getLocator();
+
+    /**
+     * @return Optional parameters that this file download request was submitted with
+     */
+    @NotNull
+    DownloadOptions getDownloadOptions();
+
+    /**
+     * @return Download speed limit of this file, in bytes/s. Non-positive value means "unlimited".
+     */
+    long getMaxBytesPerSecond();
+
+    /**
+     * Change the download speed limit of this file. Running parts adopt the new limit with their next read.
+     *
+     * @param maxBytesPerSecond Download speed limit, in bytes/s. Non-positive value means "unlimited".
+     */
+    void setMaxBytesPerSecond(long maxBytesPerSecond);
+
+    /**
+     * @return Digest of the downloaded file, which is computed while the file is downloaded. Null until the file
+     * is saved, or if hashing is disabled (see {@link org.iyakupov.downloader.core.AppSettings#getDigestAlgorithm()}).
+     */
+    @Nullable
+    FileDigest getDigest();
 }
@@ -0,0 +1,92 @@
+package org.iyakupov.downloader.core.file;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Digests of the consecutive pieces of a file (like the piece hashes of a Metalink), which allow to verify
+ * each piece as soon as it's downloaded, and to download again only the pieces that are corrupted
+ */
+public class PieceManifest {
+    @NotNull
+    private final String algorithm;
+
+    private final int pieceLength;
+
+    @NotNull
+    private final List<FileDigest> pieceDigests;
+
+    /**
+     * @param algorithm   Name of the algorithm, as in {@link java.security.MessageDigest} (e.g. "SHA-256")
+     * @param pieceLength Length of each piece in bytes, except for the last one, which may be shorter.
+     *                    Must be positive.
+     * @param pieceHashes Digests of the pieces, in the order of the pieces
+     */
+    public PieceManifest(@NotNull String algorithm, int pieceLength, @NotNull List<byte[]> pieceHashes) {
+        if (pieceLength <= 0)
+            throw new IllegalArgumentException("Piece length must be positive: " + pieceLength);
+        this.algorithm = algorithm;
+        this.pieceLength = pieceLength;
+        final List<FileDigest> pieceDigests = new ArrayList<>(pieceHashes.size());
+        for (byte[] pieceHash : pieceHashes)
+            pieceDigests.add(new FileDigest(algorithm, pieceHash));
+        this.pieceDigests = Collections.unmodifiableList(pieceDigests);
+    }
+
+    /**
+     * @param algorithm      Name of the algorithm, as in {@link java.security.MessageDigest} (e.g. "SHA-256")
+     * @param pieceLength    Length of each piece in bytes, except for the last one. Must be positive.
+     * @param hexPieceHashes Digests of the pieces in hexadecimal form, in the order of the pieces
+     * @return Manifest
+     * @throws IllegalArgumentException If a digest is not a hexadecimal string
+     */
+    @NotNull
+    public static PieceManifest fromHex(@NotNull String algorithm, int pieceLength, @NotNull List<String> hexPieceHashes) {
+        final List<byte[]> pieceHashes = new ArrayList<>(hexPieceHashes.size());
+        for (String hexPieceHash : hexPieceHashes)
+            pieceHashes.add(FileDigest.fromHex(algorithm, hexPieceHash).getValue());
+        return new PieceManifest(algorithm, pieceLength, pieceHashes);
+    }
+
+    @NotNull
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getPieceLength() {
+        return pieceLength;
+    }
+
+    public int getPiecesCount() {
+        return pieceDigests.size();
+    }
+
+    /**
+     * @param piece Index of a piece
+     * @return Expected digest of the piece
+     */
+    @NotNull
+    public FileDigest getPieceDigest(int piece) {
+        return pieceDigests.get(piece);
+    }
+
+    /**
+     * @param totalLength Size of a file in bytes
+     * @return Whether the manifest describes a file of this size
+     */
+    public boolean matches(long totalLength) {
+        return totalLength > 0 && (totalLength + pieceLength - 1) / pieceLength == pieceDigests.size();
+    }
+
+    @Override
+    public String toString() {
+        return "PieceManifest{" +
+                "algorithm=" + algorithm +
+                ", pieceLength=" + pieceLength +
+                ", piecesCount=" + pieceDigests.size() +
+                '}';
+    }
+}
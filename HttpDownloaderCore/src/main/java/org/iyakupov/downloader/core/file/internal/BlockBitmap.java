@@ -0,0 +1,387 @@
+package org.iyakupov.downloader.core.file.internal;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+
+/**
+ * Completion state of a file, as a bitmap of fixed-size blocks.
+ * <p>
+ * A block is completed when all its bytes are written, whichever parts have written them. The writers report
+ * the ranges they have written, and the bitmap is updated lock-free: the bits are set with CAS, and the blocks
+ * that are only partially written (at most a few per writer) have their written bytes counted.
+ * <p>
+ * Each byte should be reported once. Bytes of completed blocks may be reported again (e.g. by a part that
+ * re-downloads them), and are ignored.
+ */
+public class BlockBitmap {
+    private static final int MAGIC = 0x444C4231; //"DLB1"
+
+    private final static Logger logger = LoggerFactory.getLogger(BlockBitmap.class);
+
+    private final long totalLength;
+    private final int blockSize;
+    private final int blocksCount;
+    private final AtomicLongArray words;
+    private final AtomicIntegerArray partialBlocksBytesCounts; //of the incomplete blocks, 0 for the completed ones
+    private final AtomicLong partialBlocksBytesCount = new AtomicLong(0); //sum of the counts
+    private final AtomicLong completedBlocksBytesCount = new AtomicLong(0);
+    private final AtomicLong modificationCount = new AtomicLong(0);
+    private volatile CompletionListener completionListener = null;
+
+    /**
+     * @param totalLength Size of the file in bytes. Must be positive.
+     * @param blockSize   Size of a block in bytes. Must be positive.
+     */
+    public BlockBitmap(long totalLength, int blockSize) {
+        if (totalLength <= 0 || blockSize <= 0)
+            throw new IllegalArgumentException("File and block sizes must be positive: " + totalLength + ", " + blockSize);
+        final long blocksCount = (totalLength + blockSize - 1) / blockSize;
+        if (blocksCount > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Block size is too small for a file of " + totalLength + " bytes");
+        this.totalLength = totalLength;
+        this.blockSize = blockSize;
+        this.blocksCount = (int) blocksCount;
+        this.words = new AtomicLongArray((this.blocksCount + 63) / 64);
+        this.partialBlocksBytesCounts = new AtomicIntegerArray(this.blocksCount);
+    }
+
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlocksCount() {
+        return blocksCount;
+    }
+
+    /**
+     * @param block Index of a block
+     * @return Offset of the first byte of the block
+     */
+    public long getBlockStart(int block) {
+        return (long) block * blockSize;
+    }
+
+    /**
+     * @param block Index of a block
+     * @return Offset of the byte that follows the block
+     */
+    public long getBlockEnd(int block) {
+        return Math.min(totalLength, getBlockStart(block + 1));
+    }
+
+    /**
+     * @param offset Offset of a byte of the file
+     * @return Index of the block that contains the byte
+     */
+    public int getBlock(long offset) {
+        return (int) (offset / blockSize);
+    }
+
+    /**
+     * @param completionListener Listener to notify when a block becomes completed, or null. It's called by
+     *                           the writer that completes the block, so it must be fast.
+     */
+    public void setCompletionListener(@Nullable CompletionListener completionListener) {
+        this.completionListener = completionListener;
+    }
+
+    /**
+     * Register written bytes
+     *
+     * @param from Offset of the first written byte
+     * @param to   Offset of the byte that follows the last written one
+     */
+    public void markCompleted(long from, long to) {
+        from = Math.max(from, 0);
+        to = Math.min(to, totalLength);
+        if (from >= to)
+            return;
+        for (int block = getBlock(from); block < blocksCount && getBlockStart(block) < to; block++) {
+            if (isCompleted(block))
+                continue;
+            final long blockStart = getBlockStart(block);
+            final long blockEnd = getBlockEnd(block);
+            final int blockLength = (int) (blockEnd - blockStart);
+            final int writtenBytesCount = (int) (Math.min(to, blockEnd) - Math.max(from, blockStart));
+            if (writtenBytesCount == blockLength) {
+                if (setBit(block))
+                    resetPartialBlock(block);
+                continue;
+            }
+            partialBlocksBytesCount.addAndGet(writtenBytesCount);
+            if (partialBlocksBytesCounts.addAndGet(block, writtenBytesCount) >= blockLength)
+                setBit(block);
+            if (isCompleted(block)) //Completed by us or, concurrently, by another writer
+                resetPartialBlock(block);
+        }
+        modificationCount.incrementAndGet();
+    }
+
+    /**
+     * Mark the blocks that overlap with a range as not completed, e.g. because their data is corrupted
+     *
+     * @param from Offset of the first byte of the range
+     * @param to   Offset of the byte that follows the range
+     */
+    public void markIncomplete(long from, long to) {
+        from = Math.max(from, 0);
+        to = Math.min(to, totalLength);
+        if (from >= to)
+            return;
+        for (int block = getBlock(from); block < blocksCount && getBlockStart(block) < to; block++) {
+            resetPartialBlock(block);
+            clearBit(block);
+        }
+        modificationCount.incrementAndGet();
+    }
+
+    /**
+     * @param block Index of a block
+     * @return Whether all the bytes of the block are written
+     */
+    public boolean isCompleted(int block) {
+        return (words.get(block >>> 6) & (1L << (block & 63))) != 0;
+    }
+
+    /**
+     * @return Number of the written bytes, including the ones of incomplete blocks
+     */
+    public long getCompletedBytesCount() {
+        final long count = completedBlocksBytesCount.get() + Math.max(partialBlocksBytesCount.get(), 0);
+        return Math.min(count, totalLength);
+    }
+
+    /**
+     * @return Counter that changes whenever the bitmap is updated
+     */
+    public long getModificationCount() {
+        return modificationCount.get();
+    }
+
+    /**
+     * Find the end of the run of completed blocks that starts at the given offset
+     *
+     * @param from Offset of the start of the range
+     * @param to   Offset of the end of the range
+     * @return Start of the first incomplete block at or after from (but not less than from), or to
+     * if all the blocks of the range are completed
+     */
+    public long getCompletedRangeEnd(long from, long to) {
+        to = Math.min(to, totalLength);
+        for (int block = getBlock(from); block < blocksCount && getBlockStart(block) < to; block++) {
+            if (!isCompleted(block))
+                return Math.max(from, getBlockStart(block));
+        }
+        return Math.max(from, to);
+    }
+
+    /**
+     * Find the first run of incomplete blocks in a range
+     *
+     * @param from Offset of the start of the range
+     * @param to   Offset of the end of the range
+     * @return Run of incomplete blocks, clipped to the range, or null if all the blocks of the range are completed
+     */
+    @Nullable
+    public Range findGap(long from, long to) {
+        to = Math.min(to, totalLength);
+        final long gapStart = getCompletedRangeEnd(from, to);
+        if (gapStart >= to)
+            return null;
+        int block = getBlock(gapStart);
+        while (block < blocksCount && getBlockStart(block) < to && !isCompleted(block))
+            block++;
+        return new Range(gapStart, Math.min(to, getBlockStart(block)));
+    }
+
+    /**
+     * @return Copy of the completed blocks (the bytes of incomplete blocks are not copied)
+     */
+    @NotNull
+    public BlockBitmap snapshot() {
+        final BlockBitmap snapshot = new BlockBitmap(totalLength, blockSize);
+        for (int i = 0; i < words.length(); i++)
+            snapshot.words.set(i, words.get(i));
+        snapshot.completedBlocksBytesCount.set(completedBlocksBytesCount.get());
+        return snapshot;
+    }
+
+    /**
+     * Store the completed blocks in a file. The file is replaced atomically.
+     *
+     * @param file Path to the file
+     * @throws IOException If the file cannot be written
+     */
+    public void save(@NotNull File file) throws IOException {
+        final File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        try (FileOutputStream fileStream = new FileOutputStream(tempFile);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream))) {
+            final CRC32 crc = new CRC32();
+            out.writeInt(MAGIC);
+            out.writeLong(totalLength);
+            out.writeInt(blockSize);
+            out.writeInt(words.length());
+            for (int i = 0; i < words.length(); i++) {
+                final long word = words.get(i);
+                out.writeLong(word);
+                updateCrc(crc, word);
+            }
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            fileStream.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the completed blocks that were stored by {@link #save(File)}
+     *
+     * @param file        Path to the file
+     * @param totalLength Expected size of the downloaded file
+     * @return Completed blocks (without any partially written ones), or null if the file does not exist,
+     * is corrupted, or does not match the downloaded file
+     */
+    @Nullable
+    public static BlockBitmap load(@NotNull File file, long totalLength) {
+        if (!file.exists() || totalLength <= 0)
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readLong() != totalLength)
+                return null;
+            final BlockBitmap bitmap = new BlockBitmap(totalLength, in.readInt());
+            if (in.readInt() != bitmap.words.length())
+                return null;
+            final CRC32 crc = new CRC32();
+            for (int i = 0; i < bitmap.words.length(); i++) {
+                final long word = in.readLong();
+                bitmap.words.set(i, word);
+                updateCrc(crc, word);
+            }
+            if (in.readInt() != (int) crc.getValue())
+                return null;
+            for (int block = 0; block < bitmap.blocksCount; block++) {
+                if (bitmap.isCompleted(block))
+                    bitmap.completedBlocksBytesCount.addAndGet(bitmap.getBlockEnd(block) - bitmap.getBlockStart(block));
+            }
+            return bitmap;
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Failed to read block bitmap " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether the bit has changed
+     */
+    private boolean setBit(int block) {
+        final int index = block >>> 6;
+        final long mask = 1L << (block & 63);
+        long word;
+        do {
+            word = words.get(index);
+            if ((word & mask) != 0)
+                return false;
+        } while (!words.compareAndSet(index, word, word | mask));
+        completedBlocksBytesCount.addAndGet(getBlockEnd(block) - getBlockStart(block));
+        final CompletionListener listener = completionListener;
+        if (listener != null)
+            listener.blockCompleted(block);
+        return true;
+    }
+
+    /**
+     * Drop the written bytes count of a block, which is completed or is going to be re-written
+     */
+    private void resetPartialBlock(int block) {
+        final int writtenBytesCount = partialBlocksBytesCounts.getAndSet(block, 0);
+        if (writtenBytesCount != 0)
+            partialBlocksBytesCount.addAndGet(-writtenBytesCount);
+    }
+
+    private void clearBit(int block) {
+        final int index = block >>> 6;
+        final long mask = 1L << (block & 63);
+        long word;
+        do {
+            word = words.get(index);
+            if ((word & mask) == 0)
+                return;
+        } while (!words.compareAndSet(index, word, word & ~mask));
+        completedBlocksBytesCount.addAndGet(getBlockStart(block) - getBlockEnd(block));
+    }
+
+    private static void updateCrc(@NotNull CRC32 crc, long word) {
+        for (int shift = 56; shift >= 0; shift -= 8)
+            crc.update((int) (word >>> shift));
+    }
+
+    @Override
+    public String toString() {
+        return "BlockBitmap{" +
+                "totalLength=" + totalLength +
+                ", blockSize=" + blockSize +
+                ", completedBytesCount=" + getCompletedBytesCount() +
+                '}';
+    }
+
+    /**
+     * Receives the blocks that become completed
+     */
+    @FunctionalInterface
+    public interface CompletionListener {
+        /**
+         * @param block Index of the block
+         */
+        void blockCompleted(int block);
+    }
+
+    /**
+     * Range of bytes of a file
+     */
+    public static class Range {
+        private final long start;
+        private final long end;
+
+        public Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return Offset of the first byte of the range
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return Offset of the byte that follows the range
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        public long getLength() {
+            return end - start;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + ", " + end + ")";
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.iyakupov.downloader.core.file.internal;
+
+import org.iyakupov.downloader.core.file.IDownloadGroup;
+import org.iyakupov.downloader.core.throttle.TokenBucket;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Internal interface of a download group.
+ * It's methods should be called from the Dispatcher or from a Communication Algorithm.
+ */
+public interface IManagedDownloadGroup extends IDownloadGroup {
+    @Nullable
+    @Override
+    IManagedDownloadGroup getParent();
+
+    /**
+     * Register a file download request in this group
+     *
+     * @param file File download request
+     */
+    void addFile(@NotNull IManagedDownloadableFile file);
+
+    /**
+     * Remove a file download request from this group
+     *
+     * @param file File download request
+     */
+    void removeFile(@NotNull IManagedDownloadableFile file);
+
+    /**
+     * @return Rate limiter that enforces {@link #getMaxBytesPerSecond()}
+     */
+    @NotNull
+    TokenBucket getTokenBucket();
+}
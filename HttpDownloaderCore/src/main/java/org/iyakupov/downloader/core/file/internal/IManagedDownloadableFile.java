@@ -1,7 +1,11 @@
 package org.iyakupov.downloader.core.file.internal;
 
+import org.iyakupov.downloader.core.comms.MirrorSelector;
+import org.iyakupov.downloader.core.file.FileDigest;
 import org.iyakupov.downloader.core.file.IDownloadableFile;
+import org.iyakupov.downloader.core.throttle.TokenBucket;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.List;
 
@@ -41,6 +45,90 @@ public interface IManagedDownloadableFile extends IDownloadableFile {
      */
     int getNonSuccessfullyDownloadedPartsCount();
 
+    /**
+     * Mark a part of this file as successfully downloaded and decrement the count of the parts that are
+     * not downloaded yet, atomically with respect to {@link #resetParts()}.
+     *
+     * @param part Downloaded part
+     * @return Count of the parts of the file that are not downloaded yet (see
+     * {@link #decrementAndGetNonSuccessfullyDownloadedPartsCount()}), or -1 if the part no longer belongs to this file
+     */
+    int completePart(@NotNull IManagedDownloadableFilePart part);
+
+    /**
+     * Register a piece whose data matches its digest in the piece manifest
+     *
+     * @param piece Index of the piece (which is a block of {@link #getBlockBitmap()})
+     * @return Count of the parts and pieces of the file that are not downloaded yet (see
+     * {@link #decrementAndGetNonSuccessfullyDownloadedPartsCount()}), or -1 if the piece was already verified
+     */
+    int pieceVerified(int piece);
+
+    /**
+     * Register a piece whose data does not match its digest in the piece manifest. If the piece was verified
+     * before, it's not anymore.
+     *
+     * @param piece Index of the piece (which is a block of {@link #getBlockBitmap()})
+     * @return Number of the failed verifications of the piece, including this one
+     */
+    int pieceFailed(int piece);
+
+    /**
+     * Register a part that downloads a gap in the data of the other parts (see {@link #getBlockBitmap()}).
+     * Fails if all the parts are already downloaded: the temporary files might be combined already.
+     *
+     * @param part Gap-filling part
+     * @return Whether the part was added
+     */
+    boolean addGapPart(@NotNull IManagedDownloadableFilePart part);
+
+    /**
+     * Cancel and drop all the parts of this file and forget its size, block bitmap and resume validators, so that the file
+     * may be checked and split into parts again (e.g. because the remote file has changed).
+     *
+     * @return Dropped parts
+     */
+    @NotNull
+    List<IManagedDownloadableFilePart> resetParts();
+
+    /**
+     * Store the size of the remote file, obtained during the download check.
+     * If the size is known, a new {@link #getBlockBitmap()} is created for it. If the file has a
+     * {@link org.iyakupov.downloader.core.file.PieceManifest}, the blocks of the bitmap are its pieces,
+     * and each of them counts as a part that is not downloaded yet until it's verified (see {@link #pieceVerified(int)}).
+     *
+     * @param totalLength Size in bytes. Non-positive values mean "unknown".
+     */
+    void setTotalLength(long totalLength);
+
+    /**
+     * @return -1 if the size of the file is unknown, the size of the file in bytes otherwise.
+     */
+    long getTotalLength();
+
+    /**
+     * @return -1 if the size of the file is unknown, remaining number of bytes to download otherwise.
+     */
+    long getRemainingLength();
+
+    /**
+     * @return Completion state of the blocks of this file, or null if the size of the file is unknown
+     */
+    @Nullable
+    BlockBitmap getBlockBitmap();
+
+    /**
+     * @return Group that this file belongs to (see {@link #getDownloadOptions()}), or null
+     */
+    @Nullable
+    IManagedDownloadGroup getGroup();
+
+    /**
+     * @return Rate limiter that enforces {@link #getMaxBytesPerSecond()}
+     */
+    @NotNull
+    TokenBucket getTokenBucket();
+
 
     /**
      * @return Ordered list of downloadable pieces of this file.
@@ -48,4 +136,59 @@ public interface IManagedDownloadableFile extends IDownloadableFile {
     @NotNull
     @Override
     List<IManagedDownloadableFilePart> getDownloadableParts();
+
+    /**
+     * @return Sources of this file: the locator it was submitted with and its mirrors
+     */
+    @NotNull
+    MirrorSelector getMirrorSelector();
+
+    /**
+     * Store the version of the remote file that a source has served during the download check
+     *
+     * @param locator   Locator of the source
+     * @param validator Strong entity tag or modification date of the file, or null if the source has sent neither
+     */
+    void setResumeValidator(@NotNull String locator, @Nullable String validator);
+
+    /**
+     * @param locator Locator of the source
+     * @return Validator to send with the part download requests to this source (see
+     * {@link org.iyakupov.downloader.core.comms.ICommunicatingComponent#downloadRemoteFile(String, long, long, String)}),
+     * or null if the version of the file cannot be checked
+     */
+    @Nullable
+    String getResumeValidator(@NotNull String locator);
+
+    /**
+     * Start hashing the file, which has to be done before its parts are downloaded. The algorithm is the one
+     * of the expected digest (see {@link #getExpectedDigest()}), or the default one.
+     *
+     * @param remoteDigest Digest of the file as declared by the server, or null
+     */
+    void setRemoteDigest(@Nullable FileDigest remoteDigest);
+
+    /**
+     * @return Digest of the file as declared by the server, or null
+     */
+    @Nullable
+    FileDigest getRemoteDigest();
+
+    /**
+     * @return Digest that the downloaded file must have: the one of the download options, or the one declared
+     * by the server. Null if none is known.
+     */
+    @Nullable
+    FileDigest getExpectedDigest();
+
+    /**
+     * @return Digest that is computed while the file is written, or null if the file is not hashed
+     */
+    @Nullable
+    StreamingDigest getStreamingDigest();
+
+    /**
+     * @param digest Digest of the saved file
+     */
+    void setDigest(@NotNull FileDigest digest);
 }
@@ -3,6 +3,7 @@ package org.iyakupov.downloader.core.file.internal;
 import org.iyakupov.downloader.core.file.IDownloadableFilePart;
 import org.iyakupov.downloader.core.file.state.FilePartLengthState;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Internal interface of a downloadable file part.
@@ -30,11 +31,37 @@ public interface IManagedDownloadableFilePart extends IDownloadableFilePart {
      */
     void completeWithError(@NotNull String errorText);
 
+    /**
+     * @return The position (number of byte) of the first byte of this part in the file.
+     */
+    long getStart();
+
+    /**
+     * @return Length of this part, or -1 if it's not known yet.
+     */
+    long getLength();
+
+    /**
+     * @return The position (number of byte) in the file of the first byte of the output file of this part.
+     * May differ from {@link #getStart()} for a part that fills a gap in the output file of another part.
+     */
+    long getOutputFileStart();
+
+    /**
+     * @return Whether this part fills a gap in the output file of another part
+     */
+    boolean isGapPart();
+
     /**
      * @return The position (number of byte) to resume (or start) the download from.
      */
     long getCurrentStartPosition();
 
+    /**
+     * @return Number of bytes of this part that are already downloaded
+     */
+    long getDownloadedBytesCount();
+
     /**
      * @return -1 if the length is unknown, remaining number of bytes to download otherwise.
      */
@@ -76,6 +103,61 @@ public interface IManagedDownloadableFilePart extends IDownloadableFilePart {
      */
     void setDownloadResumeNotSupported();
 
+    /**
+     * Register the action that aborts the transfer which is in progress (e.g. aborts the HTTP request)
+     *
+     * @param abortHook Action, or null if there is no transfer in progress
+     */
+    void setAbortHook(@Nullable Runnable abortHook);
+
+    /**
+     * Unregister the action that aborts the transfer, unless another action was registered since then
+     *
+     * @param abortHook Action that was registered by {@link #setAbortHook(Runnable)}
+     */
+    void clearAbortHook(@NotNull Runnable abortHook);
+
+    /**
+     * Abort the transfer which is in progress, if any, so that the worker thread that is blocked on it
+     * is released immediately
+     */
+    void abortTransfer();
+
+    /**
+     * Add time that the transfer of this part has spent waiting for bandwidth limits
+     *
+     * @param nanos Waiting time, in ns
+     */
+    void addThrottledTime(long nanos);
+
+    /**
+     * @return Total time that the transfer of this part has spent waiting for bandwidth limits, in ns
+     */
+    long getThrottledTime();
+
+    /**
+     * Register a failed download attempt of this part.
+     * Attempts that have downloaded some data since the previous failure reset the counter.
+     *
+     * @return Number of consecutive failed attempts, including this one
+     */
+    int registerFailedAttempt();
+
+    /**
+     * Ask the running download to suspend itself after it has downloaded some more bytes
+     *
+     * @param byteQuota Number of bytes to download before the suspension
+     */
+    void requestYield(long byteQuota);
+
+    /**
+     * Suspend the download if the quota given by {@link #requestYield(long)} is exhausted.
+     * Unlike {@link #suspend()}, it's meant to be called by the worker thread itself, so it never aborts the transfer.
+     *
+     * @return Whether the download was suspended
+     */
+    boolean yieldIfDue();
+
     /**
      * Make the task that was requested to be suspended ready to proceed with download.
      *
@@ -84,7 +166,9 @@ public interface IManagedDownloadableFilePart extends IDownloadableFilePart {
     boolean confirmSuspendAndRestart();
 
     /**
-     * Forcefully pause the download.
+     * Forcefully pause the download. If the response stream may be parked (see
+     * {@link org.iyakupov.downloader.core.AppSettings#getParkedStreamGracePeriod()}), the current read is not
+     * aborted, so that the worker can park the stream when the read finishes. Otherwise the transfer is aborted.
      *
      * @return Whether the status was changed. If not - possibly because the status was changed by another thread.
      */
@@ -0,0 +1,102 @@
+package org.iyakupov.downloader.core.file.internal;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Weak checksum of a window of bytes (as in rsync), that can be moved by one byte in constant time.
+ * It's used to find the blocks of a file that are also present, at any offset, in another file.
+ * <p>
+ * The checksum consists of two 16-bit sums: a is the sum of the bytes, b is the sum of the bytes weighted
+ * by their distance from the end of the window.
+ */
+public class RollingChecksum {
+    @NotNull
+    private final byte[] window;
+
+    private int head = 0; //Index of the oldest byte of the window
+    private int count = 0;
+    private int a = 0;
+    private int b = 0;
+
+    /**
+     * @param windowSize Number of bytes in the window. Must be positive.
+     */
+    public RollingChecksum(int windowSize) {
+        if (windowSize <= 0)
+            throw new IllegalArgumentException("Window size must be positive: " + windowSize);
+        this.window = new byte[windowSize];
+    }
+
+    /**
+     * @param data   Bytes
+     * @param offset Offset of the first byte
+     * @param length Number of the bytes
+     * @return Checksum of the bytes
+     */
+    public static int checksum(@NotNull byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = offset; i < offset + length; i++) {
+            a += data[i] & 0xFF;
+            b += a;
+        }
+        return pack(a, b);
+    }
+
+    /**
+     * Append a byte to the window. If the window is full, its oldest byte is dropped.
+     *
+     * @param value Byte
+     */
+    public void update(byte value) {
+        final int in = value & 0xFF;
+        if (count < window.length) {
+            window[count++] = value;
+            a += in;
+            b += a;
+            return;
+        }
+        final int out = window[head] & 0xFF;
+        window[head] = value;
+        head = head + 1 == window.length ? 0 : head + 1;
+        a += in - out;
+        b += a - window.length * out;
+    }
+
+    /**
+     * @return Whether the window has as many bytes as its size
+     */
+    public boolean isFull() {
+        return count == window.length;
+    }
+
+    /**
+     * @return Checksum of the bytes in the window
+     */
+    public int getValue() {
+        return pack(a, b);
+    }
+
+    /**
+     * @param destination Array to copy the bytes of the window to, from the oldest one. Must fit the window.
+     */
+    public void copyWindow(@NotNull byte[] destination) {
+        final int tailLength = count - head;
+        System.arraycopy(window, head, destination, 0, tailLength);
+        System.arraycopy(window, 0, destination, tailLength, head);
+    }
+
+    /**
+     * Empty the window
+     */
+    public void clear() {
+        head = 0;
+        count = 0;
+        a = 0;
+        b = 0;
+    }
+
+    private static int pack(int a, int b) {
+        return (a & 0xFFFF) | (b << 16);
+    }
+}
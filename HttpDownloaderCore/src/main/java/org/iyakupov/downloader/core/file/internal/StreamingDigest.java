@@ -0,0 +1,114 @@
+package org.iyakupov.downloader.core.file.internal;
+
+import org.iyakupov.downloader.core.file.FileDigest;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest of a file that is computed while the file is written, in the order of its bytes.
+ * <p>
+ * The writers report the bytes they have written, wherever they are. The bytes that continue the hashed
+ * prefix of the file are hashed at once (so the part that downloads the start of the file hashes its data
+ * inline), the other ones are ignored: they have to be hashed later, when the prefix reaches them, from
+ * the disk (see {@link #updateTail(long, byte[], int, int)}). Rewriting a byte of the hashed prefix
+ * (e.g. by a part that fills a gap) makes the digest start over.
+ */
+public class StreamingDigest {
+    @NotNull
+    private final MessageDigest messageDigest;
+
+    private long hashedLength = 0;
+
+    /**
+     * @param algorithm Name of the algorithm, as in {@link MessageDigest} (e.g. "SHA-256")
+     * @throws NoSuchAlgorithmException If the algorithm is not supported by the JVM
+     */
+    public StreamingDigest(@NotNull String algorithm) throws NoSuchAlgorithmException {
+        this.messageDigest = MessageDigest.getInstance(algorithm);
+    }
+
+    @NotNull
+    public String getAlgorithm() {
+        return messageDigest.getAlgorithm();
+    }
+
+    /**
+     * @return Length of the prefix of the file that is hashed
+     */
+    public synchronized long getHashedLength() {
+        return hashedLength;
+    }
+
+    /**
+     * Register written bytes
+     *
+     * @param position Offset of the first written byte in the file
+     * @param buffer   Written bytes
+     * @param offset   Offset of the first written byte in the buffer
+     * @param length   Number of the written bytes
+     */
+    public synchronized void update(long position, @NotNull byte[] buffer, int offset, int length) {
+        if (position < hashedLength) {
+            messageDigest.reset();
+            hashedLength = 0;
+        }
+        if (position == hashedLength) {
+            messageDigest.update(buffer, offset, length);
+            hashedLength += length;
+        }
+    }
+
+    /**
+     * Hash the bytes of a range that follow the hashed prefix, if the range reaches it. The bytes of the range
+     * that are already hashed are skipped.
+     *
+     * @param position Offset of the first byte of the range in the file
+     * @param buffer   Bytes of the range
+     * @param offset   Offset of the first byte in the buffer
+     * @param length   Number of the bytes
+     */
+    public synchronized void updateTail(long position, @NotNull byte[] buffer, int offset, int length) {
+        final long skippedLength = hashedLength - position;
+        if (skippedLength >= 0 && skippedLength < length) {
+            messageDigest.update(buffer, offset + (int) skippedLength, length - (int) skippedLength);
+            hashedLength = position + length;
+        }
+    }
+
+    /**
+     * Hash the data of a stream that follows the hashed prefix, if it reaches it
+     *
+     * @param position Offset of the first byte of the stream in the file
+     * @param in       Stream
+     * @param buffer   Buffer to read the stream with
+     * @throws IOException If the stream cannot be read
+     */
+    public void updateTail(long position, @NotNull InputStream in, @NotNull byte[] buffer) throws IOException {
+        int lastRead;
+        while ((lastRead = in.read(buffer)) > 0) {
+            updateTail(position, buffer, 0, lastRead);
+            position += lastRead;
+        }
+    }
+
+    /**
+     * @return Digest of the hashed prefix. The digest starts over afterwards.
+     */
+    @NotNull
+    public synchronized FileDigest finish() {
+        hashedLength = 0;
+        return new FileDigest(messageDigest.getAlgorithm(), messageDigest.digest());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StreamingDigest{" +
+                "algorithm=" + messageDigest.getAlgorithm() +
+                ", hashedLength=" + hashedLength +
+                '}';
+    }
+}
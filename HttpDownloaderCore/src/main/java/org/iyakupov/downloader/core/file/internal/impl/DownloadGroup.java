@@ -0,0 +1,171 @@
+package org.iyakupov.downloader.core.file.internal.impl;
+
+import com.google.common.collect.Sets;
+import org.iyakupov.downloader.core.AppSettings;
+import org.iyakupov.downloader.core.file.IDownloadableFile;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadGroup;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFile;
+import org.iyakupov.downloader.core.throttle.TokenBucket;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Download group default implementation
+ */
+public class DownloadGroup implements IManagedDownloadGroup {
+    private final String name;
+    private final DownloadGroup parent;
+    private final int weight;
+    private final TokenBucket tokenBucket;
+
+    private final Set<IManagedDownloadableFile> files = Sets.newConcurrentHashSet();
+    private final List<DownloadGroup> children = new CopyOnWriteArrayList<>();
+
+    private volatile int maxWorkers;
+    private volatile Runnable maxWorkersListener = null;
+
+    /**
+     * @param name              Name of the group
+     * @param parent            Enclosing group, or null for a top-level group
+     * @param weight            Share of worker threads, relative to the siblings of this group. Must be positive.
+     * @param maxWorkers        Maximal number of worker threads. Non-positive value means "unlimited".
+     * @param maxBytesPerSecond Maximal total download speed. Non-positive value means "unlimited".
+     */
+    public DownloadGroup(@NotNull String name, @Nullable DownloadGroup parent, int weight,
+                         int maxWorkers, long maxBytesPerSecond) {
+        if (weight <= 0)
+            throw new IllegalArgumentException("Weight must be positive: " + weight);
+
+        this.name = name;
+        this.parent = parent;
+        this.weight = weight;
+        this.maxWorkers = maxWorkers;
+        this.tokenBucket = new TokenBucket(maxBytesPerSecond, AppSettings.getThrottleBurstSize());
+        if (parent != null)
+            parent.children.add(this);
+    }
+
+    @NotNull
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Nullable
+    @Override
+    public DownloadGroup getParent() {
+        return parent;
+    }
+
+    @Override
+    public int getWeight() {
+        return weight;
+    }
+
+    @Override
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    @Override
+    public void setMaxWorkers(int maxWorkers) {
+        this.maxWorkers = maxWorkers;
+        final Runnable listener = maxWorkersListener;
+        if (listener != null)
+            listener.run();
+    }
+
+    /**
+     * @param maxWorkersListener Listener to notify after the worker cap is changed, or null
+     */
+    public void setMaxWorkersListener(@Nullable Runnable maxWorkersListener) {
+        this.maxWorkersListener = maxWorkersListener;
+    }
+
+    @Override
+    public long getMaxBytesPerSecond() {
+        return tokenBucket.getBytesPerSecond();
+    }
+
+    @Override
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        tokenBucket.setBytesPerSecond(maxBytesPerSecond);
+    }
+
+    @NotNull
+    @Override
+    public Collection<IDownloadableFile> getFiles() {
+        final List<IDownloadableFile> result = new ArrayList<>(files);
+        children.forEach(c -> result.addAll(c.getFiles()));
+        return result;
+    }
+
+    @Override
+    public double getProgress() {
+        long totalLength = 0;
+        long remainingLength = 0;
+        for (IDownloadableFile file : getFiles()) {
+            final IManagedDownloadableFile managedFile = (IManagedDownloadableFile) file;
+            final long fileRemainingLength = managedFile.getRemainingLength();
+            if (fileRemainingLength < 0) //Unknown size - fall back to the average of files' progress
+                return getFiles().stream().mapToDouble(IDownloadableFile::getProgress).average().orElse(0);
+            totalLength += managedFile.getTotalLength();
+            remainingLength += fileRemainingLength;
+        }
+        return totalLength == 0 ? 0 : 1 - (double) remainingLength / totalLength;
+    }
+
+    @Override
+    public int getDownloadSpeed() {
+        return getFiles().stream().mapToInt(IDownloadableFile::getDownloadSpeed).sum();
+    }
+
+    @Override
+    public long getEstimatedTimeLeft() {
+        long remainingLength = 0;
+        for (IDownloadableFile file : getFiles()) {
+            final long fileRemainingLength = ((IManagedDownloadableFile) file).getRemainingLength();
+            if (fileRemainingLength < 0)
+                return -1;
+            remainingLength += fileRemainingLength;
+        }
+        final int speed = getDownloadSpeed();
+        if (remainingLength == 0)
+            return 0;
+        return speed <= 0 ? -1 : remainingLength * 1000 / speed;
+    }
+
+    @Override
+    public void addFile(@NotNull IManagedDownloadableFile file) {
+        files.add(file);
+    }
+
+    @Override
+    public void removeFile(@NotNull IManagedDownloadableFile file) {
+        files.remove(file);
+    }
+
+    @NotNull
+    @Override
+    public TokenBucket getTokenBucket() {
+        return tokenBucket;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadGroup{" +
+                "name='" + name + '\'' +
+                ", parent=" + (parent == null ? null : parent.getName()) +
+                ", weight=" + weight +
+                ", maxWorkers=" + maxWorkers +
+                ", maxBytesPerSecond=" + getMaxBytesPerSecond() +
+                ", filesCount=" + files.size() +
+                '}';
+    }
+}
@@ -2,16 +2,33 @@ package org.iyakupov.downloader.core.file.internal.impl;
 
 import org.apache.commons.io.FilenameUtils;
 import org.iyakupov.downloader.core.AppSettings;
+import org.iyakupov.downloader.core.comms.MirrorSelector;
+import org.iyakupov.downloader.core.file.DownloadOptions;
+import org.iyakupov.downloader.core.file.FileDigest;
 import org.iyakupov.downloader.core.file.IDownloadableFilePart;
+import org.iyakupov.downloader.core.file.BlockChecksumMap;
+import org.iyakupov.downloader.core.file.PieceManifest;
+import org.iyakupov.downloader.core.file.internal.BlockBitmap;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadGroup;
 import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFile;
 import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFilePart;
+import org.iyakupov.downloader.core.file.internal.StreamingDigest;
 import org.iyakupov.downloader.core.file.state.FileDownloadState;
 import org.iyakupov.downloader.core.file.state.FilePartDownloadState;
+import org.iyakupov.downloader.core.throttle.TokenBucket;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -23,14 +40,27 @@ import static org.iyakupov.downloader.core.file.state.FileDownloadState.FAILED;
  * File download request default implementation
  */
 public class DownloadableFile implements IManagedDownloadableFile {
+    private final static Logger logger = LoggerFactory.getLogger(DownloadableFile.class);
+
     private final String locator;
     private final File outputFile;
     private final int maxThreadCount;
+    private final DownloadOptions downloadOptions;
+    private final TokenBucket tokenBucket;
+    private final MirrorSelector mirrorSelector;
 
     private final List<IManagedDownloadableFilePart> fileParts = new ArrayList<>();
     private final AtomicInteger unsavedPartsCount = new AtomicInteger(0);
     private final AtomicBoolean fileSaved = new AtomicBoolean(false);
+    private final Map<String, String> resumeValidators = new ConcurrentHashMap<>();
+    private final BitSet verifiedPieces = new BitSet(); //guarded by this
+    private final Map<Integer, Integer> pieceFailureCounts = new HashMap<>(); //guarded by this
 
+    private volatile long totalLength = -1;
+    private volatile BlockBitmap blockBitmap = null;
+    private volatile FileDigest remoteDigest = null;
+    private volatile StreamingDigest streamingDigest = null;
+    private volatile FileDigest digest = null;
     private volatile boolean errorHappened = false;
     private volatile boolean cancelled = false;
 
@@ -40,7 +70,50 @@ public class DownloadableFile implements IManagedDownloadableFile {
      * @param maxThreadCount In how many pieces should the file be cut
      */
     public DownloadableFile(@NotNull String locator, @NotNull File outputDir, int maxThreadCount) {
+        this(locator, outputDir, maxThreadCount, DownloadOptions.DEFAULT);
+    }
+
+    /**
+     * @param locator         Pointer to a remote file. URL, for example
+     * @param outputDir       Path to the directory where the file should be stored
+     * @param maxThreadCount  In how many pieces should the file be cut
+     * @param downloadOptions Optional parameters of this download request
+     */
+    public DownloadableFile(@NotNull String locator, @NotNull File outputDir, int maxThreadCount,
+                            @NotNull DownloadOptions downloadOptions) {
+        this(locator, maxThreadCount, downloadOptions, chooseOutputFile(locator, outputDir));
+    }
+
+    private DownloadableFile(@NotNull String locator, int maxThreadCount, @NotNull DownloadOptions downloadOptions,
+                             @NotNull File outputFile) {
         this.locator = locator;
+        this.downloadOptions = downloadOptions;
+        this.tokenBucket = new TokenBucket(downloadOptions.getMaxBytesPerSecond(), AppSettings.getThrottleBurstSize());
+        final List<String> locators = new ArrayList<>();
+        locators.add(locator);
+        downloadOptions.getMirrors().stream().filter(m -> !locators.contains(m)).forEach(locators::add);
+        this.mirrorSelector = new MirrorSelector(locators);
+        this.outputFile = outputFile;
+        this.maxThreadCount = maxThreadCount;
+    }
+
+    /**
+     * Re-create a download request that was started before (e.g. by a previous run of the application)
+     *
+     * @param locator         Pointer to a remote file. URL, for example
+     * @param outputFile      Path to the resulting file. Unlike the public constructors, it's used as is.
+     * @param maxThreadCount  In how many pieces should the file be cut
+     * @param downloadOptions Optional parameters of this download request
+     * @return File download request without parts
+     */
+    @NotNull
+    public static DownloadableFile restore(@NotNull String locator, @NotNull File outputFile, int maxThreadCount,
+                                           @NotNull DownloadOptions downloadOptions) {
+        return new DownloadableFile(locator, maxThreadCount, downloadOptions, outputFile);
+    }
+
+    @NotNull
+    private static File chooseOutputFile(@NotNull String locator, @NotNull File outputDir) {
         if (!outputDir.isDirectory()) {
             throw new IllegalArgumentException("The given path is not a directory: " + outputDir);
         }
@@ -51,9 +124,7 @@ public class DownloadableFile implements IManagedDownloadableFile {
         while (fsFile.exists() && !AppSettings.overwriteOutputFile()) {
             fsFile = new File(outputDir, fileName + " (" + i++ + ")");
         }
-
-        this.outputFile = fsFile;
-        this.maxThreadCount = maxThreadCount;
+        return fsFile;
     }
 
     @Override
@@ -116,6 +187,9 @@ public class DownloadableFile implements IManagedDownloadableFile {
 
     @Override
     public double getProgress() {
+        final BlockBitmap bitmap = blockBitmap;
+        if (bitmap != null)
+            return (double) bitmap.getCompletedBytesCount() / bitmap.getTotalLength();
         return getDownloadableParts().stream()
                 .mapToDouble(IDownloadableFilePart::getProgress)
                 .average()
@@ -179,6 +253,91 @@ public class DownloadableFile implements IManagedDownloadableFile {
         return unsavedPartsCount.get();
     }
 
+    @Override
+    public synchronized int completePart(@NotNull IManagedDownloadableFilePart part) {
+        if (!fileParts.contains(part))
+            return -1; //Dropped by resetParts
+        part.completeSuccessfully();
+        return unsavedPartsCount.decrementAndGet();
+    }
+
+    @Override
+    public synchronized boolean addGapPart(@NotNull IManagedDownloadableFilePart part) {
+        if (unsavedPartsCount.get() <= 0)
+            return false;
+        addPart(part);
+        return true;
+    }
+
+    @Override
+    public synchronized int pieceVerified(int piece) {
+        if (verifiedPieces.get(piece) || unsavedPartsCount.get() <= 0)
+            return -1;
+        verifiedPieces.set(piece);
+        return unsavedPartsCount.decrementAndGet();
+    }
+
+    @Override
+    public synchronized int pieceFailed(int piece) {
+        if (verifiedPieces.get(piece)) {
+            verifiedPieces.clear(piece);
+            unsavedPartsCount.incrementAndGet();
+        }
+        return pieceFailureCounts.merge(piece, 1, Integer::sum);
+    }
+
+    @NotNull
+    @Override
+    public synchronized List<IManagedDownloadableFilePart> resetParts() {
+        final List<IManagedDownloadableFilePart> droppedParts = new ArrayList<>(fileParts);
+        droppedParts.forEach(IDownloadableFilePart::cancel);
+        fileParts.clear();
+        unsavedPartsCount.set(0);
+        totalLength = -1;
+        blockBitmap = null;
+        verifiedPieces.clear();
+        pieceFailureCounts.clear();
+        remoteDigest = null;
+        streamingDigest = null;
+        resumeValidators.clear();
+        return droppedParts;
+    }
+
+    @Override
+    public void setTotalLength(long totalLength) {
+        this.totalLength = totalLength > 0 ? totalLength : -1;
+        final PieceManifest pieceManifest = downloadOptions.getPieceManifest();
+        final BlockChecksumMap blockChecksumMap = downloadOptions.getBlockChecksumMap();
+        if (totalLength <= 0) {
+            blockBitmap = null;
+        } else if (pieceManifest == null && blockChecksumMap != null && blockChecksumMap.getTotalLength() == totalLength) {
+            //The blocks that are copied from the previous version must not leave partial gaps
+            blockBitmap = new BlockBitmap(totalLength, blockChecksumMap.getBlockSize());
+        } else if (pieceManifest == null) {
+            blockBitmap = new BlockBitmap(totalLength, AppSettings.getBlockSize());
+        } else { //Each block is a piece, which has to be verified before the file is saved
+            blockBitmap = new BlockBitmap(totalLength, pieceManifest.getPieceLength());
+            unsavedPartsCount.addAndGet(blockBitmap.getBlocksCount());
+        }
+    }
+
+    @Override
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    @Override
+    public long getRemainingLength() {
+        if (totalLength <= 0)
+            return -1;
+        final BlockBitmap bitmap = blockBitmap;
+        if (bitmap != null)
+            return totalLength - bitmap.getCompletedBytesCount();
+        return totalLength - getDownloadableParts().stream()
+                .mapToLong(IManagedDownloadableFilePart::getDownloadedBytesCount)
+                .sum();
+    }
+
     @NotNull
     @Override
     public File getOutputFile() {
@@ -191,18 +350,115 @@ public class DownloadableFile implements IManagedDownloadableFile {
         return locator;
     }
 
+    @NotNull
+    @Override
+    public DownloadOptions getDownloadOptions() {
+        return downloadOptions;
+    }
+
+    @Nullable
+    @Override
+    public IManagedDownloadGroup getGroup() {
+        return (IManagedDownloadGroup) downloadOptions.getGroup();
+    }
+
+    @Override
+    public long getMaxBytesPerSecond() {
+        return tokenBucket.getBytesPerSecond();
+    }
+
+    @Override
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        tokenBucket.setBytesPerSecond(maxBytesPerSecond);
+    }
+
+    @NotNull
+    @Override
+    public TokenBucket getTokenBucket() {
+        return tokenBucket;
+    }
+
+    @Nullable
+    @Override
+    public BlockBitmap getBlockBitmap() {
+        return blockBitmap;
+    }
+
+    @NotNull
+    @Override
+    public MirrorSelector getMirrorSelector() {
+        return mirrorSelector;
+    }
+
+    @Override
+    public void setResumeValidator(@NotNull String locator, @Nullable String validator) {
+        if (validator == null)
+            resumeValidators.remove(locator);
+        else
+            resumeValidators.put(locator, validator);
+    }
+
+    @Nullable
+    @Override
+    public String getResumeValidator(@NotNull String locator) {
+        return resumeValidators.get(locator);
+    }
+
+    @Override
+    public void setRemoteDigest(@Nullable FileDigest remoteDigest) {
+        this.remoteDigest = remoteDigest;
+        final FileDigest expectedDigest = getExpectedDigest();
+        final String algorithm = expectedDigest != null ? expectedDigest.getAlgorithm() : AppSettings.getDigestAlgorithm();
+        try {
+            streamingDigest = algorithm == null ? null : new StreamingDigest(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            logger.error("Unsupported digest algorithm " + algorithm + ", the file will not be verified: " + this, e);
+            streamingDigest = null;
+        }
+    }
+
+    @Nullable
+    @Override
+    public FileDigest getRemoteDigest() {
+        return remoteDigest;
+    }
+
+    @Nullable
+    @Override
+    public FileDigest getExpectedDigest() {
+        final FileDigest optionsDigest = downloadOptions.getExpectedDigest();
+        return optionsDigest != null ? optionsDigest : remoteDigest;
+    }
+
+    @Nullable
+    @Override
+    public StreamingDigest getStreamingDigest() {
+        return streamingDigest;
+    }
+
+    @Override
+    public void setDigest(@NotNull FileDigest digest) {
+        this.digest = digest;
+    }
+
+    @Nullable
+    @Override
+    public FileDigest getDigest() {
+        return digest;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
 
         final DownloadableFile that = (DownloadableFile) o;
-        return locator.equals(that.locator);
+        return locator.equals(that.locator) && outputFile.equals(that.outputFile);
     }
 
     @Override
     public int hashCode() {
-        return locator.hashCode();
+        return 31 * locator.hashCode() + outputFile.hashCode();
     }
 
     @Override
@@ -211,6 +467,7 @@ public class DownloadableFile implements IManagedDownloadableFile {
                 "locator='" + locator + '\'' +
                 ", outputFile=" + outputFile +
                 ", maxThreadCount=" + maxThreadCount +
+                ", downloadOptions=" + downloadOptions +
                 ", fileSaved=" + fileSaved.get() +
                 ", errorHappened=" + errorHappened +
                 ", partsCount=" + fileParts.size() +
@@ -1,5 +1,6 @@
 package org.iyakupov.downloader.core.file.internal.impl;
 
+import org.iyakupov.downloader.core.AppSettings;
 import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFilePart;
 import org.iyakupov.downloader.core.file.state.FilePartDownloadState;
 import org.iyakupov.downloader.core.file.state.FilePartLengthState;
@@ -19,6 +20,8 @@ public class DownloadableFilePart implements IManagedDownloadableFilePart {
     private final File outputFile;
     private final String locator;
     private final long start;
+    private final long outputFileStart;
+    private final boolean gapPart;
 
     //Current state of this download request
     private final AtomicReference<FilePartDownloadState> status = new AtomicReference<>(PENDING);
@@ -28,6 +31,13 @@ public class DownloadableFilePart implements IManagedDownloadableFilePart {
     private volatile boolean partialDownloadSupported = true;
     private volatile int downloadSpeed = 0;
     private volatile String errorText = null;
+    private final AtomicReference<Runnable> abortHook = new AtomicReference<>(null);
+    private final AtomicLong throttledTime = new AtomicLong(0);
+    private final AtomicLong yieldPosition = new AtomicLong(-1); //Negative if no yield was requested
+
+    //Retries
+    private int failedAttemptsCount = 0;
+    private long lastFailurePosition = -1;
 
     /**
      * @param outputFile Path to temporary file on the (local) FS
@@ -36,9 +46,29 @@ public class DownloadableFilePart implements IManagedDownloadableFilePart {
      * @param length     Length of this part. Non-positive values mean "unknown"
      */
     public DownloadableFilePart(File outputFile, String locator, long start, long length) {
+        this(outputFile, locator, start, length, start, false);
+    }
+
+    /**
+     * Create a part that fills a gap in the output file of another part
+     *
+     * @param outputFile      Path to the temporary file of the other part
+     * @param locator         URL or something else that points to the remote file
+     * @param start           Index of the first byte to download
+     * @param length          Length of this part. Must be positive
+     * @param outputFileStart Index of the byte that is stored at the start of the output file
+     */
+    public DownloadableFilePart(File outputFile, String locator, long start, long length, long outputFileStart) {
+        this(outputFile, locator, start, length, outputFileStart, true);
+    }
+
+    private DownloadableFilePart(File outputFile, String locator, long start, long length, long outputFileStart,
+                                 boolean gapPart) {
         this.outputFile = outputFile;
         this.locator = locator;
         this.start = start;
+        this.outputFileStart = outputFileStart;
+        this.gapPart = gapPart;
         this.length = length;
         this.lengthState = length <= 0
                 ? new AtomicReference<>(FilePartLengthState.YET_UNKNOWN)
@@ -74,14 +104,18 @@ public class DownloadableFilePart implements IManagedDownloadableFilePart {
     public boolean suspend() {
         final FilePartDownloadState currentState = status.get();
         final FilePartDownloadState nextState = currentState.onSuspendRequest();
-        return status.compareAndSet(currentState, nextState);
+        //If the stream may be parked, let the worker finish the current read: an aborted stream cannot be parked.
+        //The dispatcher aborts the read if it does not finish soon.
+        if (AppSettings.getParkedStreamGracePeriod() > 0 && AppSettings.getMaxParkedStreams() > 0)
+            return status.compareAndSet(currentState, nextState);
+        return changeStatusAndAbortTransfer(currentState, nextState);
     }
 
     @Override
     public boolean pause() {
         final FilePartDownloadState currentState = status.get();
         final FilePartDownloadState nextState = currentState.onPauseRequest();
-        return status.compareAndSet(currentState, nextState);
+        return changeStatusAndAbortTransfer(currentState, nextState);
     }
 
     @Override
@@ -98,11 +132,63 @@ public class DownloadableFilePart implements IManagedDownloadableFilePart {
         return status.compareAndSet(currentState, nextState);
     }
 
+    @Override
+    public void setAbortHook(@Nullable Runnable abortHook) {
+        this.abortHook.set(abortHook);
+    }
+
+    @Override
+    public void clearAbortHook(@NotNull Runnable abortHook) {
+        this.abortHook.compareAndSet(abortHook, null);
+    }
+
+    @Override
+    public void abortTransfer() {
+        final Runnable hook = abortHook.get();
+        if (hook != null)
+            hook.run();
+    }
+
+    @Override
+    public void addThrottledTime(long nanos) {
+        throttledTime.addAndGet(nanos);
+    }
+
+    @Override
+    public long getThrottledTime() {
+        return throttledTime.get();
+    }
+
+    @Override
+    public synchronized int registerFailedAttempt() {
+        final long position = downloadedBytesCount.get();
+        if (position != lastFailurePosition) {
+            lastFailurePosition = position;
+            failedAttemptsCount = 0;
+        }
+        return ++failedAttemptsCount;
+    }
+
+    @Override
+    public void requestYield(long byteQuota) {
+        yieldPosition.set(downloadedBytesCount.get() + Math.max(byteQuota, 0));
+    }
+
+    @Override
+    public boolean yieldIfDue() {
+        final long position = yieldPosition.get();
+        if (position < 0 || downloadedBytesCount.get() < position || !yieldPosition.compareAndSet(position, -1))
+            return false;
+        final FilePartDownloadState currentState = status.get();
+        return currentState == DOWNLOADING && status.compareAndSet(currentState, currentState.onSuspendRequest());
+    }
+
     @Override
     public boolean confirmSuspendAndRestart() {
         final FilePartDownloadState currentState = status.get();
         if (currentState != SUSPEND_REQUESTED)
             return false;
+        yieldPosition.set(-1); //The request is fulfilled, even if the part was evicted otherwise
         final FilePartDownloadState nextState = currentState.onPauseConfirm().onResume();
         return status.compareAndSet(currentState, nextState);
     }
@@ -118,7 +204,21 @@ public class DownloadableFilePart implements IManagedDownloadableFilePart {
     public boolean cancel() {
         final FilePartDownloadState currentState = status.get();
         final FilePartDownloadState nextState = currentState.onCancel();
-        return status.compareAndSet(currentState, nextState);
+        return changeStatusAndAbortTransfer(currentState, nextState);
+    }
+
+    /**
+     * Change the status and, if the download has to stop, abort the transfer in progress. The worker thread
+     * is released at once instead of waiting for the next chunk of data (or for the socket timeout).
+     *
+     * @return Whether the status was changed
+     */
+    private boolean changeStatusAndAbortTransfer(FilePartDownloadState currentState, FilePartDownloadState nextState) {
+        if (!status.compareAndSet(currentState, nextState))
+            return false;
+        if (currentState != nextState)
+            abortTransfer(); //No-op, if there is no transfer in progress
+        return true;
     }
 
     @Override
@@ -155,11 +255,36 @@ public class DownloadableFilePart implements IManagedDownloadableFilePart {
         return locator;
     }
 
+    @Override
+    public long getStart() {
+        return start;
+    }
+
+    @Override
+    public long getLength() {
+        return lengthState.get() == FilePartLengthState.KNOWN ? length : -1;
+    }
+
+    @Override
+    public long getOutputFileStart() {
+        return outputFileStart;
+    }
+
+    @Override
+    public boolean isGapPart() {
+        return gapPart;
+    }
+
     @Override
     public long getCurrentStartPosition() {
         return start + downloadedBytesCount.get();
     }
 
+    @Override
+    public long getDownloadedBytesCount() {
+        return downloadedBytesCount.get();
+    }
+
     @Override
     public long getRemainingLength() {
         if (lengthState.get() != FilePartLengthState.KNOWN)
@@ -204,6 +329,7 @@ public class DownloadableFilePart implements IManagedDownloadableFilePart {
                 "outputFile=" + outputFile +
                 ", locator='" + locator + '\'' +
                 ", start=" + start +
+                (gapPart ? ", outputFileStart=" + outputFileStart : "") +
                 ", partialDownloadSupported=" + partialDownloadSupported +
                 ", errorText='" + errorText + '\'' +
                 ", status=" + status +
@@ -0,0 +1,78 @@
+package org.iyakupov.downloader.core.throttle;
+
+import org.iyakupov.downloader.core.AppSettings;
+import org.jetbrains.annotations.NotNull;
+
+import java.net.URI;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Global and per-host download speed limits of a Dispatcher.
+ * Limits may be changed at any time; running downloads adopt them with their next read.
+ */
+public class BandwidthThrottle {
+    private final TokenBucket globalBucket = new TokenBucket(0, AppSettings.getThrottleBurstSize());
+    private final ConcurrentMap<String, TokenBucket> hostBuckets = new ConcurrentHashMap<>();
+
+    /**
+     * @return Total download speed limit, in bytes/s. Non-positive value means "unlimited".
+     */
+    public long getMaxBytesPerSecond() {
+        return globalBucket.getBytesPerSecond();
+    }
+
+    /**
+     * @param maxBytesPerSecond Total download speed limit, in bytes/s. Non-positive value means "unlimited".
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        globalBucket.setBytesPerSecond(maxBytesPerSecond);
+    }
+
+    /**
+     * @param host Host name (as in {@link URI#getHost()})
+     * @return Download speed limit for all files from this host, in bytes/s. Non-positive value means "unlimited".
+     */
+    public long getHostMaxBytesPerSecond(@NotNull String host) {
+        final TokenBucket bucket = hostBuckets.get(host.toLowerCase(Locale.ROOT));
+        return bucket == null ? 0 : bucket.getBytesPerSecond();
+    }
+
+    /**
+     * @param host              Host name (as in {@link URI#getHost()})
+     * @param maxBytesPerSecond Download speed limit for all files from this host, in bytes/s.
+     *                          Non-positive value means "unlimited".
+     */
+    public void setHostMaxBytesPerSecond(@NotNull String host, long maxBytesPerSecond) {
+        getHostBucket(host).setBytesPerSecond(maxBytesPerSecond);
+    }
+
+    @NotNull
+    public TokenBucket getGlobalBucket() {
+        return globalBucket;
+    }
+
+    /**
+     * @param host Host name (as in {@link URI#getHost()})
+     * @return Rate limiter of the given host. Created (unlimited) on first request.
+     */
+    @NotNull
+    public TokenBucket getHostBucket(@NotNull String host) {
+        return hostBuckets.computeIfAbsent(host.toLowerCase(Locale.ROOT), h -> new TokenBucket(0, AppSettings.getThrottleBurstSize()));
+    }
+
+    /**
+     * @param locator URL
+     * @return Host name of the URL, or an empty string if it cannot be parsed
+     */
+    @NotNull
+    public static String getHost(@NotNull String locator) {
+        try {
+            final String host = URI.create(locator).getHost();
+            return host == null ? "" : host;
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+    }
+}
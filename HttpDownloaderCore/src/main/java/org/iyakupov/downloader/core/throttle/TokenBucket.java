@@ -0,0 +1,91 @@
+package org.iyakupov.downloader.core.throttle;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free byte rate limiter (token bucket, implemented as GCRA - Generic Cell Rate Algorithm).
+ * <p>
+ * The state of the bucket is a single "theoretical arrival time": the moment by which all bytes that were
+ * acquired so far would have been transferred at the configured rate. A caller that pushes this moment
+ * too far ahead of the current time has to wait. The limit may be changed at any time.
+ */
+public class TokenBucket {
+    private final AtomicLong theoreticalArrivalTime = new AtomicLong(System.nanoTime());
+    private volatile long bytesPerSecond;
+    private volatile long burstSize;
+
+    /**
+     * @param bytesPerSecond Rate limit. Non-positive values mean "unlimited".
+     * @param burstSize      Number of bytes that may be acquired at once without waiting
+     */
+    public TokenBucket(long bytesPerSecond, long burstSize) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstSize = burstSize;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @param bytesPerSecond New rate limit. Non-positive values mean "unlimited".
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getBurstSize() {
+        return burstSize;
+    }
+
+    public void setBurstSize(long burstSize) {
+        this.burstSize = burstSize;
+    }
+
+    /**
+     * Take the given number of bytes from the bucket. Always succeeds, but the caller should wait
+     * for the returned time before transferring any more data.
+     *
+     * @param bytes Number of bytes that were (or are about to be) transferred
+     * @return Time to wait, in ns. Zero if the limit is not exceeded.
+     */
+    public long reserve(long bytes) {
+        final long rate = bytesPerSecond;
+        if (rate <= 0 || bytes <= 0)
+            return 0;
+
+        final long emissionInterval = bytes * 1_000_000_000L / rate;
+        final long burstTolerance = burstSize * 1_000_000_000L / rate;
+        final long now = System.nanoTime();
+        while (true) {
+            final long currentTat = theoreticalArrivalTime.get();
+            final long newTat = Math.max(currentTat, now) + emissionInterval;
+            if (theoreticalArrivalTime.compareAndSet(currentTat, newTat))
+                return Math.max(0, newTat - burstTolerance - now);
+        }
+    }
+
+    /**
+     * Take the given number of bytes from the bucket and wait if the limit is exceeded
+     *
+     * @param bytes Number of bytes that were (or are about to be) transferred
+     */
+    public void acquire(long bytes) {
+        parkNanos(reserve(bytes));
+    }
+
+    /**
+     * Sleep for the given time without allocations. Returns earlier if the thread is interrupted.
+     *
+     * @param nanos Time to sleep, in ns
+     */
+    public static void parkNanos(long nanos) {
+        final long deadline = System.nanoTime() + nanos;
+        long remaining = nanos;
+        while (remaining > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(remaining);
+            remaining = deadline - System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.iyakupov.downloader.core;
+
+import org.iyakupov.downloader.core.file.internal.BlockBitmap;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * UT for BlockBitmap
+ */
+public class BlockBitmapTest {
+    private final File outputDir = new File("target/");
+
+    @Test
+    public void testBlocksSharedByParts() {
+        final BlockBitmap bitmap = new BlockBitmap(250, 100);
+        assertEquals(3, bitmap.getBlocksCount());
+
+        // Two parts: [0, 130) and [130, 250). Block 1 is completed only when both have written their bytes.
+        bitmap.markCompleted(0, 60);
+        bitmap.markCompleted(60, 130);
+        assertTrue(bitmap.isCompleted(0));
+        assertFalse(bitmap.isCompleted(1));
+        bitmap.markCompleted(130, 250);
+        assertTrue(bitmap.isCompleted(1));
+        assertTrue(bitmap.isCompleted(2)); //The last block is shorter
+        assertEquals(250, bitmap.getCompletedBytesCount());
+
+        // Re-reported bytes of completed blocks are ignored
+        bitmap.markCompleted(0, 250);
+        assertEquals(250, bitmap.getCompletedBytesCount());
+    }
+
+    @Test
+    public void testGaps() {
+        final BlockBitmap bitmap = new BlockBitmap(1000, 100);
+        bitmap.markCompleted(0, 1000);
+        bitmap.markIncomplete(250, 420); //Blocks 2..4
+        bitmap.markIncomplete(800, 801); //Block 8
+        assertEquals(600, bitmap.getCompletedBytesCount());
+        assertEquals(200, bitmap.getCompletedRangeEnd(0, 1000));
+        assertEquals(210, bitmap.getCompletedRangeEnd(210, 1000));
+
+        final BlockBitmap.Range firstGap = bitmap.findGap(0, 1000);
+        assertNotNull(firstGap);
+        assertEquals(200, firstGap.getStart());
+        assertEquals(500, firstGap.getEnd());
+        final BlockBitmap.Range secondGap = bitmap.findGap(firstGap.getEnd(), 850);
+        assertNotNull(secondGap);
+        assertEquals(800, secondGap.getStart());
+        assertEquals(850, secondGap.getEnd()); //Clipped to the range
+        assertNull(bitmap.findGap(500, 800));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        final File bitmapFile = new File(outputDir, "bitmap_test.blocks");
+        final BlockBitmap bitmap = new BlockBitmap(10_000, 64);
+        bitmap.markCompleted(0, 5000);
+        bitmap.markCompleted(9000, 9050); //Partially written blocks are not saved
+        bitmap.snapshot().save(bitmapFile);
+
+        try {
+            assertNull(BlockBitmap.load(bitmapFile, 20_000)); //Another version of the file
+            final BlockBitmap loadedBitmap = BlockBitmap.load(bitmapFile, 10_000);
+            assertNotNull(loadedBitmap);
+            assertEquals(64, loadedBitmap.getBlockSize());
+            assertEquals(5000 / 64 * 64, loadedBitmap.getCompletedBytesCount());
+            assertEquals(5000 / 64 * 64, loadedBitmap.getCompletedRangeEnd(0, 10_000));
+        } finally {
+            assertTrue(bitmapFile.delete());
+        }
+    }
+}
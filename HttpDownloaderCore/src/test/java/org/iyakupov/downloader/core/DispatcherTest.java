@@ -3,31 +3,65 @@ package org.iyakupov.downloader.core;
 import org.apache.commons.io.FileUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.iyakupov.downloader.core.cache.DownloadCache;
 import org.iyakupov.downloader.core.comms.CommunicationStatus;
 import org.iyakupov.downloader.core.comms.ICommunicatingComponent;
 import org.iyakupov.downloader.core.comms.impl.HttpCommunicationResult;
+import org.iyakupov.downloader.core.dispatch.EvictionPolicy;
+import org.iyakupov.downloader.core.dispatch.IDispatcherMetrics;
 import org.iyakupov.downloader.core.dispatch.IDispatchingQueue;
+import org.iyakupov.downloader.core.dispatch.RetryPolicy;
+import org.iyakupov.downloader.core.dispatch.RetryableError;
+import org.iyakupov.downloader.core.dispatch.SchedulingPolicy;
+import org.iyakupov.downloader.core.dispatch.TaskPriority;
+import org.iyakupov.downloader.core.dispatch.WaitTimeHistogram;
 import org.iyakupov.downloader.core.dispatch.impl.DispatchingQueue;
+import org.iyakupov.downloader.core.file.BlockChecksumMap;
+import org.iyakupov.downloader.core.file.DownloadOptions;
+import org.iyakupov.downloader.core.file.DownloadPriorityClass;
+import org.iyakupov.downloader.core.file.FileDigest;
+import org.iyakupov.downloader.core.file.IDownloadGroup;
 import org.iyakupov.downloader.core.file.IDownloadableFile;
+import org.iyakupov.downloader.core.file.IDownloadableFilePart;
+import org.iyakupov.downloader.core.file.PieceManifest;
+import org.iyakupov.downloader.core.file.internal.BlockBitmap;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFile;
+import org.iyakupov.downloader.core.file.internal.IManagedDownloadableFilePart;
 import org.iyakupov.downloader.core.file.state.FileDownloadState;
 import org.iyakupov.downloader.core.file.state.FilePartDownloadState;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.hamcrest.CoreMatchers.anyOf;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.iyakupov.downloader.core.comms.CommunicationStatus.PARTIAL_CONTENT_OK;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 /**
@@ -37,10 +71,11 @@ public class DispatcherTest {
     private final static Logger logger = LoggerFactory.getLogger(FilePartDownloadTest.class);
 
     /**
-     * Real world-emulating input stream
+     * Real world-emulating input stream. Like a socket stream, it fails a blocked read when it is closed.
      */
     private static class SleepyByteArrayInputStream extends ByteArrayInputStream {
         private final int delay;
+        private volatile boolean closed = false;
 
         SleepyByteArrayInputStream(byte[] buf, int delay) {
             super(buf);
@@ -49,9 +84,19 @@ public class DispatcherTest {
 
         @Override
         public int read(@NotNull byte[] readBuffer) throws IOException {
-            safeSleep(delay);
+            final long readTime = System.currentTimeMillis() + delay;
+            while (!closed && System.currentTimeMillis() < readTime)
+                safeSleep(Math.min(delay, 10));
+            if (closed)
+                throw new IOException("Stream closed");
             return super.read(readBuffer);
         }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
     }
 
     /**
@@ -85,35 +130,74 @@ public class DispatcherTest {
                                                CommunicationStatus partDownloadRc,
                                                int readDelay,
                                                int defaultDispatcherThreadPoolSize) {
-        final ICommunicatingComponent communicationComponent = mock(ICommunicatingComponent.class);
+        return createDispatcher(chunkSize, expectedNumberOfChunks, checkRc, partDownloadRc, readDelay,
+                defaultDispatcherThreadPoolSize, 0);
+    }
+
+    /**
+     * Same as {@link #createDispatcher(int, int, CommunicationStatus, CommunicationStatus, int, int)},
+     * but the first part download requests fail as if the server was unreachable
+     *
+     * @param failedRequestsCount Number of part download requests that should fail
+     */
+    @NotNull
+    private IDispatchingQueue createDispatcher(int chunkSize,
+                                               int expectedNumberOfChunks,
+                                               CommunicationStatus checkRc,
+                                               CommunicationStatus partDownloadRc,
+                                               int readDelay,
+                                               int defaultDispatcherThreadPoolSize,
+                                               int failedRequestsCount) {
+        final AtomicInteger remainingFailuresCount = new AtomicInteger(failedRequestsCount);
+        communicationComponent = mock(ICommunicatingComponent.class);
         when(communicationComponent.checkRemoteFile(any()))
                 .thenReturn(new HttpCommunicationResult(checkRc, "Irrelevant", null, chunkSize * expectedNumberOfChunks));
 
         when(communicationComponent.downloadRemoteFile(anyString(), anyLong(), anyLong())).thenAnswer(invocationOnMock -> {
             final Object[] invocationArguments = invocationOnMock.getArguments();
             assert (invocationArguments.length == 3);
+            if (remainingFailuresCount.getAndDecrement() > 0)
+                return new HttpCommunicationResult(CommunicationStatus.UNAVAILABLE, "Irrelevant", null, -1);
 
+            final int start = ((Long) invocationArguments[1]).intValue();
             final int dataLength = ((Long) invocationArguments[2]).intValue();
-            logger.debug("Creating new SleepyStream, dataLength = " + dataLength);
-            final byte[] res = new byte[dataLength >= 0 ? dataLength : chunkSize];
-            Arrays.fill(res, ((Long) invocationArguments[1]).byteValue());
-
-            final HttpEntity responseEntity = mock(HttpEntity.class);
-            final SleepyByteArrayInputStream dataStream = new SleepyByteArrayInputStream(res, readDelay);
-            when(responseEntity.getContent()).thenReturn(dataStream);
-
-            final CloseableHttpResponse response = mock(CloseableHttpResponse.class);
-            when(response.getEntity()).thenReturn(responseEntity);
-            doAnswer(invocationOnMock1 -> {
-                dataStream.close();
-                logger.trace("Closed mocked HTTP response");
-                return null;
-            }).when(response).close();
-
-            return new HttpCommunicationResult(partDownloadRc, "Irrelevant", response, res.length);
+            final byte[] res;
+            if (remoteFileContent != null) {
+                res = Arrays.copyOfRange(remoteFileContent, start,
+                        dataLength >= 0 ? start + dataLength : remoteFileContent.length);
+            } else {
+                res = new byte[dataLength >= 0 ? dataLength : chunkSize];
+                Arrays.fill(res, (byte) start);
+            }
+            return createPartDownloadResult(res, partDownloadRc, readDelay);
         });
 
-        return new DispatchingQueue(defaultDispatcherThreadPoolSize, AppSettings.getDispatchingQueueCapacity(), communicationComponent);
+        return new DispatchingQueue(defaultDispatcherThreadPoolSize, communicationComponent);
+    }
+
+    /**
+     * @param data      Data that the mocked HTTP response will contain
+     * @param rc        CommunicationStatus of the result
+     * @param readDelay Time to sleep (in milliseconds) before each read
+     * @return Result of a PartDownload operation
+     */
+    @NotNull
+    private static HttpCommunicationResult createPartDownloadResult(byte[] data, CommunicationStatus rc, int readDelay)
+            throws IOException {
+        logger.debug("Creating new SleepyStream, dataLength = " + data.length);
+        final HttpEntity responseEntity = mock(HttpEntity.class);
+        final SleepyByteArrayInputStream dataStream = new SleepyByteArrayInputStream(data, readDelay);
+        when(responseEntity.getContent()).thenReturn(dataStream);
+
+        final CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+        when(response.getEntity()).thenReturn(responseEntity);
+        doAnswer(invocationOnMock -> {
+            dataStream.close();
+            logger.trace("Closed mocked HTTP response");
+            return null;
+        }).when(response).close();
+
+        return new HttpCommunicationResult(rc, "Irrelevant", response, data.length);
     }
 
     /*
@@ -123,6 +207,9 @@ public class DispatcherTest {
     @NotNull
     private final File outputDir = new File("target/ut_temp_dir/");
     private IDispatchingQueue dispatcher;
+    private ICommunicatingComponent communicationComponent; //Mock used by the dispatcher
+    @Nullable
+    private byte[] remoteFileContent = null; //Data that the mock serves; by default, each range is filled with its start
 
     @Before
     public void ensureCleanTempDir() {
@@ -216,6 +303,10 @@ public class DispatcherTest {
 
         assertEquals(downloadablePartsPerFile, file1.getDownloadableParts().size());
         file1.getDownloadableParts().forEach(p -> assertEquals(FilePartDownloadState.DONE, p.getStatus()));
+        final WaitTimeHistogram waitTimeHistogram =
+                dispatcher.getMetrics().getQueueWaitTimeHistogram(TaskPriority.NEW_PART_DOWNLOAD);
+        assertTrue(waitTimeHistogram.getCount() >= downloadablePartsPerFile - numberOfThreads);
+        assertTrue(waitTimeHistogram.getMaxWaitTime() >= readDelay);
         assertEquals(chunkSize * downloadablePartsPerFile, file1.getOutputFile().length());
     }
 
@@ -375,10 +466,11 @@ public class DispatcherTest {
         dispatcher.setThreadPoolSize(newNumberOfThreads, true);
 
         final IDownloadableFile file2 = dispatcher.submitFile("http://a.b/file2.dmp", outputDir, downloadablePartsPerFile);
-        assertEquals(FileDownloadState.INITIATED, file2.getStatus());
+        assertThat(file2.getStatus(), anyOf(is(FileDownloadState.INITIATED), is(FileDownloadState.PENDING)));
 
         while (file1.getStatus() != FileDownloadState.DONE|| file2.getStatus() != FileDownloadState.DONE) {
-            if (file2.getStatus() != FileDownloadState.INITIATED) {
+            //The check of file2 is executed in the probe lane, but its parts should wait for the evicted ones
+            if (file2.getDownloadableParts().stream().anyMatch(p -> p.getStatus() != FilePartDownloadState.PENDING)) {
                 assert (file1.getStatus() == FileDownloadState.DONE || file1.getStatus() == FileDownloadState.UNSAVED);
                 assertEquals(downloadablePartsPerFile, file1.getDownloadableParts().stream().filter(p -> p.getStatus() == FilePartDownloadState.DONE).count());
             } else {
@@ -401,6 +493,1088 @@ public class DispatcherTest {
         assertEquals(chunkSize * downloadablePartsPerFile, file2.getOutputFile().length());
     }
 
+    @Test(timeout = 30000)
+    public void testProbesAreNotStarved() throws IOException {
+        final int numberOfThreads = 1;
+        final int downloadablePartsPerFile = 3;
+        final int chunkSize = 2 * AppSettings.getDownloadBufferSize(); //2 reads
+        final int readDelay = 1000;
+
+        dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+
+        final IDownloadableFile file1 = dispatcher.submitFile("http://a.b/file1.dmp", outputDir, downloadablePartsPerFile);
+        while (file1.getStatus() != FileDownloadState.DOWNLOADING)
+            safeSleep(100);
+
+        // The only download thread is busy for at least 6 seconds, but the check should not wait for it
+        final IDownloadableFile file2 = dispatcher.submitFile("http://a.b/file2.dmp", outputDir, downloadablePartsPerFile);
+        while (file2.getDownloadableParts().isEmpty())
+            safeSleep(100);
+        assertEquals(downloadablePartsPerFile, file2.getDownloadableParts().size());
+        assertEquals(FileDownloadState.DOWNLOADING, file1.getStatus());
+        while (dispatcher.getMetrics().getCompletedProbeCount() < 2)
+            safeSleep(100);
+        assertEquals(0, dispatcher.getMetrics().getQueuedProbeCount());
+
+        while (file1.getStatus() != FileDownloadState.DONE || file2.getStatus() != FileDownloadState.DONE)
+            safeSleep(100);
+
+        assertEquals(chunkSize * downloadablePartsPerFile, file1.getOutputFile().length());
+        assertEquals(chunkSize * downloadablePartsPerFile, file2.getOutputFile().length());
+    }
+
+    @Test(timeout = 30000)
+    public void testWeightedFairScheduling() throws IOException {
+        final int numberOfThreads = 2;
+        final int downloadablePartsPerFile = 4;
+        final int chunkSize = 2 * AppSettings.getDownloadBufferSize(); //2 reads
+        final int readDelay = 1000;
+
+        dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+        dispatcher.setSchedulingPolicy(SchedulingPolicy.WEIGHTED_FAIR);
+
+        final IDownloadableFile file1 = dispatcher.submitFile("http://a.b/file1.dmp", outputDir, downloadablePartsPerFile);
+        while (file1.getActiveThreadCount() < numberOfThreads)
+            safeSleep(100);
+
+        final IDownloadableFile file2 = dispatcher.submitFile("http://a.b/file2.dmp", outputDir, downloadablePartsPerFile);
+        while (file2.getActiveThreadCount() == 0)
+            safeSleep(50);
+
+        // The second file should get its share of workers before all parts of the first one are started
+        assertThat(file1.getDownloadableParts().stream().filter(p -> p.getStatus() == FilePartDownloadState.PENDING).count(),
+                is(not(0L)));
+
+        while (file1.getStatus() != FileDownloadState.DONE || file2.getStatus() != FileDownloadState.DONE)
+            safeSleep(100);
+
+        assertEquals(chunkSize * downloadablePartsPerFile, file1.getOutputFile().length());
+        assertEquals(chunkSize * downloadablePartsPerFile, file2.getOutputFile().length());
+    }
+
+    @Test(timeout = 30000)
+    public void testShortestRemainingFirst() throws IOException {
+        final int numberOfThreads = 1;
+        final int chunkSize = AppSettings.getDownloadBufferSize(); //1 read
+        final int readDelay = 300;
+        final int largeFilePartsCount = 4;
+
+        dispatcher = createDispatcher(chunkSize, 1, PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+        doReturn(new HttpCommunicationResult(PARTIAL_CONTENT_OK, "Irrelevant", null, 4 * chunkSize))
+                .when(communicationComponent).checkRemoteFile("http://a.b/blocker.dmp");
+        doReturn(new HttpCommunicationResult(PARTIAL_CONTENT_OK, "Irrelevant", null, largeFilePartsCount * chunkSize))
+                .when(communicationComponent).checkRemoteFile("http://a.b/large.dmp");
+        dispatcher.setSchedulingPolicy(SchedulingPolicy.SHORTEST_REMAINING_FIRST);
+
+        // The worker is busy while both files are queued, the large one first
+        final IDownloadableFile blocker = dispatcher.submitFile("http://a.b/blocker.dmp", outputDir, 1);
+        while (blocker.getActiveThreadCount() == 0)
+            safeSleep(50);
+        final IDownloadableFile largeFile = dispatcher.submitFile("http://a.b/large.dmp", outputDir, largeFilePartsCount);
+        while (largeFile.getDownloadableParts().size() < largeFilePartsCount)
+            safeSleep(50);
+        final IDownloadableFile smallFile = dispatcher.submitFile("http://a.b/small.dmp", outputDir, 1);
+        while (smallFile.getDownloadableParts().isEmpty())
+            safeSleep(50);
+        assertEquals(1, blocker.getActiveThreadCount());
+
+        // The file with less remaining bytes is served first
+        while (smallFile.getStatus() != FileDownloadState.DONE)
+            safeSleep(50);
+        assertEquals(0, largeFile.getDownloadableParts().stream().filter(p -> p.getStatus() == FilePartDownloadState.DONE).count());
+
+        while (largeFile.getStatus() != FileDownloadState.DONE)
+            safeSleep(100);
+        assertEquals(chunkSize, smallFile.getOutputFile().length());
+        assertEquals(largeFilePartsCount * chunkSize, largeFile.getOutputFile().length());
+    }
+
+    @Test(timeout = 30000)
+    public void testShortestRemainingFirstBypassBound() throws IOException {
+        final int numberOfThreads = 1;
+        final int chunkSize = AppSettings.getDownloadBufferSize(); //1 read
+        final int readDelay = 200;
+        final int pendingSmallFilesCount = 3;
+
+        final int defaultMaxBypassCount = AppSettings.getMaxSchedulingBypassCount();
+        AppSettings.setMaxSchedulingBypassCount(2);
+        try {
+            dispatcher = createDispatcher(chunkSize, 1, PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+            doReturn(new HttpCommunicationResult(PARTIAL_CONTENT_OK, "Irrelevant", null, 2 * chunkSize))
+                    .when(communicationComponent).checkRemoteFile("http://a.b/large.dmp");
+            dispatcher.setSchedulingPolicy(SchedulingPolicy.SHORTEST_REMAINING_FIRST);
+
+            final List<IDownloadableFile> smallFiles = new ArrayList<>();
+            smallFiles.add(dispatcher.submitFile("http://a.b/small0.dmp", outputDir, 1));
+            while (smallFiles.get(0).getActiveThreadCount() == 0)
+                safeSleep(50);
+            final IDownloadableFile largeFile = dispatcher.submitFile("http://a.b/large.dmp", outputDir, 2);
+
+            // Smaller files keep coming, but the large file is served each time it has been bypassed twice
+            final long startTime = System.currentTimeMillis();
+            while (largeFile.getStatus() != FileDownloadState.DONE && System.currentTimeMillis() - startTime < 10000) {
+                while (smallFiles.stream().filter(f -> f.getStatus() != FileDownloadState.DONE).count() <
+                        pendingSmallFilesCount) {
+                    smallFiles.add(dispatcher.submitFile("http://a.b/small" + smallFiles.size() + ".dmp",
+                            outputDir, 1));
+                }
+                safeSleep(20);
+            }
+
+            assertEquals(FileDownloadState.DONE, largeFile.getStatus());
+            assertTrue(smallFiles.stream().anyMatch(f -> f.getStatus() != FileDownloadState.DONE));
+            assertEquals(2 * chunkSize, largeFile.getOutputFile().length());
+        } finally {
+            AppSettings.setMaxSchedulingBypassCount(defaultMaxBypassCount);
+        }
+    }
+
+    @Test(timeout = 40000)
+    public void testDeadlinePreemption() throws IOException {
+        final int numberOfThreads = 1;
+        final int downloadablePartsPerFile = 3;
+        final int chunkSize = 3 * AppSettings.getDownloadBufferSize(); //3 reads
+        final int readDelay = 1000;
+
+        dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+
+        final IDownloadableFile file1 = dispatcher.submitFile("http://a.b/file1.dmp", outputDir, downloadablePartsPerFile,
+                DownloadOptions.builder().setPriorityClass(DownloadPriorityClass.BACKGROUND).createDownloadOptions());
+        while (file1.getStatus() != FileDownloadState.DOWNLOADING)
+            safeSleep(100);
+
+        final IDownloadableFile file2 = dispatcher.submitFile("http://a.b/file2.dmp", outputDir, downloadablePartsPerFile,
+                DownloadOptions.builder()
+                        .setPriorityClass(DownloadPriorityClass.CRITICAL)
+                        .setDeadline(System.currentTimeMillis())
+                        .createDownloadOptions());
+        while (file2.getActiveThreadCount() == 0)
+            safeSleep(50);
+
+        // The running part of the background file should have been evicted before its completion
+        assertEquals(0, file1.getDownloadableParts().stream().filter(p -> p.getStatus() == FilePartDownloadState.DONE).count());
+
+        while (file1.getStatus() != FileDownloadState.DONE || file2.getStatus() != FileDownloadState.DONE)
+            safeSleep(100);
+
+        assertEquals(chunkSize * downloadablePartsPerFile, file1.getOutputFile().length());
+        assertEquals(chunkSize * downloadablePartsPerFile, file2.getOutputFile().length());
+    }
+
+    @Test(timeout = 20000)
+    public void testFarDeadlineDoesNotPreempt() throws IOException {
+        final int numberOfThreads = 1;
+        final int downloadablePartsPerFile = 3;
+        final int chunkSize = 3 * AppSettings.getDownloadBufferSize(); //3 reads
+        final int readDelay = 2000;
+
+        dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+
+        final IDownloadableFile file1 = dispatcher.submitFile("http://a.b/file1.dmp", outputDir, downloadablePartsPerFile,
+                DownloadOptions.builder().setPriorityClass(DownloadPriorityClass.BACKGROUND).createDownloadOptions());
+        while (file1.getStatus() != FileDownloadState.DOWNLOADING)
+            safeSleep(100);
+
+        // The speed of the new file is not known yet, but its deadline is too far to be at risk
+        final IDownloadableFile file2 = dispatcher.submitFile("http://a.b/file2.dmp", outputDir, downloadablePartsPerFile,
+                DownloadOptions.builder()
+                        .setPriorityClass(DownloadPriorityClass.CRITICAL)
+                        .setDeadline(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1))
+                        .createDownloadOptions());
+        safeSleep((int) (3 * AppSettings.getDeadlineCheckInterval()));
+
+        assertEquals(1, file1.getActiveThreadCount());
+        assertEquals(0, file2.getActiveThreadCount());
+    }
+
+    @Test(timeout = 30000)
+    public void testLowerClassIsNotStarved() throws IOException {
+        final int numberOfThreads = 1;
+        final int downloadablePartsPerFile = 1;
+        final int chunkSize = AppSettings.getDownloadBufferSize(); //1 read
+        final int readDelay = 200;
+        final int pendingCriticalFilesCount = 3;
+
+        final long defaultMaxClassWaitTime = AppSettings.getMaxClassWaitTime();
+        AppSettings.setMaxClassWaitTime(1000);
+        try {
+            dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                    PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+            final DownloadOptions critical = DownloadOptions.builder()
+                    .setPriorityClass(DownloadPriorityClass.CRITICAL).createDownloadOptions();
+
+            final List<IDownloadableFile> criticalFiles = new ArrayList<>();
+            criticalFiles.add(dispatcher.submitFile("http://a.b/critical0.dmp", outputDir, downloadablePartsPerFile, critical));
+            while (criticalFiles.get(0).getStatus() != FileDownloadState.DOWNLOADING)
+                safeSleep(50);
+            final IDownloadableFile background = dispatcher.submitFile("http://a.b/background.dmp", outputDir,
+                    downloadablePartsPerFile,
+                    DownloadOptions.builder().setPriorityClass(DownloadPriorityClass.BACKGROUND).createDownloadOptions());
+
+            // Files of the higher class keep coming, but the background file is served after the maximal wait time
+            final long startTime = System.currentTimeMillis();
+            while (background.getStatus() != FileDownloadState.DONE && System.currentTimeMillis() - startTime < 15000) {
+                while (criticalFiles.stream().filter(f -> f.getStatus() != FileDownloadState.DONE).count() <
+                        pendingCriticalFilesCount) {
+                    criticalFiles.add(dispatcher.submitFile("http://a.b/critical" + criticalFiles.size() + ".dmp",
+                            outputDir, downloadablePartsPerFile, critical));
+                }
+                safeSleep(20);
+            }
+
+            assertEquals(FileDownloadState.DONE, background.getStatus());
+            assertTrue(criticalFiles.stream().anyMatch(f -> f.getStatus() != FileDownloadState.DONE));
+            assertEquals(chunkSize, background.getOutputFile().length());
+        } finally {
+            AppSettings.setMaxClassWaitTime(defaultMaxClassWaitTime);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testGroupWorkerCap() throws IOException {
+        final int numberOfThreads = 3;
+        final int downloadablePartsPerFile = 3;
+        final int chunkSize = 2 * AppSettings.getDownloadBufferSize(); //2 reads
+        final int readDelay = 300;
+
+        dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+
+        final IDownloadGroup tenant = dispatcher.createGroup("tenant", null, 1, 0, 0);
+        final IDownloadGroup batch = dispatcher.createGroup("batch", tenant, 1, 1, 0);
+        final IDownloadableFile file = dispatcher.submitFile("http://a.b/file1.dmp", outputDir, downloadablePartsPerFile,
+                DownloadOptions.builder().setGroup(batch).createDownloadOptions());
+        assertEquals(1, tenant.getFiles().size());
+
+        while (file.getStatus() != FileDownloadState.DONE) {
+            assertTrue(file.getActiveThreadCount() <= 1);
+            safeSleep(50);
+        }
+
+        assertEquals(chunkSize * downloadablePartsPerFile, file.getOutputFile().length());
+        assertEquals(1.0, tenant.getProgress(), 1e-9);
+        assertEquals(0, tenant.getEstimatedTimeLeft());
+    }
+
+    @Test(timeout = 30000)
+    public void testRaisedGroupWorkerCap() throws IOException {
+        final int numberOfThreads = 3;
+        final int downloadablePartsPerFile = 3;
+        final int chunkSize = 2 * AppSettings.getDownloadBufferSize(); //2 reads
+        final int readDelay = 2000;
+
+        dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+
+        final IDownloadGroup batch = dispatcher.createGroup("batch", null, 1, 1, 0);
+        final IDownloadableFile file = dispatcher.submitFile("http://a.b/file1.dmp", outputDir, downloadablePartsPerFile,
+                DownloadOptions.builder().setGroup(batch).createDownloadOptions());
+        while (file.getActiveThreadCount() == 0)
+            safeSleep(50);
+        safeSleep(200);
+        assertEquals(1, file.getActiveThreadCount());
+
+        // The held back parts are served as soon as the cap is raised, not when the running part completes
+        batch.setMaxWorkers(0);
+        safeSleep(500);
+        assertEquals(downloadablePartsPerFile, file.getActiveThreadCount());
+        assertEquals(0, file.getDownloadableParts().stream().filter(p -> p.getStatus() == FilePartDownloadState.DONE).count());
+
+        while (file.getStatus() != FileDownloadState.DONE)
+            safeSleep(100);
+        assertEquals(chunkSize * downloadablePartsPerFile, file.getOutputFile().length());
+    }
+
+    @Test(timeout = 20000)
+    public void testBandwidthThrottling() throws IOException {
+        final int numberOfThreads = 2;
+        final int downloadablePartsPerFile = 2;
+        final int chunkSize = 4 * AppSettings.getDownloadBufferSize(); //4 reads
+        final int readDelay = 0;
+        final int maxBytesPerSecond = 2 * AppSettings.getDownloadBufferSize();
+
+        final long defaultBurstSize = AppSettings.getThrottleBurstSize();
+        AppSettings.setThrottleBurstSize(AppSettings.getDownloadBufferSize());
+        try {
+            dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                    PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+            dispatcher.getBandwidthThrottle().setMaxBytesPerSecond(maxBytesPerSecond);
+
+            final long startTime = System.currentTimeMillis();
+            final IDownloadableFile file = dispatcher.submitFile("http://a.b/file1.dmp", outputDir, downloadablePartsPerFile);
+            while (file.getStatus() != FileDownloadState.DONE)
+                safeSleep(50);
+            final long elapsedTime = System.currentTimeMillis() - startTime;
+
+            // All bytes but the first burst are transferred at the limited rate
+            final long expectedTime = 1000L * (chunkSize * downloadablePartsPerFile - AppSettings.getThrottleBurstSize()) /
+                    maxBytesPerSecond;
+            assertTrue("Download took " + elapsedTime + " ms, expected at least " + expectedTime,
+                    elapsedTime >= expectedTime * 9 / 10);
+            assertEquals(chunkSize * downloadablePartsPerFile, file.getOutputFile().length());
+        } finally {
+            AppSettings.setThrottleBurstSize(defaultBurstSize);
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testRetryAfterConnectionFailure() throws IOException {
+        final int numberOfThreads = 2;
+        final int downloadablePartsPerFile = 2;
+        final int chunkSize = 2 * AppSettings.getDownloadBufferSize(); //2 reads
+        final int readDelay = 100;
+        final int failedRequestsCount = 3;
+
+        dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads, failedRequestsCount);
+        dispatcher.setRetryPolicy(RetryPolicy.builder()
+                .setMaxAttempts(RetryableError.CONNECTION_FAILURE, failedRequestsCount)
+                .setInitialDelay(10)
+                .createRetryPolicy());
+
+        final IDownloadableFile file = dispatcher.submitFile("http://a.b/file1.dmp", outputDir, downloadablePartsPerFile);
+        while (file.getStatus() != FileDownloadState.DONE) {
+            assertThat(file.getStatus(), is(not(FileDownloadState.FAILED)));
+            safeSleep(50);
+        }
+
+        assertEquals(chunkSize * downloadablePartsPerFile, file.getOutputFile().length());
+    }
+
+    @Test(timeout = 20000)
+    public void testRetriesExhausted() throws IOException {
+        final int numberOfThreads = 1;
+        final int downloadablePartsPerFile = 1;
+        final int chunkSize = 2 * AppSettings.getDownloadBufferSize(); //2 reads
+        final int readDelay = 100;
+
+        dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads, Integer.MAX_VALUE);
+        dispatcher.setRetryPolicy(RetryPolicy.builder()
+                .setMaxAttempts(RetryableError.CONNECTION_FAILURE, 2)
+                .setInitialDelay(10)
+                .createRetryPolicy());
+
+        final IDownloadableFile file = dispatcher.submitFile("http://a.b/file1.dmp", outputDir, downloadablePartsPerFile);
+        while (file.getStatus() != FileDownloadState.FAILED)
+            safeSleep(50);
+    }
+
+    @Test(timeout = 30000)
+    public void testStalledPartRestart() throws IOException {
+        final int numberOfThreads = 1;
+        final int downloadablePartsPerFile = 1;
+        final int chunkSize = 4 * AppSettings.getDownloadBufferSize(); //4 reads
+        final int readDelay = 500;
+
+        final long defaultWindow = AppSettings.getStallDetectionWindow();
+        final long defaultMinSpeed = AppSettings.getMinPartDownloadSpeed();
+        final long defaultCheckInterval = AppSettings.getStallCheckInterval();
+        AppSettings.setStallDetectionWindow(800);
+        AppSettings.setMinPartDownloadSpeed(1024 * 1024);
+        AppSettings.setStallCheckInterval(100);
+        try {
+            dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                    PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+
+            final IDownloadableFile file = dispatcher.submitFile("http://a.b/file1.dmp", outputDir, downloadablePartsPerFile);
+            while (file.getStatus() != FileDownloadState.DONE)
+                safeSleep(50);
+
+            // The slow part is restarted from its current offset, so no data is lost or duplicated
+            assertTrue(dispatcher.getMetrics().getStalledPartRestartCount() > 0);
+            assertEquals(chunkSize * downloadablePartsPerFile, file.getOutputFile().length());
+        } finally {
+            AppSettings.setStallDetectionWindow(defaultWindow);
+            AppSettings.setMinPartDownloadSpeed(defaultMinSpeed);
+            AppSettings.setStallCheckInterval(defaultCheckInterval);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testEvictedPartReusesParkedStream() throws IOException {
+        final int numberOfThreads = 2;
+        final int downloadablePartsPerFile = 2;
+        final int chunkSize = 4 * AppSettings.getDownloadBufferSize(); //4 reads
+        final int readDelay = 500;
+
+        final long defaultGracePeriod = AppSettings.getParkedStreamGracePeriod();
+        final long defaultEvictionAbortDelay = AppSettings.getEvictionAbortDelay();
+        AppSettings.setParkedStreamGracePeriod(20000);
+        AppSettings.setEvictionAbortDelay(4 * readDelay); //The current read finishes before it's aborted
+        try {
+            dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                    PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+
+            final IDownloadableFile file = dispatcher.submitFile("http://a.b/file1.dmp", outputDir, downloadablePartsPerFile);
+            while (file.getActiveThreadCount() < numberOfThreads)
+                safeSleep(50);
+
+            dispatcher.setThreadPoolSize(1, false);
+            while (file.getStatus() != FileDownloadState.DONE)
+                safeSleep(50);
+
+            // The evicted part has continued to read from the same response instead of sending a new request
+            assertTrue(dispatcher.getMetrics().getReusedParkedStreamCount() > 0);
+            assertEquals(0, dispatcher.getMetrics().getParkedStreamCount());
+            assertEquals(chunkSize * downloadablePartsPerFile, file.getOutputFile().length());
+        } finally {
+            AppSettings.setParkedStreamGracePeriod(defaultGracePeriod);
+            AppSettings.setEvictionAbortDelay(defaultEvictionAbortDelay);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testParkedStreamIsThrottledByItsMirror() throws IOException {
+        final int numberOfThreads = 2;
+        final int downloadablePartsPerFile = 2;
+        final int chunkSize = 4 * AppSettings.getDownloadBufferSize(); //4 reads
+        final int readDelay = 500;
+        final String primary = "http://a.b/file.dmp";
+        final String mirror = "http://mirror1.b/file.dmp";
+
+        final long defaultGracePeriod = AppSettings.getParkedStreamGracePeriod();
+        final long defaultEvictionAbortDelay = AppSettings.getEvictionAbortDelay();
+        final long defaultBurstSize = AppSettings.getThrottleBurstSize();
+        AppSettings.setParkedStreamGracePeriod(20000);
+        AppSettings.setEvictionAbortDelay(4 * readDelay); //The current read finishes before it's aborted
+        AppSettings.setThrottleBurstSize(AppSettings.getDownloadBufferSize());
+        try {
+            dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                    PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+            // The data comes from the mirror only. The host of the primary source allows one read per 10 seconds.
+            doReturn(new HttpCommunicationResult(CommunicationStatus.UNAVAILABLE, "Irrelevant", null, -1))
+                    .when(communicationComponent).downloadRemoteFile(eq(primary), anyLong(), anyLong());
+            dispatcher.getBandwidthThrottle().setHostMaxBytesPerSecond("a.b", AppSettings.getDownloadBufferSize() / 10);
+
+            final IDownloadableFile file = dispatcher.submitFile(primary, outputDir, downloadablePartsPerFile,
+                    DownloadOptions.builder().setMirrors(Arrays.asList(mirror)).createDownloadOptions());
+            while (file.getActiveThreadCount() < numberOfThreads || file.getProgress() == 0)
+                safeSleep(50);
+
+            // The evicted part resumes on the stream of the mirror, which is not limited
+            dispatcher.setThreadPoolSize(1, false);
+            final long startTime = System.currentTimeMillis();
+            while (file.getStatus() != FileDownloadState.DONE && System.currentTimeMillis() - startTime < 10000)
+                safeSleep(50);
+
+            assertEquals(FileDownloadState.DONE, file.getStatus());
+            assertTrue(dispatcher.getMetrics().getReusedParkedStreamCount() > 0);
+            assertEquals(chunkSize * downloadablePartsPerFile, file.getOutputFile().length());
+        } finally {
+            AppSettings.setParkedStreamGracePeriod(defaultGracePeriod);
+            AppSettings.setEvictionAbortDelay(defaultEvictionAbortDelay);
+            AppSettings.setThrottleBurstSize(defaultBurstSize);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testEvictionVictimSelection() throws IOException {
+        final int numberOfThreads = 2;
+        final int chunkSize = 8 * AppSettings.getDownloadBufferSize(); //8 reads
+        final int readDelay = 300;
+
+        dispatcher = createDispatcher(chunkSize, 1, PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+        dispatcher.setEvictionPolicy(EvictionPolicy.LEAST_PROGRESS);
+
+        final IDownloadableFile advancedFile = dispatcher.submitFile("http://a.b/file1.dmp", outputDir, 1);
+        while (advancedFile.getProgress() < 0.25)
+            safeSleep(50);
+        final IDownloadableFile freshFile = dispatcher.submitFile("http://a.b/file2.dmp", outputDir, 1);
+        while (freshFile.getActiveThreadCount() == 0)
+            safeSleep(50);
+
+        // The part that has downloaded less is evicted, the advanced one goes on
+        dispatcher.setThreadPoolSize(1, false);
+        assertEquals(1, advancedFile.getActiveThreadCount());
+        assertEquals(0, freshFile.getActiveThreadCount());
+
+        while (advancedFile.getStatus() != FileDownloadState.DONE || freshFile.getStatus() != FileDownloadState.DONE)
+            safeSleep(50);
+        assertEquals(chunkSize, advancedFile.getOutputFile().length());
+        assertEquals(chunkSize, freshFile.getOutputFile().length());
+    }
+
+    @Test(timeout = 30000)
+    public void testGracefulPoolShrink() throws IOException {
+        final int numberOfThreads = 2;
+        final int chunkSize = 8 * AppSettings.getDownloadBufferSize(); //8 reads
+        final int readDelay = 300;
+
+        dispatcher = createDispatcher(chunkSize, 1, PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+        final IDownloadableFile file1 = dispatcher.submitFile("http://a.b/file1.dmp", outputDir, 1);
+        final IDownloadableFile file2 = dispatcher.submitFile("http://a.b/file2.dmp", outputDir, 1);
+        while (file1.getActiveThreadCount() + file2.getActiveThreadCount() < numberOfThreads)
+            safeSleep(50);
+
+        // Nobody is evicted right away: the surplus task yields after its quota
+        dispatcher.resizeThreadPoolGracefully(1, 2 * AppSettings.getDownloadBufferSize());
+        assertEquals(numberOfThreads, file1.getActiveThreadCount() + file2.getActiveThreadCount());
+        assertEquals(-1, dispatcher.getMetrics().getLastPoolShrinkConvergenceTime());
+
+        while (dispatcher.getMetrics().getLastPoolShrinkConvergenceTime() < 0)
+            safeSleep(50);
+        assertTrue(dispatcher.getMetrics().getLastPoolShrinkConvergenceTime() >= readDelay);
+
+        while (file1.getStatus() != FileDownloadState.DONE || file2.getStatus() != FileDownloadState.DONE) {
+            assertTrue(file1.getActiveThreadCount() + file2.getActiveThreadCount() <= 1);
+            safeSleep(50);
+        }
+        assertEquals(chunkSize, file1.getOutputFile().length());
+        assertEquals(chunkSize, file2.getOutputFile().length());
+    }
+
+    @Test(timeout = 30000)
+    public void testTimeSlicing() throws IOException {
+        final int chunkSize = 16 * AppSettings.getDownloadBufferSize(); //16 reads
+        final int readDelay = 200;
+
+        final long defaultTimeSliceDuration = AppSettings.getTimeSliceDuration();
+        AppSettings.setTimeSliceDuration(600);
+        try {
+            dispatcher = createDispatcher(chunkSize, 1, PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, 1);
+            final IDownloadableFile file1 = dispatcher.submitFile("http://a.b/file1.dmp", outputDir, 1);
+            while (file1.getActiveThreadCount() == 0)
+                safeSleep(50);
+            final IDownloadableFile file2 = dispatcher.submitFile("http://a.b/file2.dmp", outputDir, 1);
+
+            // The queued file gets the worker long before the first one completes
+            while (file2.getProgress() == 0)
+                safeSleep(50);
+            assertThat(file1.getStatus(), not(FileDownloadState.DONE));
+
+            while (file1.getStatus() != FileDownloadState.DONE || file2.getStatus() != FileDownloadState.DONE)
+                safeSleep(50);
+            assertEquals(chunkSize, file1.getOutputFile().length());
+            assertEquals(chunkSize, file2.getOutputFile().length());
+        } finally {
+            AppSettings.setTimeSliceDuration(defaultTimeSliceDuration);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testMirrorFailover() throws IOException {
+        final int downloadablePartsPerFile = 3;
+        final int chunkSize = 2 * AppSettings.getDownloadBufferSize(); //2 reads
+        final String primary = "http://a.b/file.dmp";
+        final String goodMirror = "http://mirror1.b/file.dmp";
+        final String staleMirror = "http://mirror2.b/file.dmp";
+
+        dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, 10, downloadablePartsPerFile);
+        // The stale mirror has another version of the file, and the primary source fails all the downloads
+        doReturn(new HttpCommunicationResult(PARTIAL_CONTENT_OK, "Irrelevant", null, chunkSize))
+                .when(communicationComponent).checkRemoteFile(staleMirror);
+        doReturn(new HttpCommunicationResult(CommunicationStatus.UNAVAILABLE, "Irrelevant", null, -1))
+                .when(communicationComponent).downloadRemoteFile(eq(primary), anyLong(), anyLong());
+
+        final IDownloadableFile file = dispatcher.submitFile(primary, outputDir, downloadablePartsPerFile,
+                DownloadOptions.builder().setMirrors(Arrays.asList(goodMirror, staleMirror)).createDownloadOptions());
+        while (file.getStatus() != FileDownloadState.DONE) {
+            assertThat(file.getStatus(), not(FileDownloadState.FAILED));
+            safeSleep(50);
+        }
+
+        assertEquals(chunkSize * downloadablePartsPerFile, file.getOutputFile().length());
+        verify(communicationComponent, atLeastOnce()).downloadRemoteFile(eq(goodMirror), anyLong(), anyLong());
+        verify(communicationComponent, never()).downloadRemoteFile(eq(staleMirror), anyLong(), anyLong());
+    }
+
+    @Test(timeout = 30000)
+    public void testResumeFromJournal() throws IOException {
+        final int downloadablePartsPerFile = 2;
+        final int chunkSize = 10 * AppSettings.getDownloadBufferSize(); //10 reads
+        final int readDelay = 100;
+
+        final File defaultJournalFile = AppSettings.getJournalFile();
+        final long defaultCheckpointInterval = AppSettings.getJournalCheckpointInterval();
+        AppSettings.setJournalFile(new File(outputDir, "downloads.journal"));
+        AppSettings.setJournalCheckpointInterval(100);
+        try {
+            final IDispatchingQueue firstDispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                    PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, downloadablePartsPerFile);
+            final IDownloadableFile file = firstDispatcher.submitFile("http://a.b/file.dmp", outputDir, downloadablePartsPerFile);
+            while (file.getProgress() < 0.3)
+                safeSleep(50);
+            firstDispatcher.close(); //As if the application was restarted
+
+            // The new dispatcher neither checks the file again nor downloads it from the start
+            dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                    PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, downloadablePartsPerFile);
+            assertEquals(1, dispatcher.getAllFiles().size());
+            final IDownloadableFile restoredFile = dispatcher.getAllFiles().iterator().next();
+            assertEquals(file.getOutputFile().getAbsoluteFile(), restoredFile.getOutputFile().getAbsoluteFile());
+            while (restoredFile.getStatus() != FileDownloadState.DONE)
+                safeSleep(50);
+
+            assertEquals(chunkSize * downloadablePartsPerFile, restoredFile.getOutputFile().length());
+            verify(communicationComponent, never()).checkRemoteFile(any());
+            final ArgumentCaptor<Long> startCaptor = ArgumentCaptor.forClass(Long.class);
+            verify(communicationComponent, atLeastOnce()).downloadRemoteFile(anyString(), startCaptor.capture(), anyLong());
+            assertTrue(startCaptor.getAllValues().stream().allMatch(start -> start % chunkSize != 0));
+        } finally {
+            AppSettings.setJournalFile(defaultJournalFile);
+            AppSettings.setJournalCheckpointInterval(defaultCheckpointInterval);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testResumeTailVerification() throws IOException {
+        final int downloadablePartsPerFile = 2;
+        final int chunkSize = 10 * AppSettings.getDownloadBufferSize(); //10 reads
+        final int readDelay = 100;
+        final byte[] content = new byte[chunkSize * downloadablePartsPerFile];
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) (i / 7);
+
+        final File defaultJournalFile = AppSettings.getJournalFile();
+        final long defaultCheckpointInterval = AppSettings.getJournalCheckpointInterval();
+        final int defaultVerificationWindow = AppSettings.getResumeVerificationWindow();
+        AppSettings.setJournalFile(new File(outputDir, "downloads.journal"));
+        AppSettings.setJournalCheckpointInterval(100);
+        AppSettings.setResumeVerificationWindow(2 * AppSettings.getDownloadBufferSize());
+        try {
+            remoteFileContent = content;
+            final IDispatchingQueue firstDispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                    PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, downloadablePartsPerFile);
+            final IDownloadableFile file = firstDispatcher.submitFile("http://a.b/file.dmp", outputDir, downloadablePartsPerFile);
+            while (file.getProgress() < 0.3)
+                safeSleep(50);
+            firstDispatcher.close(); //As if the application was restarted
+            safeSleep(2 * readDelay);
+
+            // An unclean stop: the last bytes that the parts have written did not reach the disk
+            for (IDownloadableFilePart part : file.getDownloadableParts()) {
+                try (RandomAccessFile partData = new RandomAccessFile(part.getOutputFile(), "rw")) {
+                    partData.seek(partData.length() - 100);
+                    partData.write(new byte[100]);
+                }
+            }
+
+            dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                    PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, downloadablePartsPerFile);
+            final IDownloadableFile restoredFile = dispatcher.getAllFiles().iterator().next();
+            while (restoredFile.getStatus() != FileDownloadState.DONE)
+                safeSleep(50);
+
+            assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(restoredFile.getOutputFile())));
+            verify(communicationComponent, never()).checkRemoteFile(any());
+            final ArgumentCaptor<Long> startCaptor = ArgumentCaptor.forClass(Long.class);
+            verify(communicationComponent, atLeastOnce()).downloadRemoteFile(anyString(), startCaptor.capture(), anyLong());
+            assertTrue(startCaptor.getAllValues().stream().allMatch(start -> start % chunkSize != 0));
+        } finally {
+            AppSettings.setJournalFile(defaultJournalFile);
+            AppSettings.setJournalCheckpointInterval(defaultCheckpointInterval);
+            AppSettings.setResumeVerificationWindow(defaultVerificationWindow);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testReplanOnChangedFile() throws IOException {
+        final int downloadablePartsPerFile = 2;
+        final int chunkSize = 10 * AppSettings.getDownloadBufferSize(); //10 reads
+        final String oldVersion = "\"v1\"";
+        final String newVersion = "\"v2\"";
+
+        dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, 50, downloadablePartsPerFile);
+        // The server honors If-Range: it does not serve the parts of a version that it no longer has
+        final AtomicReference<String> remoteVersion = new AtomicReference<>(oldVersion);
+        when(communicationComponent.checkRemoteFile(any())).thenAnswer(invocationOnMock -> HttpCommunicationResult.builder()
+                .setCommunicationStatus(PARTIAL_CONTENT_OK).setMessage("Irrelevant")
+                .setSize(chunkSize * downloadablePartsPerFile).setEntityTag(remoteVersion.get())
+                .createHttpCommunicationResult());
+        when(communicationComponent.downloadRemoteFile(anyString(), anyLong(), anyLong(), anyString())).thenAnswer(invocationOnMock -> {
+            final Object[] invocationArguments = invocationOnMock.getArguments();
+            if (!remoteVersion.get().equals(invocationArguments[3]))
+                return new HttpCommunicationResult(CommunicationStatus.CONTENT_CHANGED, "Irrelevant", null, -1);
+            return communicationComponent.downloadRemoteFile((String) invocationArguments[0],
+                    (Long) invocationArguments[1], (Long) invocationArguments[2]);
+        });
+
+        final IDownloadableFile file = dispatcher.submitFile("http://a.b/file.dmp", outputDir, downloadablePartsPerFile);
+        while (file.getProgress() < 0.2)
+            safeSleep(20);
+        file.pause();
+        while (file.getStatus() != FileDownloadState.PAUSED)
+            safeSleep(20);
+
+        // The file changes before the download is resumed: it starts over instead of failing
+        remoteVersion.set(newVersion);
+        assertTrue(dispatcher.resumeDownload(file));
+        while (file.getStatus() != FileDownloadState.DONE) {
+            assertThat(file.getStatus(), not(FileDownloadState.FAILED));
+            safeSleep(50);
+        }
+
+        assertEquals(chunkSize * downloadablePartsPerFile, file.getOutputFile().length());
+        assertEquals(downloadablePartsPerFile, file.getDownloadableParts().size());
+        file.getDownloadableParts().forEach(p -> assertEquals(FilePartDownloadState.DONE, p.getStatus()));
+        verify(communicationComponent, times(2)).checkRemoteFile(any());
+        verify(communicationComponent, atLeastOnce()).downloadRemoteFile(anyString(), anyLong(), anyLong(), eq(newVersion));
+    }
+
+    @Test(timeout = 30000)
+    public void testGapFilling() throws IOException {
+        final int defaultBlockSize = AppSettings.getBlockSize();
+        final int blockSize = 1024;
+        final int downloadablePartsPerFile = 2;
+        final int chunkSize = 10 * AppSettings.getDownloadBufferSize(); //10 reads
+        AppSettings.setBlockSize(blockSize);
+        try {
+            dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                    PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, 100, downloadablePartsPerFile);
+
+            final IManagedDownloadableFile file = (IManagedDownloadableFile) dispatcher.submitFile(
+                    "http://a.b/file.dmp", outputDir, downloadablePartsPerFile);
+            while (file.getDownloadableParts().size() < downloadablePartsPerFile)
+                safeSleep(20);
+            final IManagedDownloadableFilePart secondPart = file.getDownloadableParts().get(1);
+            while (secondPart.getDownloadedBytesCount() < 2 * blockSize)
+                safeSleep(20);
+
+            // Two blocks at the start of the second part turn out to be corrupted
+            try (RandomAccessFile partFileData = new RandomAccessFile(secondPart.getOutputFile(), "rw")) {
+                final byte[] garbage = new byte[2 * blockSize];
+                Arrays.fill(garbage, (byte) 0x7F);
+                partFileData.write(garbage);
+            }
+            final BlockBitmap bitmap = file.getBlockBitmap();
+            assertNotNull(bitmap);
+            bitmap.markIncomplete(chunkSize, chunkSize + 2 * blockSize);
+
+            // Only the blocks that no part is going to download are re-downloaded
+            assertEquals(1, dispatcher.fillGaps(file));
+            assertEquals(0, dispatcher.fillGaps(file));
+            while (file.getStatus() != FileDownloadState.DONE) {
+                assertThat(file.getStatus(), not(FileDownloadState.FAILED));
+                safeSleep(50);
+            }
+
+            assertEquals(chunkSize * downloadablePartsPerFile, file.getOutputFile().length());
+            assertEquals(chunkSize * downloadablePartsPerFile, bitmap.getCompletedBytesCount());
+            verify(communicationComponent).downloadRemoteFile(anyString(), eq((long) chunkSize), eq(2L * blockSize));
+            final byte[] outputFileContent = FileUtils.readFileToByteArray(file.getOutputFile());
+            for (int i = chunkSize; i < chunkSize + 2 * blockSize; i++)
+                assertEquals((byte) chunkSize, outputFileContent[i]);
+        } finally {
+            AppSettings.setBlockSize(defaultBlockSize);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testGapFillingMidBlock() throws IOException {
+        final int defaultBlockSize = AppSettings.getBlockSize();
+        final int blockSize = 3 * AppSettings.getDownloadBufferSize(); //3 reads
+        final int downloadablePartsPerFile = 2;
+        final int chunkSize = 10 * AppSettings.getDownloadBufferSize(); //10 reads, the second part starts mid-block
+        AppSettings.setBlockSize(blockSize);
+        try {
+            dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                    PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, 100, downloadablePartsPerFile);
+
+            final IManagedDownloadableFile file = (IManagedDownloadableFile) dispatcher.submitFile(
+                    "http://a.b/file.dmp", outputDir, downloadablePartsPerFile);
+            while (file.getDownloadableParts().size() < downloadablePartsPerFile)
+                safeSleep(20);
+            for (IManagedDownloadableFilePart part : file.getDownloadableParts()) {
+                while (part.getDownloadedBytesCount() < AppSettings.getDownloadBufferSize())
+                    safeSleep(20);
+            }
+
+            // Both parts are in the middle of a block, and the block at the end of the first part is shared
+            // with the second one. None of them is a gap.
+            assertEquals(0, dispatcher.fillGaps(file));
+            while (file.getStatus() != FileDownloadState.DONE) {
+                assertThat(file.getStatus(), not(FileDownloadState.FAILED));
+                safeSleep(50);
+            }
+
+            final BlockBitmap bitmap = file.getBlockBitmap();
+            assertNotNull(bitmap);
+            assertEquals(chunkSize * downloadablePartsPerFile, bitmap.getCompletedBytesCount());
+            verify(communicationComponent, times(downloadablePartsPerFile))
+                    .downloadRemoteFile(anyString(), anyLong(), anyLong());
+            final byte[] outputFileContent = FileUtils.readFileToByteArray(file.getOutputFile());
+            assertEquals(chunkSize * downloadablePartsPerFile, outputFileContent.length);
+            for (int i = 0; i < outputFileContent.length; i++)
+                assertEquals((byte) (i / chunkSize * chunkSize), outputFileContent[i]);
+        } finally {
+            AppSettings.setBlockSize(defaultBlockSize);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testDigestVerification() throws IOException, NoSuchAlgorithmException {
+        final int downloadablePartsPerFile = 3;
+        final int chunkSize = 2 * AppSettings.getDownloadBufferSize(); //2 reads
+
+        // Each part is filled with the lowest byte of its start (see the mock)
+        final MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        for (int i = 0; i < downloadablePartsPerFile; i++) {
+            final byte[] partData = new byte[chunkSize];
+            Arrays.fill(partData, (byte) (i * chunkSize));
+            messageDigest.update(partData);
+        }
+        final FileDigest remoteDigest = new FileDigest("SHA-256", messageDigest.digest());
+
+        dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, 10, downloadablePartsPerFile);
+        when(communicationComponent.checkRemoteFile(any())).thenReturn(HttpCommunicationResult.builder()
+                .setCommunicationStatus(PARTIAL_CONTENT_OK).setMessage("Irrelevant")
+                .setSize(chunkSize * downloadablePartsPerFile).setDigest(remoteDigest)
+                .createHttpCommunicationResult());
+
+        final IDownloadableFile file = dispatcher.submitFile("http://a.b/file.dmp", outputDir, downloadablePartsPerFile);
+        // The digest that the caller expects takes precedence over the one sent by the server
+        final IDownloadableFile corruptedFile = dispatcher.submitFile("http://a.b/corrupted.dmp", outputDir,
+                downloadablePartsPerFile, DownloadOptions.builder()
+                        .setExpectedDigest(new FileDigest("SHA-256", new byte[32])).createDownloadOptions());
+        while (file.getStatus() != FileDownloadState.DONE) {
+            assertThat(file.getStatus(), not(FileDownloadState.FAILED));
+            safeSleep(50);
+        }
+        while (corruptedFile.getStatus() != FileDownloadState.FAILED) {
+            assertThat(corruptedFile.getStatus(), not(FileDownloadState.DONE));
+            safeSleep(50);
+        }
+
+        assertEquals(remoteDigest, file.getDigest());
+        assertEquals(remoteDigest, corruptedFile.getDigest());
+    }
+
+    @Test(timeout = 30000)
+    public void testPieceRepair() throws IOException, NoSuchAlgorithmException {
+        final int downloadablePartsPerFile = 2;
+        final int pieceLength = AppSettings.getDownloadBufferSize();
+        final int chunkSize = 4 * pieceLength; //4 pieces
+        final int corruptedPiece = 5;
+
+        // Each piece is filled with its index
+        final byte[] content = new byte[chunkSize * downloadablePartsPerFile];
+        final List<byte[]> pieceHashes = new ArrayList<>();
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) (i / pieceLength);
+        for (int start = 0; start < content.length; start += pieceLength) {
+            pieceHashes.add(MessageDigest.getInstance("SHA-256").digest(
+                    Arrays.copyOfRange(content, start, start + pieceLength)));
+        }
+
+        dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, 10, downloadablePartsPerFile);
+        // The first download of one of the pieces is corrupted
+        final AtomicBoolean corruptionHappened = new AtomicBoolean(false);
+        final long corruptedByte = corruptedPiece * pieceLength + 10;
+        doAnswer(invocationOnMock -> {
+            final int start = ((Long) invocationOnMock.getArguments()[1]).intValue();
+            final int length = ((Long) invocationOnMock.getArguments()[2]).intValue();
+            final int end = length > 0 ? start + length : content.length;
+            final byte[] data = Arrays.copyOfRange(content, start, end);
+            if (start <= corruptedByte && corruptedByte < end && corruptionHappened.compareAndSet(false, true))
+                data[(int) corruptedByte - start]++;
+            return createPartDownloadResult(data, PARTIAL_CONTENT_OK, 10);
+        }).when(communicationComponent).downloadRemoteFile(anyString(), anyLong(), anyLong());
+
+        final IDownloadableFile file = dispatcher.submitFile("http://a.b/file.dmp", outputDir, downloadablePartsPerFile,
+                DownloadOptions.builder().setPieceManifest(new PieceManifest("SHA-256", pieceLength, pieceHashes))
+                        .createDownloadOptions());
+        while (file.getStatus() != FileDownloadState.DONE) {
+            assertThat(file.getStatus(), not(FileDownloadState.FAILED));
+            safeSleep(50);
+        }
+
+        // Only the corrupted piece was downloaded again
+        assertTrue(corruptionHappened.get());
+        assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(file.getOutputFile())));
+        verify(communicationComponent).downloadRemoteFile(anyString(), eq((long) corruptedPiece * pieceLength),
+                eq((long) pieceLength));
+        verify(communicationComponent, times(downloadablePartsPerFile + 1))
+                .downloadRemoteFile(anyString(), anyLong(), anyLong());
+    }
+
+    @Test(timeout = 30000)
+    public void testDeltaDownload() throws IOException, NoSuchAlgorithmException {
+        final int downloadablePartsPerFile = 2;
+        final int chunkSize = 10 * AppSettings.getDownloadBufferSize();
+        final int blockSize = 1000; //The last block is shorter
+        remoteFileContent = new byte[chunkSize * downloadablePartsPerFile];
+        new Random(42).nextBytes(remoteFileContent);
+
+        // The previous version lacks 100 bytes in block 30, and block 50 has changed since
+        final File remoteFile = new File(outputDir, "file.dmp.new");
+        final File previousVersion = new File(outputDir, "file.dmp.old");
+        FileUtils.writeByteArrayToFile(remoteFile, remoteFileContent);
+        final byte[] previousContent = remoteFileContent.clone();
+        Arrays.fill(previousContent, 50 * blockSize, 51 * blockSize, (byte) 1);
+        FileUtils.writeByteArrayToFile(previousVersion, Arrays.copyOfRange(previousContent, 0, 30_500));
+        FileUtils.writeByteArrayToFile(previousVersion,
+                Arrays.copyOfRange(previousContent, 30_600, previousContent.length), true);
+        final BlockChecksumMap blockChecksumMap = BlockChecksumMap.compute(remoteFile, "MD5", blockSize);
+
+        dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, 10, downloadablePartsPerFile);
+        final IDownloadableFile file = dispatcher.submitFile("http://a.b/file.dmp", outputDir, downloadablePartsPerFile,
+                DownloadOptions.builder().setDeltaSource(previousVersion, blockChecksumMap).createDownloadOptions());
+        while (file.getStatus() != FileDownloadState.DONE) {
+            assertThat(file.getStatus(), not(FileDownloadState.FAILED));
+            safeSleep(50);
+        }
+
+        // Only the two blocks that differ are downloaded
+        assertTrue(Arrays.equals(remoteFileContent, FileUtils.readFileToByteArray(file.getOutputFile())));
+        verify(communicationComponent).downloadRemoteFile(anyString(), eq(30L * blockSize), eq((long) blockSize));
+        verify(communicationComponent).downloadRemoteFile(anyString(), eq(50L * blockSize), eq((long) blockSize));
+        verify(communicationComponent, times(2)).downloadRemoteFile(anyString(), anyLong(), anyLong());
+    }
+
+    @Test(timeout = 30000)
+    public void testDownloadCache() throws IOException {
+        final int downloadablePartsPerFile = 2;
+        final int chunkSize = 10 * AppSettings.getDownloadBufferSize();
+        final int fileSize = chunkSize * downloadablePartsPerFile;
+        final String version = "\"v1\"";
+        remoteFileContent = new byte[fileSize];
+        new Random(42).nextBytes(remoteFileContent);
+
+        AppSettings.setCacheDirectory(new File(outputDir, "cache"));
+        try {
+            dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                    PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, 10, downloadablePartsPerFile);
+            when(communicationComponent.checkRemoteFile(any())).thenAnswer(invocationOnMock -> HttpCommunicationResult.builder()
+                    .setCommunicationStatus(PARTIAL_CONTENT_OK).setMessage("Irrelevant").setSize(fileSize)
+                    .setEntityTag(version).createHttpCommunicationResult());
+            when(communicationComponent.downloadRemoteFile(anyString(), anyLong(), anyLong(), anyString())).thenAnswer(
+                    invocationOnMock -> communicationComponent.downloadRemoteFile((String) invocationOnMock.getArguments()[0],
+                            (Long) invocationOnMock.getArguments()[1], (Long) invocationOnMock.getArguments()[2]));
+            // The server confirms that the cached version is the current one
+            doReturn(new HttpCommunicationResult(CommunicationStatus.NOT_MODIFIED, "Irrelevant", null, -1))
+                    .when(communicationComponent).checkRemoteFile(anyString(), eq(version));
+
+            final IDownloadableFile file = dispatcher.submitFile("http://a.b/file.dmp", outputDir, downloadablePartsPerFile);
+            while (file.getStatus() != FileDownloadState.DONE) {
+                assertThat(file.getStatus(), not(FileDownloadState.FAILED));
+                safeSleep(50);
+            }
+            verify(communicationComponent, times(downloadablePartsPerFile))
+                    .downloadRemoteFile(anyString(), anyLong(), anyLong());
+            final DownloadCache cache = dispatcher.getDownloadCache();
+            assertNotNull(cache);
+            while (cache.getSize() < fileSize) //Stored in the background
+                safeSleep(50);
+
+            // The second download is copied from the cache
+            dispatcher.forgetFile(file);
+            final File copyDir = new File(outputDir, "copy");
+            assertTrue(copyDir.mkdir());
+            final IDownloadableFile copy = dispatcher.submitFile("http://a.b/file.dmp", copyDir, downloadablePartsPerFile);
+            while (copy.getStatus() != FileDownloadState.DONE) {
+                assertThat(copy.getStatus(), not(FileDownloadState.FAILED));
+                safeSleep(50);
+            }
+            assertTrue(Arrays.equals(remoteFileContent, FileUtils.readFileToByteArray(copy.getOutputFile())));
+            assertEquals(file.getDigest(), copy.getDigest());
+            verify(communicationComponent, times(downloadablePartsPerFile))
+                    .downloadRemoteFile(anyString(), anyLong(), anyLong());
+
+            final IDispatcherMetrics metrics = dispatcher.getMetrics();
+            assertEquals(1, metrics.getCacheHitCount());
+            assertEquals(1, metrics.getCacheMissCount());
+            assertEquals(fileSize, metrics.getCacheSavedBytesCount());
+        } finally {
+            AppSettings.setCacheDirectory(null);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testDeduplicatedRequests() throws IOException {
+        final int downloadablePartsPerFile = 2;
+        final int chunkSize = 10 * AppSettings.getDownloadBufferSize(); //10 reads
+        final int fileSize = chunkSize * downloadablePartsPerFile;
+        remoteFileContent = new byte[fileSize];
+        new Random(42).nextBytes(remoteFileContent);
+
+        AppSettings.setDeduplicateRequests(true);
+        try {
+            dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                    PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, 100, downloadablePartsPerFile);
+            // The mirror serves the same version of the file
+            when(communicationComponent.checkRemoteFile(any())).thenAnswer(invocationOnMock -> HttpCommunicationResult.builder()
+                    .setCommunicationStatus(PARTIAL_CONTENT_OK).setMessage("Irrelevant").setSize(fileSize)
+                    .setEntityTag("\"v1\"").createHttpCommunicationResult());
+            when(communicationComponent.downloadRemoteFile(anyString(), anyLong(), anyLong(), anyString())).thenAnswer(
+                    invocationOnMock -> communicationComponent.downloadRemoteFile((String) invocationOnMock.getArguments()[0],
+                            (Long) invocationOnMock.getArguments()[1], (Long) invocationOnMock.getArguments()[2]));
+
+            final IDownloadableFile file = dispatcher.submitFile("http://a.b/file.dmp", outputDir, downloadablePartsPerFile);
+            while (file.getDownloadableParts().isEmpty())
+                safeSleep(20);
+
+            final File sameUrlDir = new File(outputDir, "same");
+            final File mirrorDir = new File(outputDir, "mirror");
+            assertTrue(sameUrlDir.mkdir() && mirrorDir.mkdir());
+            final IDownloadableFile sameUrlFile = dispatcher.submitFile("HTTP://A.B:80/file.dmp#top", sameUrlDir,
+                    downloadablePartsPerFile);
+            final IDownloadableFile mirrorFile = dispatcher.submitFile("http://c.d/file.dmp", mirrorDir,
+                    downloadablePartsPerFile);
+            assertEquals(3, dispatcher.getAllFiles().size());
+
+            for (IDownloadableFile f : Arrays.asList(file, sameUrlFile, mirrorFile)) {
+                while (f.getStatus() != FileDownloadState.DONE) {
+                    assertThat(f.getStatus(), not(FileDownloadState.FAILED));
+                    safeSleep(50);
+                }
+                assertTrue(Arrays.equals(remoteFileContent, FileUtils.readFileToByteArray(f.getOutputFile())));
+            }
+
+            // The content was fetched once
+            verify(communicationComponent, times(downloadablePartsPerFile))
+                    .downloadRemoteFile(anyString(), anyLong(), anyLong());
+            verify(communicationComponent, never()).checkRemoteFile("HTTP://A.B:80/file.dmp#top");
+        } finally {
+            AppSettings.setDeduplicateRequests(false);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testFileDeduplication() throws IOException {
+        final int downloadablePartsPerFile = 2;
+        final int chunkSize = 10 * AppSettings.getDownloadBufferSize();
+        final int fileSize = chunkSize * downloadablePartsPerFile;
+        remoteFileContent = new byte[fileSize];
+        new Random(42).nextBytes(remoteFileContent);
+
+        AppSettings.setDeduplicateFiles(true);
+        try {
+            dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                    PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, 10, downloadablePartsPerFile);
+            // Different URLs serve the same content
+            final IDownloadableFile file = dispatcher.submitFile("http://a.b/file.dmp", outputDir, downloadablePartsPerFile);
+            while (file.getStatus() != FileDownloadState.DONE) {
+                assertThat(file.getStatus(), not(FileDownloadState.FAILED));
+                safeSleep(50);
+            }
+            final IDownloadableFile copy = dispatcher.submitFile("http://c.d/copy.dmp", outputDir, downloadablePartsPerFile);
+            while (copy.getStatus() != FileDownloadState.DONE) {
+                assertThat(copy.getStatus(), not(FileDownloadState.FAILED));
+                safeSleep(50);
+            }
+
+            while (dispatcher.getMetrics().getLinkedFileCount() == 0) //Linked in the background
+                safeSleep(50);
+
+            assertTrue(Arrays.equals(remoteFileContent, FileUtils.readFileToByteArray(copy.getOutputFile())));
+            assertTrue(Files.isSameFile(file.getOutputFile().toPath(), copy.getOutputFile().toPath()));
+            assertEquals(1, dispatcher.getMetrics().getLinkedFileCount());
+            assertEquals(fileSize, dispatcher.getMetrics().getReclaimedBytesCount());
+        } finally {
+            AppSettings.setDeduplicateFiles(false);
+        }
+    }
+
     @Test(timeout = 30000)
     public void testOneFileWithExtension() throws IOException {
         final int numberOfThreads = 1;
@@ -508,6 +1682,56 @@ public class DispatcherTest {
         assertEquals(chunkSize * downloadablePartsPerFile, file1.getOutputFile().length());
     }
 
+    @Test(timeout = 15000)
+    public void testImmediatePause() throws IOException {
+        final int chunkSize = 2 * AppSettings.getDownloadBufferSize(); //2 reads
+        final int numberOfThreads = 1;
+        final int downloadablePartsPerFile = 1;
+        final int readDelay = 10000;
+
+        dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+
+        final IDownloadableFile file = dispatcher.submitFile("http://a.b/file.dmp", outputDir, downloadablePartsPerFile);
+        while (file.getStatus() != FileDownloadState.DOWNLOADING)
+            safeSleep(50);
+
+        // The blocked read is aborted, so the pause does not wait for the next chunk of data
+        final long pauseTime = System.currentTimeMillis();
+        file.pause();
+        while (file.getStatus() != FileDownloadState.PAUSED)
+            safeSleep(10);
+        final long pauseDuration = System.currentTimeMillis() - pauseTime;
+        assertTrue("Pause took " + pauseDuration + " ms", pauseDuration < readDelay / 5);
+        assertEquals(0, file.getActiveThreadCount());
+    }
+
+    @Test(timeout = 15000)
+    public void testImmediateEviction() throws IOException {
+        final int chunkSize = 2 * AppSettings.getDownloadBufferSize(); //2 reads
+        final int numberOfThreads = 2;
+        final int downloadablePartsPerFile = 2;
+        final int readDelay = 10000;
+        assertTrue(AppSettings.getParkedStreamGracePeriod() > 0 && AppSettings.getMaxParkedStreams() > 0);
+
+        dispatcher = createDispatcher(chunkSize, downloadablePartsPerFile,
+                PARTIAL_CONTENT_OK, PARTIAL_CONTENT_OK, readDelay, numberOfThreads);
+
+        final IDownloadableFile file = dispatcher.submitFile("http://a.b/file.dmp", outputDir, downloadablePartsPerFile);
+        while (file.getActiveThreadCount() < numberOfThreads)
+            safeSleep(50);
+        safeSleep(500); //Both parts are blocked in their first read
+
+        // The stream of the evicted part might be parked, but its blocked read is aborted shortly anyway
+        final long evictionTime = System.currentTimeMillis();
+        dispatcher.setThreadPoolSize(1, false);
+        while (file.getDownloadableParts().stream().noneMatch(p -> p.getStatus() == FilePartDownloadState.PENDING))
+            safeSleep(10);
+        final long evictionDuration = System.currentTimeMillis() - evictionTime;
+        assertTrue("Eviction took " + evictionDuration + " ms", evictionDuration < readDelay / 5);
+        assertEquals(1, file.getActiveThreadCount());
+    }
+
     @Test(timeout = 10000)
     public void testOneFileForget() throws IOException {
         final int chunkSize = 1000;
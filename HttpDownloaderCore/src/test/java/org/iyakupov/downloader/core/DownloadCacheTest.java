@@ -0,0 +1,53 @@
+package org.iyakupov.downloader.core;
+
+import org.apache.commons.io.FileUtils;
+import org.iyakupov.downloader.core.cache.DownloadCache;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * UT for DownloadCache
+ */
+public class DownloadCacheTest {
+    private final File outputDir = new File("target/");
+
+    @Test
+    public void testRetrieveAfterEviction() throws IOException {
+        final File cacheDir = new File(outputDir, "cache_ut");
+        final File file = new File(outputDir, "cache_file.dmp");
+        final File other = new File(outputDir, "cache_other.dmp");
+        final File copy = new File(outputDir, "cache_copy.dmp");
+        try {
+            FileUtils.deleteDirectory(cacheDir);
+            FileUtils.writeByteArrayToFile(file, new byte[]{1, 2, 3});
+            FileUtils.writeByteArrayToFile(other, new byte[]{4, 5, 6});
+
+            final DownloadCache cache = new DownloadCache(cacheDir, 4);
+            cache.store("http://a.b/file.dmp", "v1", file);
+            final DownloadCache.Entry entry = cache.lookup("http://a.b/file.dmp");
+            assertNotNull(entry);
+            assertTrue(cache.retrieve(entry, copy));
+            assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(copy.toPath()));
+            assertEquals(1, cache.getHitCount());
+
+            // The entry was evicted after the lookup: nothing is copied, and the data is gone
+            cache.store("http://a.b/other.dmp", "v1", other);
+            assertNull(cache.lookup("http://a.b/file.dmp"));
+            Files.delete(copy.toPath());
+            assertFalse(cache.retrieve(entry, copy));
+            assertFalse(copy.exists());
+            assertEquals(1, cache.getHitCount());
+            assertEquals(3, cache.getSize());
+        } finally {
+            FileUtils.deleteDirectory(cacheDir);
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(other.toPath());
+            Files.deleteIfExists(copy.toPath());
+        }
+    }
+}
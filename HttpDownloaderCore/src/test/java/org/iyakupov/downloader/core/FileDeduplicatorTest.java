@@ -0,0 +1,49 @@
+package org.iyakupov.downloader.core;
+
+import org.apache.commons.io.FileUtils;
+import org.iyakupov.downloader.core.cache.FileDeduplicator;
+import org.iyakupov.downloader.core.file.FileDigest;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * UT for FileDeduplicator
+ */
+public class FileDeduplicatorTest {
+    private final File outputDir = new File("target/");
+
+    @Test
+    public void testContentIsCompared() throws IOException {
+        final File file = new File(outputDir, "dedup_file.dmp");
+        final File other = new File(outputDir, "dedup_other.dmp");
+        final File copy = new File(outputDir, "dedup_copy.dmp");
+        try {
+            FileUtils.writeByteArrayToFile(file, new byte[]{1, 2, 3});
+            FileUtils.writeByteArrayToFile(other, new byte[]{1, 2, 4});
+            FileUtils.writeByteArrayToFile(copy, new byte[]{1, 2, 3});
+
+            // Files with the same (colliding) digest, but different content, are never linked
+            final FileDigest collidingDigest = FileDigest.fromHex("SHA-256", "00");
+            final FileDeduplicator deduplicator = new FileDeduplicator();
+            assertEquals(0, deduplicator.deduplicate(file, collidingDigest));
+            assertEquals(0, deduplicator.deduplicate(other, collidingDigest));
+            assertFalse(Files.isSameFile(file.toPath(), other.toPath()));
+            assertEquals(0, deduplicator.getLinkedFilesCount());
+
+            // A weak digest is not trusted: the file is hashed
+            assertEquals(0, deduplicator.deduplicate(file, null));
+            assertEquals(3, deduplicator.deduplicate(copy, FileDigest.fromHex("MD5", "00")));
+            assertTrue(Files.isSameFile(file.toPath(), copy.toPath()));
+            assertEquals(1, deduplicator.getLinkedFilesCount());
+        } finally {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(other.toPath());
+            Files.deleteIfExists(copy.toPath());
+        }
+    }
+}
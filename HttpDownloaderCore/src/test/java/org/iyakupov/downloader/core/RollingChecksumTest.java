@@ -0,0 +1,38 @@
+package org.iyakupov.downloader.core;
+
+import org.iyakupov.downloader.core.file.internal.RollingChecksum;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * UT for RollingChecksum
+ */
+public class RollingChecksumTest {
+    @Test
+    public void testRollingMatchesDirectChecksum() {
+        final int windowSize = 64;
+        final byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+
+        final RollingChecksum rollingChecksum = new RollingChecksum(windowSize);
+        final byte[] window = new byte[windowSize];
+        for (int i = 0; i < data.length; i++) {
+            rollingChecksum.update(data[i]);
+            assertEquals(i + 1 >= windowSize, rollingChecksum.isFull());
+            if (rollingChecksum.isFull()) {
+                final int start = i + 1 - windowSize;
+                assertEquals(RollingChecksum.checksum(data, start, windowSize), rollingChecksum.getValue());
+                rollingChecksum.copyWindow(window);
+                assertTrue(Arrays.equals(Arrays.copyOfRange(data, start, i + 1), window));
+            }
+        }
+
+        rollingChecksum.clear();
+        assertFalse(rollingChecksum.isFull());
+        assertEquals(RollingChecksum.checksum(data, 0, 0), rollingChecksum.getValue());
+    }
+}